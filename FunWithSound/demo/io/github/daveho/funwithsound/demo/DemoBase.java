@@ -19,15 +19,20 @@ import java.io.IOException;
 
 import javax.sound.midi.MidiUnavailableException;
 
+import io.github.daveho.funwithsound.AudioSink;
 import io.github.daveho.funwithsound.Composer;
 import io.github.daveho.funwithsound.Player;
 import io.github.daveho.funwithsound.Rhythm;
 import io.github.daveho.funwithsound.Strike;
 
 public abstract class DemoBase extends Composer {
-	private static final String SOUNDFONT_DIR = "/home/dhovemey/SoundFonts";
+	// The soundfont directory can be overridden (e.g., to use stand-in
+	// soundfonts) by setting the funwithsound.soundFontDir system property
+	private static final String SOUNDFONT_DIR =
+			System.getProperty("funwithsound.soundFontDir", "/home/dhovemey/SoundFonts");
 	
-	public static final String SAMPLE_DIR = "/home/dhovemey/Samples";
+	public static final String SAMPLE_DIR =
+			System.getProperty("funwithsound.sampleDir", "/home/dhovemey/Samples");
 
 	// Some soundfonts
 	
@@ -117,6 +122,14 @@ public abstract class DemoBase extends Composer {
 		player.setComposition(getComposition());
 		player.saveWaveFile(outputFile);
 	}
+	
+	public void render(AudioSink sink) throws MidiUnavailableException, IOException {
+		Player player = new Player();
+		player.setDeterministic(true);
+		onCreatePlayer(player);
+		player.setComposition(getComposition());
+		player.render(sink);
+	}
 
 	protected void onCreatePlayer(Player player) {
 	}
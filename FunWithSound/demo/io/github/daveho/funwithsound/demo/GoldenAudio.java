@@ -0,0 +1,307 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound.demo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.github.daveho.funwithsound.AudioSink;
+import io.github.daveho.funwithsound.FFT;
+import io.github.daveho.funwithsound.MappedSample;
+import io.github.daveho.funwithsound.Util;
+import io.github.daveho.funwithsound.WaveAudioSink;
+
+/**
+ * Golden-audio regression harness.  Renders demos (offline and
+ * deterministically, see {@link io.github.daveho.funwithsound.Player#setDeterministic(boolean)},
+ * without any audio or MIDI devices) and compares the rendered audio
+ * against stored reference wave files, reporting sample-level
+ * differences, the worst log-spectral distance (and where it occurs),
+ * and the render time of each demo.  Run it from the FunWithSound
+ * directory (so that the demos can find the files in
+ * <code>samples/</code>), first with
+ * <code>record</code> to create the references, then with
+ * <code>check</code> after each change:
+ * <pre>
+ * java io.github.daveho.funwithsound.demo.GoldenAudio record|check referenceDir [DemoClass...]
+ * </pre>
+ * Soundfonts and samples are loaded from the directories specified
+ * by the <code>funwithsound.soundFontDir</code> and
+ * <code>funwithsound.sampleDir</code> system properties (see
+ * {@link DemoBase}.)  They aren't part of the repository, so
+ * references are only valid for the set of soundfonts and samples
+ * they were recorded with: record them locally, and check against
+ * them with the same directories (missing soundfonts are replaced
+ * by Gervill's emergency soundbank, which will change the rendered
+ * audio.)  A demo which can't be rendered is reported as a failure.
+ * The exit code is nonzero if any demo doesn't match its reference.
+ */
+public class GoldenAudio {
+	private static final String[] DEMOS = {
+		"Demo", "Demo2", "Demo2Eli", "Demo3", "Demo4", "Demo5", "Demo6",
+		"Demo7", "Demo8", "Demo10", "LinuxTechno", "LinuxTechno2", "Waves",
+	};
+	
+	// Deterministic renders should match their references exactly, but
+	// allow differences of the order of one 16 bit quantization step
+	// (e.g., from floating point differences between JVMs): a rendering
+	// matches its reference if the signal to error ratio is at least
+	// this many dB.  The spectral distance isn't used to decide whether
+	// a rendering matches, but the worst frame shows where it differs.
+	private static final double MIN_SNR_DB = 90.0;
+	
+	// Spectral analysis frame size and hop size
+	private static final int FRAME_SIZE = 2048;
+	private static final int HOP_SIZE = 1024;
+	
+	// Power added to each spectral bin to avoid taking the log of 0
+	// (about -100 dB relative to a full scale sine wave)
+	private static final double POWER_FLOOR = 1e-10 * FRAME_SIZE * FRAME_SIZE;
+	
+	/**
+	 * Rendered audio, accumulated in memory.
+	 */
+	private static class Audio implements AudioSink {
+		float sampleRate;
+		float[][] data;
+		int numFrames;
+		
+		@Override
+		public void open(float sampleRate, int numChannels) throws IOException {
+			this.sampleRate = sampleRate;
+			this.data = new float[numChannels][(int) sampleRate];
+			this.numFrames = 0;
+		}
+		
+		@Override
+		public void write(float[][] buf, int n) throws IOException {
+			if (numFrames + n > data[0].length) {
+				int capacity = Math.max(numFrames + n, data[0].length*2);
+				for (int c = 0; c < data.length; c++) {
+					data[c] = Arrays.copyOf(data[c], capacity);
+				}
+			}
+			for (int c = 0; c < data.length; c++) {
+				System.arraycopy(buf[c], 0, data[c], numFrames, n);
+			}
+			numFrames += n;
+		}
+		
+		@Override
+		public void close() throws IOException {
+		}
+		
+		float get(int channel, int frame) {
+			return frame < numFrames ? data[Math.min(channel, data.length - 1)][frame] : 0.0f;
+		}
+		
+		// Average of the channels (0 past the end)
+		float getMono(int frame) {
+			if (frame >= numFrames) {
+				return 0.0f;
+			}
+			float sum = 0.0f;
+			for (int c = 0; c < data.length; c++) {
+				sum += data[c][frame];
+			}
+			return sum / data.length;
+		}
+		
+		void save(File file) throws IOException {
+			WaveAudioSink sink = new WaveAudioSink(file);
+			sink.open(sampleRate, data.length);
+			try {
+				sink.write(data, numFrames);
+			} finally {
+				sink.close();
+			}
+		}
+		
+		static Audio load(File file) throws IOException {
+			MappedSample wave = new MappedSample(file.getPath());
+			int numChannels = wave.getNumChannels();
+			Audio audio = new Audio();
+			audio.sampleRate = wave.getSampleRate();
+			audio.numFrames = (int) wave.getNumFrames();
+			audio.data = new float[numChannels][audio.numFrames];
+			for (int c = 0; c < numChannels; c++) {
+				wave.getSamples(0L, c, audio.data[c], 0, audio.numFrames);
+			}
+			return audio;
+		}
+	}
+	
+	/**
+	 * Result of comparing a rendering against its reference.
+	 */
+	private static class Comparison {
+		int frameDiff;
+		double maxDiff;
+		int maxDiffFrame;
+		double snrDb;
+		double maxLsdDb;
+		int maxLsdFrame;
+		
+		boolean matches() {
+			return frameDiff == 0 && snrDb >= MIN_SNR_DB;
+		}
+	}
+	
+	private static Comparison compare(Audio actual, Audio expected) {
+		Comparison result = new Comparison();
+		result.frameDiff = actual.numFrames - expected.numFrames;
+		
+		// Sample-level differences (quantizing the rendered audio
+		// the same way as the reference was written and read)
+		int numFrames = Math.max(actual.numFrames, expected.numFrames);
+		int numChannels = Math.max(actual.data.length, expected.data.length);
+		double signal = 0.0, error = 0.0;
+		for (int c = 0; c < numChannels; c++) {
+			for (int i = 0; i < numFrames; i++) {
+				double a = Util.toPcm16(actual.get(c, i)) / 32768.0;
+				double e = expected.get(c, i);
+				double d = Math.abs(a - e);
+				if (d > result.maxDiff) {
+					result.maxDiff = d;
+					result.maxDiffFrame = i;
+				}
+				signal += e*e;
+				error += d*d;
+			}
+		}
+		result.snrDb = error == 0.0 ? Double.POSITIVE_INFINITY : 10.0 * Math.log10(signal / error);
+		
+		// Log-spectral distance between (Hann windowed) frames of the
+		// mono mixes: the largest distance of any frame is reported, since
+		// an average would hide a regression affecting only a few frames
+		FFT fft = new FFT(FRAME_SIZE);
+		float[] window = new float[FRAME_SIZE];
+		for (int i = 0; i < FRAME_SIZE; i++) {
+			window[i] = (float) (0.5 - 0.5*Math.cos(2.0*Math.PI*i/FRAME_SIZE));
+		}
+		float[] aRe = new float[FRAME_SIZE], aIm = new float[FRAME_SIZE];
+		float[] eRe = new float[FRAME_SIZE], eIm = new float[FRAME_SIZE];
+		for (int start = 0; start < numFrames; start += HOP_SIZE) {
+			for (int i = 0; i < FRAME_SIZE; i++) {
+				aRe[i] = actual.getMono(start + i) * window[i];
+				eRe[i] = expected.getMono(start + i) * window[i];
+			}
+			Arrays.fill(aIm, 0.0f);
+			Arrays.fill(eIm, 0.0f);
+			fft.forward(aRe, aIm);
+			fft.forward(eRe, eIm);
+			double sum = 0.0;
+			for (int k = 0; k <= FRAME_SIZE/2; k++) {
+				double pa = aRe[k]*aRe[k] + aIm[k]*aIm[k] + POWER_FLOOR;
+				double pe = eRe[k]*eRe[k] + eIm[k]*eIm[k] + POWER_FLOOR;
+				double db = 10.0 * Math.log10(pa / pe);
+				sum += db*db;
+			}
+			double lsd = Math.sqrt(sum / (FRAME_SIZE/2 + 1));
+			if (lsd > result.maxLsdDb) {
+				result.maxLsdDb = lsd;
+				result.maxLsdFrame = start;
+			}
+		}
+		
+		return result;
+	}
+	
+	private static DemoBase createDemo(String name) throws Exception {
+		String clsName = name.indexOf('.') >= 0 ? name : GoldenAudio.class.getPackage().getName() + "." + name;
+		return (DemoBase) Class.forName(clsName).getDeclaredConstructor().newInstance();
+	}
+	
+	// Render a demo, and either record it as the reference or compare
+	// it against the reference, adding a line to the report: returns
+	// false if the demo doesn't match its reference
+	private static boolean check(String name, boolean record, File refDir, List<String> report) throws Exception {
+		DemoBase demo = createDemo(name);
+		demo.create();
+		Audio audio = new Audio();
+		long begin = System.nanoTime();
+		demo.render(audio);
+		double renderSec = (System.nanoTime() - begin) / 1000000000.0;
+		double audioSec = audio.numFrames / audio.sampleRate;
+		String timing = String.format("%-14s render %8.3f s, audio %8.3f s (%6.2fx real time)",
+				name, renderSec, audioSec, audioSec / renderSec);
+		
+		File refFile = new File(refDir, name + ".wav");
+		if (record) {
+			audio.save(refFile);
+			report.add(timing + "  recorded");
+			return true;
+		} else if (!refFile.exists()) {
+			report.add(timing + "  FAIL: no reference");
+			return false;
+		}
+		Comparison cmp = compare(audio, Audio.load(refFile));
+		boolean ok = cmp.matches();
+		float rate = audio.sampleRate;
+		report.add(String.format("%s  %s: frames %+d, max diff %.5f at %.3f s, SNR %.1f dB, worst LSD %.3f dB at %.3f s",
+				timing, ok ? "ok" : "FAIL", cmp.frameDiff, cmp.maxDiff, cmp.maxDiffFrame / rate,
+				cmp.snrDb, cmp.maxLsdDb, cmp.maxLsdFrame / rate));
+		return ok;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2 || !(args[0].equals("record") || args[0].equals("check"))) {
+			System.err.println("Usage: GoldenAudio record|check <reference dir> [<demo class>...]");
+			System.err.println("References are only valid for the soundfonts and samples they were recorded with:");
+			System.err.println("set -Dfunwithsound.soundFontDir and -Dfunwithsound.sampleDir to the same");
+			System.err.println("directories when recording and checking");
+			System.exit(1);
+		}
+		boolean record = args[0].equals("record");
+		File refDir = new File(args[1]);
+		List<String> demos = new ArrayList<String>();
+		for (int i = 2; i < args.length; i++) {
+			demos.add(args[i]);
+		}
+		if (demos.isEmpty()) {
+			demos.addAll(Arrays.asList(DEMOS));
+		}
+		if (record && !refDir.isDirectory() && !refDir.mkdirs()) {
+			throw new IOException("Couldn't create directory " + refDir);
+		}
+		
+		List<String> report = new ArrayList<String>();
+		int failures = 0;
+		for (String name : demos) {
+			try {
+				if (!check(name, record, refDir, report)) {
+					failures++;
+				}
+			} catch (Exception e) {
+				// Keep going, so one broken demo doesn't hide the others
+				e.printStackTrace();
+				report.add(String.format("%-14s FAIL: %s", name, e));
+				failures++;
+			}
+		}
+		
+		System.out.println();
+		for (String line : report) {
+			System.out.println(line);
+		}
+		if (!record) {
+			System.out.println(failures == 0 ? "All demos match" : failures + " demo(s) don't match");
+		}
+		System.exit(failures == 0 ? 0 : 1);
+	}
+}
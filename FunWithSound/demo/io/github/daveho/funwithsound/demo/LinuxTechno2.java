@@ -19,6 +19,7 @@ import io.github.daveho.funwithsound.AddAutoPan;
 import io.github.daveho.funwithsound.AddDelay;
 import io.github.daveho.funwithsound.AddReverb;
 import io.github.daveho.funwithsound.AddStaticPan;
+import io.github.daveho.funwithsound.CacheKeySource;
 import io.github.daveho.funwithsound.CustomInstrumentFactoryImpl;
 import io.github.daveho.funwithsound.Figure;
 import io.github.daveho.funwithsound.Instrument;
@@ -221,33 +222,45 @@ public class LinuxTechno2 extends DemoBase {
 	
 	@Override
 	protected void onCreatePlayer(Player player) {
-		player.setCustomInstrumentFactory(new CustomInstrumentFactoryImpl(
-				0, new CustomInstrumentFactoryImpl.CreateCustomInstrument() {
-					@Override
-					public RealizedInstrument create(AudioContext ac) {
-						WeirdSampleBankUGen spu = new WeirdSampleBankUGen(ac);
-						// These samples are local to the project - sorry, Github
-						spu.addSample(0, SampleManager.sample("samples/torvalds-says-linux-noclip.wav"), 0.7, randFreq());
-						spu.addSample(1, SampleManager.sample("samples/torvalds-says-linux-noclip.wav"), 0.9, new SampleRange(3162,  3600)/*, randFreq()*/);
-						spu.addSample(2, SampleManager.sample("samples/201571__julien-matthey__jm-fx-boom-01a.wav"), 0.4);
+		// Use the same random frequencies every time the composition is played
+		rng = new Random(RNG_SEED);
+		player.setCustomInstrumentFactory(new CustomInstrumentFactoryImpl(0, new CreateLinuxSamples()));
+	}
+	
+	// Creates the custom sample bank instrument.  The random frequencies
+	// depend on fields of the composer, so the cache key has to describe them.
+	private class CreateLinuxSamples implements CustomInstrumentFactoryImpl.CreateCustomInstrument, CacheKeySource {
+		@Override
+		public RealizedInstrument create(AudioContext ac) {
+			WeirdSampleBankUGen spu = new WeirdSampleBankUGen(ac);
+			// These samples are local to the project - sorry, Github
+			spu.addSample(0, SampleManager.sample("samples/torvalds-says-linux-noclip.wav"), 0.7, randFreq());
+			spu.addSample(1, SampleManager.sample("samples/torvalds-says-linux-noclip.wav"), 0.9, new SampleRange(3162,  3600)/*, randFreq()*/);
+			spu.addSample(2, SampleManager.sample("samples/201571__julien-matthey__jm-fx-boom-01a.wav"), 0.4);
 
-						spu.addSample(3, SampleManager.sample("samples/torvalds-says-linux-noclip.wav"), 0.7, randFreq());
-						spu.addSample(4, SampleManager.sample("samples/torvalds-says-linux-noclip.wav"), 0.9, new SampleRange(3162,  3600), randFreq());
-						spu.addSample(5, SampleManager.sample("samples/torvalds-says-linux-noclip.wav"), 0.9, new SampleRange(3162,  3600), randFreq());
-						
-						spu.addSample(6, SampleManager.sample("samples/torvalds-says-linux-noclip.wav"), 0.9, new SampleRange(3162,  3600), randFreq());
-						spu.addSample(7, SampleManager.sample("samples/torvalds-says-linux-noclip.wav"), 0.9, new SampleRange(3162,  3600), randFreq());
-						spu.addSample(8, SampleManager.sample("samples/torvalds-says-linux-noclip.wav"), 0.9, new SampleRange(3162,  3600), randFreq());
-						spu.addSample(9, SampleManager.sample("samples/torvalds-says-linux-noclip.wav"), 0.9, new SampleRange(3162,  3600), randFreq());
-						spu.addSample(10, SampleManager.sample("samples/torvalds-says-linux-noclip.wav"), 0.9, new SampleRange(3162,  3600), randFreq());
-						spu.addSample(11, SampleManager.sample("samples/torvalds-says-linux-noclip.wav"), 0.9, new SampleRange(3162,  3600), randFreq());
+			spu.addSample(3, SampleManager.sample("samples/torvalds-says-linux-noclip.wav"), 0.7, randFreq());
+			spu.addSample(4, SampleManager.sample("samples/torvalds-says-linux-noclip.wav"), 0.9, new SampleRange(3162,  3600), randFreq());
+			spu.addSample(5, SampleManager.sample("samples/torvalds-says-linux-noclip.wav"), 0.9, new SampleRange(3162,  3600), randFreq());
+			
+			spu.addSample(6, SampleManager.sample("samples/torvalds-says-linux-noclip.wav"), 0.9, new SampleRange(3162,  3600), randFreq());
+			spu.addSample(7, SampleManager.sample("samples/torvalds-says-linux-noclip.wav"), 0.9, new SampleRange(3162,  3600), randFreq());
+			spu.addSample(8, SampleManager.sample("samples/torvalds-says-linux-noclip.wav"), 0.9, new SampleRange(3162,  3600), randFreq());
+			spu.addSample(9, SampleManager.sample("samples/torvalds-says-linux-noclip.wav"), 0.9, new SampleRange(3162,  3600), randFreq());
+			spu.addSample(10, SampleManager.sample("samples/torvalds-says-linux-noclip.wav"), 0.9, new SampleRange(3162,  3600), randFreq());
+			spu.addSample(11, SampleManager.sample("samples/torvalds-says-linux-noclip.wav"), 0.9, new SampleRange(3162,  3600), randFreq());
 
-						return new RealizedInstrument(spu, ac);
-					}
-				}));
+			return new RealizedInstrument(spu, ac);
+		}
+		
+		@Override
+		public String getCacheKey() {
+			// Change the version if the samples or their parameters are changed
+			return "linux samples v1, seed=" + RNG_SEED + ", freq=" + minFreq + "-" + maxFreq;
+		}
 	}
 	
-	Random rng = new Random(1234567L);
+	static final long RNG_SEED = 1234567L;
+	Random rng = new Random(RNG_SEED);
 	final double minFreq = 100.0;
 	final double maxFreq = 2000.0;
 	private double randFreq() {
@@ -0,0 +1,72 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.UGen;
+import net.beadsproject.beads.data.DataBead;
+import net.beadsproject.beads.ugens.Gain;
+
+/**
+ * Add a convolution reverb effect, using an impulse response
+ * loaded from a sample file (e.g., a recording of a real room.)
+ * The impulse response is loaded and transformed only once
+ * (see {@link ImpulseResponse#get(String, int, float)}), no matter how many
+ * instruments use it.
+ * Accepts parameter configuration via a DataBead.
+ * Note that parameters can only be set at effect creation time,
+ * not during runtime.
+ */
+public class AddConvolutionReverb implements ParamNames, AddEffect {
+	private String irFileName;
+	private DataBead params;
+
+	/**
+	 * Constructor: adds convolution reverb with default parameters.
+	 * 
+	 * @param irFileName the impulse response sample file
+	 */
+	public AddConvolutionReverb(String irFileName) {
+		this(irFileName, Defaults.convolutionReverbDefaults());
+	}
+
+	/**
+	 * Constructor: adds convolution reverb with specified parameters.
+	 * 
+	 * @param irFileName the impulse response sample file
+	 * @param params     the parameters
+	 */
+	public AddConvolutionReverb(String irFileName, DataBead params) {
+		this.irFileName = irFileName;
+		this.params = params;
+	}
+
+	@Override
+	public UGen apply(AudioContext ac, RealizedInstrument info) {
+		ImpulseResponse ir = ImpulseResponse.get(irFileName, ac.getBufferSize(), ac.getSampleRate());
+		
+		ConvolutionUGen conv = new ConvolutionUGen(ac, ir, Util.getInt(params, HEAD_PARTITIONS));
+		conv.addInput(info.tail);
+		
+		// Mix the convolved signal with the original signal
+		Gain wet = new Gain(ac, 2, Util.getFloat(params, WET_GAIN));
+		wet.addInput(conv);
+		Gain mix = new Gain(ac, 2);
+		mix.addInput(wet);
+		Util.addDryInput(ac, mix, info.tail, Util.getFloat(params, DRY_GAIN, 1.0));
+		
+		return mix;
+	}
+}
@@ -64,8 +64,8 @@ public class AddPingPongStereoDelays implements ParamNames, AddEffect {
 		// A mixer to combine the original signal and the delayed signals
 		Gain mixer = new Gain(ac, 2);
 		
-		// Pass the original signal straight through to the mixer
-		mixer.addInput(info.tail);
+		// Pass the original signal through to the mixer
+		Util.addDryInput(ac, mixer, info.tail, Util.getFloat(params, DRY_GAIN, 1.0));
 		
 		float firstDelayGain = Util.getFloat(params, FIRST_DELAY_GAIN);
 		float gainDrop = Util.getFloat(params, GAIN_DROP);
@@ -58,7 +58,7 @@ public class AddReverb implements ParamNames, AddEffect {
 		// A Gain is used to mix the reverb output with the original signal
 		Gain mix = new Gain(ac, 2);
 		mix.addInput(reverb);
-		mix.addInput(info.tail);
+		Util.addDryInput(ac, mix, info.tail, Util.getFloat(params, DRY_GAIN, 1.0));
 		
 		// The Gain is now at the end of the effects chain
 		return mix;
@@ -0,0 +1,50 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import java.io.IOException;
+
+/**
+ * Destination for rendered audio, such as an encoder writing
+ * a file.  See {@link Player#render(AudioSink)}.
+ */
+public interface AudioSink {
+	/**
+	 * Prepare to receive audio.
+	 * 
+	 * @param sampleRate   the sample rate
+	 * @param numChannels  the number of channels
+	 * @throws IOException if an error occurs
+	 */
+	public void open(float sampleRate, int numChannels) throws IOException;
+	
+	/**
+	 * Receive a buffer of audio.
+	 * The sink must not retain a reference to the buffer
+	 * after this method returns.
+	 * 
+	 * @param buf        the audio samples, indexed by channel and frame
+	 * @param numFrames  the number of frames
+	 * @throws IOException if an error occurs
+	 */
+	public void write(float[][] buf, int numFrames) throws IOException;
+	
+	/**
+	 * Finish receiving audio.
+	 * 
+	 * @throws IOException if an error occurs
+	 */
+	public void close() throws IOException;
+}
@@ -0,0 +1,101 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import java.io.IOException;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.UGen;
+
+/**
+ * UGen which passes its input to an {@link AudioSink}.
+ * Used by {@link Player} to render to an {@link AudioSink}.
+ * Since UGens can't throw checked exceptions, an IOException
+ * thrown by the sink is saved, and the AudioContext is stopped
+ * (so that rendering ends early): call {@link #checkError()}
+ * once rendering is complete.
+ * Optionally, a number of frames at the beginning are replaced
+ * by silence before being passed to the sink.
+ */
+class AudioSinkRecorder extends UGen {
+	private final AudioSink sink;
+	private long muteFrames;
+	private float[][] scratch;
+	private IOException error;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param ac           the AudioContext
+	 * @param numChannels  the number of channels
+	 * @param sink         the {@link AudioSink}
+	 */
+	public AudioSinkRecorder(AudioContext ac, int numChannels, AudioSink sink) {
+		this(ac, numChannels, sink, 0L);
+	}
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param ac           the AudioContext
+	 * @param numChannels  the number of channels
+	 * @param sink         the {@link AudioSink}
+	 * @param muteFrames   the number of frames at the beginning to
+	 *                     replace with silence
+	 */
+	public AudioSinkRecorder(AudioContext ac, int numChannels, AudioSink sink, long muteFrames) {
+		super(ac, numChannels, 0);
+		this.sink = sink;
+		this.muteFrames = muteFrames;
+		if (muteFrames > 0L) {
+			this.scratch = new float[numChannels][bufferSize];
+		}
+	}
+	
+	@Override
+	public void calculateBuffer() {
+		if (error == null) {
+			try {
+				if (muteFrames > 0L) {
+					// Pass on silence for the muted frames, followed by
+					// the part of the buffer after them
+					int mute = (int) Math.min(muteFrames, bufferSize);
+					for (int c = 0; c < bufIn.length; c++) {
+						System.arraycopy(bufIn[c], mute, scratch[c], mute, bufferSize - mute);
+					}
+					muteFrames -= mute;
+					sink.write(scratch, bufferSize);
+					return;
+				}
+				sink.write(bufIn, bufferSize);
+			} catch (IOException e) {
+				// There's no point rendering the rest of the audio
+				error = e;
+				context.stop();
+			}
+		}
+	}
+	
+	/**
+	 * Throw the exception (if any) thrown by the {@link AudioSink}.
+	 * 
+	 * @throws IOException the exception thrown by the {@link AudioSink}
+	 */
+	public void checkError() throws IOException {
+		if (error != null) {
+			throw error;
+		}
+	}
+}
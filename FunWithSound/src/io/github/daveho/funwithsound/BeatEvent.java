@@ -0,0 +1,106 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+/**
+ * A beat of the composition's {@link TempoMap}, as scheduled
+ * for playback.  BeatEvents are computed before playback starts,
+ * and delivered (like {@link NoteEvent}s) before the frame
+ * of audio in which they occur is rendered.
+ */
+public class BeatEvent {
+	private final long timeStamp;
+	private final long sampleIndex;
+	private final int frameOffset;
+	private final int measure;
+	private final int beat;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param timeStamp    the timestamp in microseconds
+	 * @param sampleIndex  the index of the sample frame at which the beat occurs
+	 * @param frameOffset  the offset of the beat within the audio buffer
+	 *                     in which it occurs
+	 * @param measure      the measure
+	 * @param beat         the beat within the measure (0 for the first beat)
+	 */
+	public BeatEvent(long timeStamp, long sampleIndex, int frameOffset, int measure, int beat) {
+		this.timeStamp = timeStamp;
+		this.sampleIndex = sampleIndex;
+		this.frameOffset = frameOffset;
+		this.measure = measure;
+		this.beat = beat;
+	}
+	
+	/**
+	 * Get the timestamp (in microseconds, on the same timeline as
+	 * {@link NoteEvent}s and {@link Player#getCurrentTimestamp()}.)
+	 * 
+	 * @return the timestamp in microseconds
+	 */
+	public long getTimeStamp() {
+		return timeStamp;
+	}
+	
+	/**
+	 * Get the index of the sample frame at which the beat occurs.
+	 * 
+	 * @return the sample index
+	 */
+	public long getSampleIndex() {
+		return sampleIndex;
+	}
+	
+	/**
+	 * Get the offset (in sample frames) of the beat within the
+	 * audio buffer in which it occurs.
+	 * 
+	 * @return the offset within the audio buffer
+	 */
+	public int getFrameOffset() {
+		return frameOffset;
+	}
+	
+	/**
+	 * Get the measure.
+	 * 
+	 * @return the measure
+	 */
+	public int getMeasure() {
+		return measure;
+	}
+	
+	/**
+	 * Get the beat within the measure.
+	 * 
+	 * @return the beat within the measure (0 for the first beat)
+	 */
+	public int getBeat() {
+		return beat;
+	}
+	
+	/**
+	 * @return true if this is the first beat of a measure, false otherwise
+	 */
+	public boolean isDownbeat() {
+		return beat == 0;
+	}
+	
+	@Override
+	public String toString() {
+		return "BeatEvent[measure=" + measure + ",beat=" + beat + ",timeStamp=" + timeStamp + "]";
+	}
+}
@@ -0,0 +1,36 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+/**
+ * Interface for objects affecting rendered audio (such as
+ * {@link CustomInstrumentFactory} and {@link AddEffect} implementations)
+ * that can't be hashed reflectively when computing the cache key
+ * of a chunk rendered by {@link SegmentRenderer}: for example,
+ * because they refer to fields of an enclosing object, or to UGens.
+ * If an object implements this interface, its cache key is used
+ * instead of its fields.  Chunks which depend on objects that
+ * can't be hashed, and don't implement this interface, are not cached.
+ */
+public interface CacheKeySource {
+	/**
+	 * Get a string describing everything about this object that
+	 * affects rendered audio.  Changing any setting that affects
+	 * the audio must change the string.
+	 * 
+	 * @return the cache key
+	 */
+	public String getCacheKey();
+}
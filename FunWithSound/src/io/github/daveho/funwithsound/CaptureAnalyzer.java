@@ -0,0 +1,289 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import java.util.Arrays;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * Analyzes captured (live-played) MIDI notes, turning them into a
+ * {@link Figure}.  Notes are added as they are played, so the analyzer
+ * can be fed during playback, and a figure containing the notes
+ * completed so far can be created at any time.  Notes starting within a
+ * tolerance of each other are grouped into a single {@link Chord}, and
+ * strike times can be quantized to a grid (in beats).  Times are
+ * composition times (in microseconds), which are converted to
+ * beats using the composition's {@link TempoMap}.
+ * The methods are synchronized, so notes can be added by one thread
+ * (e.g., a MIDI receiver) while another creates figures.
+ */
+public class CaptureAnalyzer {
+	/**
+	 * Default tolerance for grouping notes into chords: 30 milliseconds.
+	 */
+	public static final long DEFAULT_CHORD_TOLERANCE_US = 30000L;
+	
+	private static final int NUM_NOTES = 128;
+	private static final int INITIAL_CAPACITY = 64;
+	
+	private final TempoMap tempoMap;
+	private long chordToleranceUs;
+	private double gridBeats;
+	
+	// Notes currently being held, indexed by MIDI note number
+	private final boolean[] held;
+	private final long[] heldStartUs;
+	private final int[] heldVelocity;
+	
+	// Completed notes, in order of start time
+	private long[] startUs;
+	private long[] endUs;
+	private int[] velocity;
+	private int[] pitch;
+	private int size;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param tempoMap the {@link TempoMap} used to convert times to beats
+	 */
+	public CaptureAnalyzer(TempoMap tempoMap) {
+		this.tempoMap = tempoMap;
+		this.chordToleranceUs = DEFAULT_CHORD_TOLERANCE_US;
+		this.held = new boolean[NUM_NOTES];
+		this.heldStartUs = new long[NUM_NOTES];
+		this.heldVelocity = new int[NUM_NOTES];
+		this.startUs = new long[INITIAL_CAPACITY];
+		this.endUs = new long[INITIAL_CAPACITY];
+		this.velocity = new int[INITIAL_CAPACITY];
+		this.pitch = new int[INITIAL_CAPACITY];
+	}
+	
+	/**
+	 * Set the tolerance for grouping notes into chords: notes starting
+	 * within this much time of the first note of a chord are added to it.
+	 * 
+	 * @param chordToleranceUs the tolerance in microseconds (0 to only
+	 *                         group notes that start at the same time)
+	 */
+	public synchronized void setChordToleranceUs(long chordToleranceUs) {
+		this.chordToleranceUs = chordToleranceUs;
+	}
+	
+	/**
+	 * Set the grid to which strike start times and durations are quantized.
+	 * 
+	 * @param gridBeats the grid spacing in beats (e.g., 0.25 for
+	 *                  sixteenth notes in 4/4), or 0 for no quantization
+	 */
+	public synchronized void setGrid(double gridBeats) {
+		this.gridBeats = gridBeats;
+	}
+	
+	/**
+	 * Add a captured MIDI message.  NOTE_ON and NOTE_OFF messages
+	 * (including NOTE_ON with velocity 0) are analyzed: other messages
+	 * are ignored.
+	 * 
+	 * @param msg  the MidiMessage
+	 * @param us   the composition time (in microseconds) of the message
+	 */
+	public void send(MidiMessage msg, long us) {
+		if (msg instanceof ShortMessage) {
+			ShortMessage smsg = (ShortMessage) msg;
+			if (smsg.getCommand() == ShortMessage.NOTE_ON && smsg.getData2() > 0) {
+				noteOn(us, smsg.getData1(), smsg.getData2());
+			} else if (smsg.getCommand() == ShortMessage.NOTE_ON || smsg.getCommand() == ShortMessage.NOTE_OFF) {
+				noteOff(us, smsg.getData1());
+			}
+		}
+	}
+	
+	/**
+	 * Add the start of a note.
+	 * 
+	 * @param us        the composition time (in microseconds)
+	 * @param note      the MIDI note number
+	 * @param velocity  the velocity
+	 */
+	public synchronized void noteOn(long us, int note, int velocity) {
+		if (note < 0 || note >= NUM_NOTES) {
+			return;
+		}
+		if (held[note]) {
+			// Retriggered without a note off
+			noteOff(us, note);
+		}
+		held[note] = true;
+		heldStartUs[note] = us;
+		heldVelocity[note] = velocity;
+	}
+	
+	/**
+	 * Add the end of a note.  The note is complete, and will be
+	 * part of figures created from now on.
+	 * 
+	 * @param us    the composition time (in microseconds)
+	 * @param note  the MIDI note number
+	 */
+	public synchronized void noteOff(long us, int note) {
+		if (note < 0 || note >= NUM_NOTES || !held[note]) {
+			return;
+		}
+		held[note] = false;
+		if (size == pitch.length) {
+			int capacity = size*2;
+			startUs = Arrays.copyOf(startUs, capacity);
+			endUs = Arrays.copyOf(endUs, capacity);
+			velocity = Arrays.copyOf(velocity, capacity);
+			pitch = Arrays.copyOf(pitch, capacity);
+		}
+		
+		// Insert in order of start time: notes usually end in roughly
+		// the order they start, so this rarely moves more than a few notes
+		long start = heldStartUs[note];
+		int pos = size;
+		while (pos > 0 && startUs[pos - 1] > start) {
+			pos--;
+		}
+		int n = size - pos;
+		System.arraycopy(startUs, pos, startUs, pos + 1, n);
+		System.arraycopy(endUs, pos, endUs, pos + 1, n);
+		System.arraycopy(velocity, pos, velocity, pos + 1, n);
+		System.arraycopy(pitch, pos, pitch, pos + 1, n);
+		startUs[pos] = start;
+		endUs[pos] = us;
+		velocity[pos] = heldVelocity[note];
+		pitch[pos] = note;
+		size++;
+	}
+	
+	/**
+	 * Get the number of completed notes.
+	 * 
+	 * @return the number of completed notes
+	 */
+	public synchronized int getNumNotes() {
+		return size;
+	}
+	
+	/**
+	 * Get the measure in which the first completed note starts.
+	 * 
+	 * @return the measure of the first note, or -1 if there are no notes
+	 */
+	public synchronized int getFirstMeasure() {
+		return size > 0 ? tempoMap.beatToMeasure(tempoMap.usToBeat(startUs[0])) : -1;
+	}
+	
+	/**
+	 * Remove all notes (completed and held.)
+	 */
+	public synchronized void clear() {
+		size = 0;
+		Arrays.fill(held, false);
+	}
+	
+	/**
+	 * Create a figure from the completed notes, relative to the
+	 * measure in which the first note starts.
+	 * 
+	 * @param instrument the {@link Instrument} to play the figure
+	 * @return the figure
+	 */
+	public synchronized SimpleFigure getFigure(Instrument instrument) {
+		return getFigure(instrument, Math.max(0, getFirstMeasure()));
+	}
+	
+	/**
+	 * Create a figure from the completed notes, relative to the
+	 * beginning of the given measure, so that it can be added to
+	 * the composition at that measure to play the notes as they were
+	 * captured (e.g., using {@link Composer#at(int, Figure)}.)
+	 * Notes starting before the measure are not included.
+	 * 
+	 * @param instrument  the {@link Instrument} to play the figure
+	 * @param measure     the measure
+	 * @return the figure
+	 */
+	public synchronized SimpleFigure getFigure(Instrument instrument, int measure) {
+		Tempo tempo = tempoMap.getBaseTempo();
+		double measureBeat = tempoMap.measureToBeat(measure);
+		Rhythm rhythm = new Rhythm();
+		Melody melody = new Melody();
+		
+		// The chord being built: its strike, and its pitches
+		long chordStartUs = 0L;
+		double chordBeat = 0.0, chordEndBeat = 0.0;
+		int chordVelocity = 0;
+		int[] chordPitches = new int[8];
+		int numPitches = 0;
+		
+		for (int i = 0; i < size; i++) {
+			double beat = quantize(tempoMap.usToBeat(startUs[i]));
+			if (beat < measureBeat) {
+				continue;
+			}
+			double endBeat = quantize(tempoMap.usToBeat(endUs[i]));
+			if (gridBeats > 0.0 && endBeat <= beat) {
+				endBeat = beat + gridBeats;
+			}
+			
+			// Notes within the tolerance of the chord's first note
+			// (or quantized to the same beat) join the chord
+			boolean join = numPitches > 0
+					&& (startUs[i] - chordStartUs <= chordToleranceUs || beat == chordBeat);
+			if (!join) {
+				if (numPitches > 0) {
+					addChord(rhythm, melody, tempo, chordBeat - measureBeat, chordEndBeat - chordBeat,
+							chordVelocity, chordPitches, numPitches);
+				}
+				chordStartUs = startUs[i];
+				chordBeat = beat;
+				chordEndBeat = endBeat;
+				chordVelocity = 0;
+				numPitches = 0;
+			}
+			chordEndBeat = Math.max(chordEndBeat, endBeat);
+			chordVelocity = Math.max(chordVelocity, velocity[i]);
+			if (numPitches == chordPitches.length) {
+				chordPitches = Arrays.copyOf(chordPitches, numPitches*2);
+			}
+			chordPitches[numPitches++] = pitch[i];
+		}
+		if (numPitches > 0) {
+			addChord(rhythm, melody, tempo, chordBeat - measureBeat, chordEndBeat - chordBeat,
+					chordVelocity, chordPitches, numPitches);
+		}
+		
+		SimpleFigure result = new SimpleFigure();
+		result.setRhythm(rhythm);
+		result.setMelody(melody);
+		result.setInstrument(instrument);
+		return result;
+	}
+	
+	private double quantize(double beat) {
+		return gridBeats > 0.0 ? Math.round(beat / gridBeats) * gridBeats : beat;
+	}
+	
+	private static void addChord(Rhythm rhythm, Melody melody, Tempo tempo, double beat, double durationBeats,
+			int velocity, int[] pitches, int numPitches) {
+		rhythm.add(new Strike(tempo.beatToUs(beat), tempo.beatToUs(durationBeats), velocity));
+		melody.add(Chord.of(Arrays.copyOf(pitches, numPitches)));
+	}
+}
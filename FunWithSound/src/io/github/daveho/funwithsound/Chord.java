@@ -15,9 +15,9 @@
 
 package io.github.daveho.funwithsound;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * A chord is a collection of one or more midi pitches (note numbers).
@@ -26,15 +26,51 @@ import java.util.List;
  * to be represented (so that they are played together).
  * Note that a chord does not represent any start time or
  * duration: that is represented by a {@link Strike}.
+ * The pitches are stored in an int array, which is shared
+ * (copy-on-write) between a chord and its clones, and between all
+ * single-note chords with the same (MIDI range) pitch.  Use
+ * {@link #size()} and {@link #get(int)} to access the pitches
+ * without boxing: the Iterable interface is a boxed view.
  */
 public class Chord implements Iterable<Integer>, Cloneable {
-	private List<Integer> pitches;
+	private static final int[] EMPTY = new int[0];
+	
+	// Shared pitch arrays for single-note chords
+	private static final int[][] SINGLE_NOTES = new int[128][];
+	static {
+		for (int i = 0; i < SINGLE_NOTES.length; i++) {
+			SINGLE_NOTES[i] = new int[] { i };
+		}
+	}
+	
+	private int[] pitches;
+	private int size;
+	private boolean shared;
 	
 	/**
 	 * Constructor.
 	 */
 	public Chord() {
-		pitches = new ArrayList<Integer>();
+		pitches = EMPTY;
+		shared = true;
+	}
+	
+	/**
+	 * Create a chord with the given pitches.
+	 * 
+	 * @param pitches the pitches (MIDI note numbers)
+	 * @return the chord
+	 */
+	public static Chord of(int... pitches) {
+		Chord chord = new Chord();
+		if (pitches.length == 1 && pitches[0] >= 0 && pitches[0] < SINGLE_NOTES.length) {
+			chord.pitches = SINGLE_NOTES[pitches[0]];
+		} else if (pitches.length > 0) {
+			chord.pitches = pitches.clone();
+			chord.shared = false;
+		}
+		chord.size = pitches.length;
+		return chord;
 	}
 	
 	/**
@@ -43,7 +79,17 @@ public class Chord implements Iterable<Integer>, Cloneable {
 	 * @param pitch the pitch to add
 	 */
 	public void add(int pitch) {
-		pitches.add(pitch);
+		if (size == 0 && pitch >= 0 && pitch < SINGLE_NOTES.length) {
+			pitches = SINGLE_NOTES[pitch];
+			shared = true;
+		} else {
+			if (shared || size == pitches.length) {
+				pitches = Arrays.copyOf(pitches, Math.max(4, size*2));
+				shared = false;
+			}
+			pitches[size] = pitch;
+		}
+		size++;
 	}
 	
 	/**
@@ -52,7 +98,7 @@ public class Chord implements Iterable<Integer>, Cloneable {
 	 * @return the number of pitches
 	 */
 	public int size() {
-		return pitches.size();
+		return size;
 	}
 	
 	/**
@@ -62,20 +108,78 @@ public class Chord implements Iterable<Integer>, Cloneable {
 	 * @return the pitch
 	 */
 	public int get(int index) {
-		return pitches.get(index);
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+		}
+		return pitches[index];
+	}
+	
+	/**
+	 * Get the pitches as an array.
+	 * 
+	 * @return a new array containing the pitches
+	 */
+	public int[] toArray() {
+		return Arrays.copyOf(pitches, size);
+	}
+	
+	/**
+	 * Create a chord with all of the pitches of this chord
+	 * shifted by the same number of semitones.
+	 * 
+	 * @param semitones the number of semitones (negative to shift down)
+	 * @return the transposed chord
+	 */
+	public Chord transpose(int semitones) {
+		if (semitones == 0) {
+			return clone();
+		}
+		if (size == 1) {
+			return of(pitches[0] + semitones);
+		}
+		int[] result = new int[size];
+		for (int i = 0; i < size; i++) {
+			result[i] = pitches[i] + semitones;
+		}
+		Chord chord = new Chord();
+		chord.pitches = result;
+		chord.size = size;
+		chord.shared = false;
+		return chord;
 	}
 	
 	@Override
 	public Iterator<Integer> iterator() {
-		return pitches.iterator();
+		return new Iterator<Integer>() {
+			private int index;
+			
+			@Override
+			public boolean hasNext() {
+				return index < size;
+			}
+			
+			@Override
+			public Integer next() {
+				if (index >= size) {
+					throw new NoSuchElementException();
+				}
+				return pitches[index++];
+			}
+			
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
 	}
 	
 	@Override
 	public Chord clone() {
 		try {
+			// The clones share the pitch array until one of them is modified
 			Chord dup = (Chord) super.clone();
-			dup.pitches = new ArrayList<Integer>();
-			dup.pitches.addAll(this.pitches);
+			this.shared = true;
+			dup.shared = true;
 			return dup;
 		} catch (CloneNotSupportedException e) {
 			throw new IllegalStateException("This can't happen", e);
@@ -15,6 +15,9 @@
 
 package io.github.daveho.funwithsound;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * The composer class builds upon the model classes to provide
  * a simple domain-specific language for defining compositions
@@ -28,11 +31,19 @@ package io.github.daveho.funwithsound;
  * or {@link #melodicMinor(int)}.
  * The composer produces a {@link Composition}
  * object as its product.
+ * Independent sections of a composition can be built concurrently
+ * using segments (see {@link #segment(int)}), which are merged
+ * back into the composition using {@link #merge(Composer...)}.
  */
 public class Composer {
+	// Tolerance used when determining which measure a beat offset
+	// (converted from microseconds) falls in
+	private static final double BEAT_EPSILON = 1e-5;
+	
 	private Composition composition;
 	private int measure;
 	private double percussiveStrikeDuration;
+	private final Composer parent;
 	
 	/**
 	 * Constructor.
@@ -40,6 +51,7 @@ public class Composer {
 	 * scale to E flat major rooted at E3.
 	 */
 	public Composer() {
+		parent = null;
 		composition = new Composition();
 		major(51); // Default scale is E flat major rooted in octave 3
 		measure = 0;
@@ -50,6 +62,58 @@ public class Composer {
 		composition.setUsingDefaultScale(true);
 	}
 	
+	// Constructor for a segment
+	private Composer(Composer parent, int measure) {
+		this.parent = parent;
+		this.composition = parent.composition.createSegment();
+		this.measure = measure;
+		this.percussiveStrikeDuration = parent.percussiveStrikeDuration;
+	}
+	
+	/**
+	 * Create a segment: a composer with its own current measure,
+	 * which adds figures to its own list of events, so that
+	 * segments can be built concurrently (each by one thread.)
+	 * Segments share this composer's tempo, tempo map, and scale, which
+	 * should be set before creating segments (and which can't be
+	 * changed using a segment.)  Figures shared between segments
+	 * must not be modified while the segments are being built.
+	 * Use {@link #merge(Composer...)} to add the segments' figures
+	 * to the composition.
+	 * 
+	 * @param measure the segment's initial current measure
+	 * @return the segment
+	 */
+	public Composer segment(int measure) {
+		return new Composer(this, measure);
+	}
+	
+	/**
+	 * Merge segments (created by {@link #segment(int)}) into the
+	 * composition.  The composition's figures are ordered by start time
+	 * after merging.  This should be called once the segments are
+	 * complete (and no longer being modified by other threads.)
+	 * 
+	 * @param segments the segments to merge
+	 */
+	public void merge(Composer... segments) {
+		List<Composition> list = new ArrayList<Composition>();
+		for (Composer segment : segments) {
+			if (segment.parent != this) {
+				throw new IllegalArgumentException("Not a segment of this composer");
+			}
+			list.add(segment.composition);
+		}
+		composition.merge(list);
+	}
+	
+	// Segments share the tempo, tempo map, and scale of the parent
+	private void checkNotSegment() {
+		if (parent != null) {
+			throw new IllegalStateException("The tempo and scale can't be changed in a segment");
+		}
+	}
+	
 	/**
 	 * Set the duration of a percussive strike (created by the
 	 * {@link #p(double)} and {@link #p(double, int)} methods.
@@ -124,6 +188,17 @@ public class Composer {
 		return new Instrument(InstrumentType.SAMPLE_BANK);
 	}
 	
+	/**
+	 * Create a multisample instrument.
+	 * Use {@link Instrument#addZone(int, int, int, String)} to
+	 * specify which samples are played for which notes.
+	 * 
+	 * @return a multisample instrument
+	 */
+	public Instrument multisample() {
+		return new Instrument(InstrumentType.MULTISAMPLE);
+	}
+	
 	/**
 	 * Get the composition.
 	 * 
@@ -140,9 +215,48 @@ public class Composer {
 	 * @param beatsPerMeasure  number of beats per measure
 	 */
 	public void tempo(int beatsPerMinute, int beatsPerMeasure) {
+		checkNotSegment();
 		composition.setTempo(new Tempo(beatsPerMinute, beatsPerMeasure));
 	}
 	
+	/**
+	 * Change the tempo abruptly at the beginning of the specified measure.
+	 * (Strikes are specified in beats, so they follow tempo changes.)
+	 * 
+	 * @param measure         the measure
+	 * @param beatsPerMinute  the new number of beats per minute
+	 */
+	public void tempoChange(int measure, double beatsPerMinute) {
+		checkNotSegment();
+		composition.getTempoMap().addTempoChange(measure, beatsPerMinute);
+	}
+	
+	/**
+	 * Change the tempo gradually (accelerando or ritardando), starting
+	 * at the previous tempo change (or the beginning of the composition),
+	 * and reaching the specified tempo at the beginning of the
+	 * specified measure.
+	 * 
+	 * @param measure         the measure
+	 * @param beatsPerMinute  the new number of beats per minute
+	 */
+	public void tempoRamp(int measure, double beatsPerMinute) {
+		checkNotSegment();
+		composition.getTempoMap().addTempoRamp(measure, beatsPerMinute);
+	}
+	
+	/**
+	 * Change the number of beats per measure, starting at the
+	 * specified measure.
+	 * 
+	 * @param measure          the measure
+	 * @param beatsPerMeasure  the new number of beats per measure
+	 */
+	public void meterChange(int measure, int beatsPerMeasure) {
+		checkNotSegment();
+		composition.getTempoMap().addMeterChange(measure, beatsPerMeasure);
+	}
+	
 	/**
 	 * Set the scale for the composition to a major scale,
 	 * starting with the specified MIDI note number.
@@ -183,7 +297,19 @@ public class Composer {
 		setCompositionScale(Scale.melodicMinor(start));
 	}
 
+	/**
+	 * Set the scale for the composition.  This is useful for
+	 * modes (see {@link Scale#mode(int)}) and scales created
+	 * from arbitrary intervals (see {@link Scale#fromIntervals(int, int...)}.)
+	 * 
+	 * @param scale the {@link Scale}
+	 */
+	public void scale(Scale scale) {
+		setCompositionScale(scale);
+	}
+
 	private void setCompositionScale(Scale scale) {
+		checkNotSegment();
 		composition.setScale(scale);
 		composition.setUsingDefaultScale(false);
 	}
@@ -215,11 +341,7 @@ public class Composer {
 	 * @return the {@link Chord} representing the notes
 	 */
 	public Chord an(int... pitches) {
-		Chord chord = new Chord();
-		for (int pitch : pitches) {
-			chord.add(pitch);
-		}
-		return chord;
+		return Chord.of(pitches);
 	}
 
 	/**
@@ -284,11 +406,7 @@ public class Composer {
 	 * @return the shifted note/chord
 	 */
 	public Chord xn(int octave, Chord orig) {
-		Chord result = new Chord();
-		for (Integer note : orig) {
-			result.add(note + 12*octave);
-		}
-		return result;
+		return orig.transpose(12*octave);
 	}
 	
 	/**
@@ -306,6 +424,30 @@ public class Composer {
 		return result;
 	}
 	
+	/**
+	 * Transpose a note/chord by a number of steps in the
+	 * composition's {@link Scale}.
+	 * 
+	 * @param steps  the number of steps: negative to transpose down
+	 * @param orig   the original note/chord
+	 * @return the transposed note/chord
+	 */
+	public Chord tn(int steps, Chord orig) {
+		return composition.getScale().transpose(orig, steps);
+	}
+	
+	/**
+	 * Transpose a {@link Melody} by a number of steps in the
+	 * composition's {@link Scale}.
+	 * 
+	 * @param steps  the number of steps: negative to transpose down
+	 * @param orig   the melody to transpose
+	 * @return the transposed melody
+	 */
+	public Melody tm(int steps, Melody orig) {
+		return composition.getScale().transpose(orig, steps);
+	}
+	
 	/**
 	 * Shift the octave in the melody of a {@link Figure}. 
 	 * 
@@ -481,7 +623,7 @@ public class Composer {
 		
 		for (int i = 0; i < n; i++) {
 			Strike s = new Strike(
-					(long) (first.getStartUs() + (i*spacing*composition.getTempo().getUsPerBeat())),
+					first.getStartUs() + composition.getTempo().beatToUs(i*spacing),
 					first.getDurationUs(),
 					first.getVelocity());
 			result.add(s);
@@ -526,6 +668,26 @@ public class Composer {
 		return result;
 	}
 	
+	/**
+	 * Create an empty {@link ScoreBuffer} using the composition's tempo,
+	 * for generating notes with a {@link Generator}.
+	 * 
+	 * @return the {@link ScoreBuffer}
+	 */
+	public ScoreBuffer sb() {
+		return new ScoreBuffer(composition.getTempo());
+	}
+	
+	/**
+	 * Create a {@link Generator} using the composition's {@link Scale}.
+	 * 
+	 * @param seed the random number generator seed
+	 * @return the {@link Generator}
+	 */
+	public Generator gen(long seed) {
+		return new Generator(composition.getScale(), seed);
+	}
+	
 	/**
 	 * Create a figure from a {@link Rhythm}, {@link Melody}, and {@link Instrument}.
 	 * 
@@ -580,30 +742,34 @@ public class Composer {
 //		System.out.printf("measure %d\n", measure);
 		// Add figures to composition, keeping track of where the
 		// beat offsets occur
-		double lastBeatOffsetUs = doAddFigure(this.measure, figure);
-		
-		// Based on start offsets, determine how many measures these
-		// figures span
-		Tempo tempo = composition.getTempo();
-		double numMeasures = Math.floor(
-				lastBeatOffsetUs / (tempo.getBeatsPerMeasure() * tempo.getUsPerBeat())) + 1;
-		this.measure += ((int)numMeasures);
-		
+		doAddFigure(this.measure, figure);
+		this.measure = nextMeasure(this.measure, figure);
 		return this;
 	}
 	
+	// Based on start offsets, determine how many measures a figure
+	// added at given measure spans (allowing for rounding of the offsets
+	// to microseconds), and return the measure following it.
+	private int nextMeasure(int measure, Figure figure) {
+		// The offset of the last strike is cached by the figure
+		long lastBeatOffsetUs = Math.max(0L, FigureInfo.of(figure).maxStartUs);
+		TempoMap tempoMap = composition.getTempoMap();
+		double lastBeat = tempoMap.measureToBeat(measure)
+				+ composition.getTempo().usToBeat(lastBeatOffsetUs) + BEAT_EPSILON;
+		return tempoMap.beatToMeasure(lastBeat) + 1;
+	}
+	
 	/**
 	 * Repeatedly call {@link #add(Figure)} a specified number of times.
+	 * The figure is stored once in the composition, and repeated
+	 * as it is played (unless the meter changes while it repeats.)
 	 * 
 	 * @param n       number of times to add the figure
 	 * @param figure  the figure to add
 	 * @return this composer: allows calls to be chained
 	 */
 	public Composer addn(int n, Figure figure) {
-		for (int i = 0; i < n; i++) {
-			add(figure);
-		}
-		return this;
+		return addRepeated(n, false, figure);
 	}
 	
 	/**
@@ -623,16 +789,15 @@ public class Composer {
 	
 	/**
 	 * Repeatedly call {@link #addseq(Figure...)} a specified number of times.
+	 * As with {@link #addn(int, Figure)}, the figures are stored once
+	 * and repeated as they are played.
 	 * 
 	 * @param n        number of times
 	 * @param figures  the sequence of figures to repeatedly add
 	 * @return this composer: allows calls to be chained
 	 */
 	public Composer addseqn(int n, Figure... figures) {
-		for (int i = 0; i < n; i++) {
-			addseq(figures);
-		}
-		return this;
+		return addRepeated(n, false, figures);
 	}
 	
 	/**
@@ -652,16 +817,50 @@ public class Composer {
 	}
 	
 	/**
-	 * Repeatedly call {@link #add1n(int, Figure)} a specified number of times.
+	 * Repeatedly call {@link #add1(Figure)} a specified number of times.
 	 * 
 	 * @param n       number of times to add the figure
 	 * @param figure  the figure to add
-	 * @return this composer: allows calls to be chained
+	 * @return this composer: allows calls to add to be chained
 	 */
 	public Composer add1n(int n, Figure figure) {
-		for (int i = 0; i < n; i++) {
-			add1(figure);
+		return addRepeated(n, true, figure);
+	}
+	
+	// Add a sequence of figures n times, advancing the current measure
+	// after each figure as add (or add1, if oneMeasure is true) would.
+	// As long as the meter doesn't change, every pass through the
+	// sequence spans the same number of beats, so each figure is
+	// stored once, as a repeating PlayFigureEvent.
+	private Composer addRepeated(int n, boolean oneMeasure, Figure... figures) {
+		int start = this.measure;
+		int[] measures = new int[figures.length];
+		int m = start;
+		for (int i = 0; i < figures.length; i++) {
+			measures[i] = m;
+			m = oneMeasure ? m + 1 : nextMeasure(m, figures[i]);
 		}
+		int period = m - start;
+		
+		TempoMap tempoMap = composition.getTempoMap();
+		if (n <= 1 || period == 0 || tempoMap.hasMeterChange(start + 1, start + n*period - 1)) {
+			for (int j = 0; j < n; j++) {
+				for (Figure f : figures) {
+					if (oneMeasure) {
+						add1(f);
+					} else {
+						add(f);
+					}
+				}
+			}
+			return this;
+		}
+		
+		double periodBeats = tempoMap.measureToBeat(start + period) - tempoMap.measureToBeat(start);
+		for (int i = 0; i < figures.length; i++) {
+			doAddFigure(measures[i], figures[i], n, periodBeats);
+		}
+		this.measure = start + n*period;
 		return this;
 	}
 	
@@ -679,21 +878,24 @@ public class Composer {
 		return this;
 	}
 
-	private double doAddFigure(int measure, Figure figure) {
-		Tempo tempo = composition.getTempo();
-		double lastBeatOffsetUs = 0;
+	private void doAddFigure(int measure, Figure figure) {
+		doAddFigure(measure, figure, 1, 0.0);
+	}
+
+	private void doAddFigure(int measure, Figure figure, int repeatCount, double periodBeats) {
+		TempoMap tempoMap = composition.getTempoMap();
+		double startBeat = tempoMap.measureToBeat(measure);
+		long startUs = tempoMap.beatToUs(startBeat);
 		for (SimpleFigure sf : figure) {
 			PlayFigureEvent evt = new PlayFigureEvent();
 			evt.setFigure(sf);
-			evt.setStartUs(measure * tempo.getBeatsPerMeasure() * tempo.getUsPerBeat());
-			composition.add(evt);
-			for (Strike strike : sf.getRhythm()) {
-				if (strike.getStartUs() > lastBeatOffsetUs) {
-					lastBeatOffsetUs = strike.getStartUs();
-				}
+			evt.setStartBeat(startBeat);
+			evt.setStartUs(startUs);
+			if (repeatCount > 1) {
+				evt.setRepeat(repeatCount, periodBeats);
 			}
+			composition.add(evt);
 		}
-		return lastBeatOffsetUs;
 	}
 	
 	/**
@@ -728,8 +930,7 @@ public class Composer {
 	 * @param gain the gain, between 0 (silent) and 1 (loudest)
 	 */
 	public void v(int measure, Instrument instr, double gain) {
-		int beat = measure * composition.getTempo().getBeatsPerMeasure();
-		composition.addGainEvent(composition.getTempo().beatToUs(beat), instr, gain);
+		composition.addGainEvent(composition.getTempoMap().measureToUs(measure), instr, gain);
 	}
 	
 	/**
@@ -741,4 +942,29 @@ public class Composer {
 	public void addfx(Instrument instr, AddEffect effect) {
 		composition.addEffect(instr, effect);
 	}
+	
+	/**
+	 * Add an effect to the effects chain of the named send bus.
+	 * The effect is computed once on the sum of all of the
+	 * instruments sending to the bus.  Note that bus effects
+	 * should not pass through the original signal
+	 * (e.g., use {@link Defaults#reverbBusDefaults()} for a reverb.)
+	 * 
+	 * @param bus     the name of the bus
+	 * @param effect  the effect to add
+	 */
+	public void addbusfx(String bus, AddEffect effect) {
+		composition.addBusEffect(bus, effect);
+	}
+	
+	/**
+	 * Send the output of given instrument to the named send bus.
+	 * 
+	 * @param instr  the instrument
+	 * @param bus    the name of the bus
+	 * @param level  the send level, between 0 (silent) and 1 (full)
+	 */
+	public void send(Instrument instr, String bus, double level) {
+		composition.addSend(instr, bus, level);
+	}
 }
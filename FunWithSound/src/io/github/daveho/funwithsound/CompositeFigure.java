@@ -15,9 +15,11 @@
 
 package io.github.daveho.funwithsound;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * A CompositeFigure is a group of one or more {@link Figure}s,
@@ -42,15 +44,68 @@ public class CompositeFigure implements Figure {
 		figures.add(child);
 	}
 
+	/**
+	 * Get the {@link FigureInfo}, combining the (cached) information
+	 * of the children.  This doesn't allocate: the result is the
+	 * information of one of the children.
+	 * 
+	 * @return the {@link FigureInfo}
+	 */
+	FigureInfo getInfo() {
+		FigureInfo result = FigureInfo.EMPTY;
+		for (Figure child : figures) {
+			result = result.combine(FigureInfo.of(child));
+		}
+		return result;
+	}
+
 	@Override
 	public Iterator<SimpleFigure> iterator() {
-		// Collect all SimpleFigures from all children
-		List<SimpleFigure> result = new ArrayList<SimpleFigure>();
-		for (Figure child : figures) {
-			for (SimpleFigure sf : child) {
-				result.add(sf);
+		// Visit the SimpleFigures depth first, as they are requested,
+		// rather than collecting them into a list
+		return new Iterator<SimpleFigure>() {
+			private final ArrayDeque<Iterator<? extends Figure>> stack =
+					new ArrayDeque<Iterator<? extends Figure>>();
+			private SimpleFigure next;
+			
+			{
+				stack.push(figures.iterator());
 			}
-		}
-		return result.iterator();
+			
+			@Override
+			public boolean hasNext() {
+				while (next == null && !stack.isEmpty()) {
+					Iterator<? extends Figure> top = stack.peek();
+					if (!top.hasNext()) {
+						stack.pop();
+						continue;
+					}
+					Figure f = top.next();
+					if (f instanceof SimpleFigure) {
+						next = (SimpleFigure) f;
+					} else if (f instanceof CompositeFigure) {
+						stack.push(((CompositeFigure) f).figures.iterator());
+					} else {
+						stack.push(f.iterator());
+					}
+				}
+				return next != null;
+			}
+			
+			@Override
+			public SimpleFigure next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				SimpleFigure result = next;
+				next = null;
+				return result;
+			}
+			
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
 	}
 }
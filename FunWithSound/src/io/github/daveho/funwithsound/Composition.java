@@ -16,22 +16,39 @@
 package io.github.daveho.funwithsound;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 
 /**
  * A composition is a collection of {@link PlayFigureEvent}s specifying
  * rhythms and melodies to be played on specified instruments
  * at specified times.
+ * A PlayFigureEvent may repeat its figure: it is stored once,
+ * and iterating over the composition expands its repetitions
+ * (as they are reached.)
  */
 public class Composition implements Iterable<PlayFigureEvent> {
+	private static final Comparator<PlayFigureEvent> START_COMPARATOR = new Comparator<PlayFigureEvent>() {
+		@Override
+		public int compare(PlayFigureEvent o1, PlayFigureEvent o2) {
+			return Long.compare(o1.getStartUs(), o2.getStartUs());
+		}
+	};
+	
 	private List<PlayFigureEvent> playFigureEvents;
 	private Scale scale;
 	private Tempo tempo;
+	private TempoMap tempoMap;
 	private List<GainEvent> gainEvents;
 	private Map<Instrument, List<AddEffect>> fxMap;
+	private Map<String, List<AddEffect>> busFxMap;
+	private List<Send> sends;
 	private Instrument audition;
 	private boolean usingDefaultScale;
 	
@@ -42,6 +59,8 @@ public class Composition implements Iterable<PlayFigureEvent> {
 		playFigureEvents = new ArrayList<PlayFigureEvent>();
 		gainEvents = new ArrayList<GainEvent>();
 		fxMap = new IdentityHashMap<Instrument, List<AddEffect>>();
+		busFxMap = new LinkedHashMap<String, List<AddEffect>>();
+		sends = new ArrayList<Send>();
 	}
 	
 	/**
@@ -69,6 +88,7 @@ public class Composition implements Iterable<PlayFigureEvent> {
 	 */
 	public void setTempo(Tempo tempo) {
 		this.tempo = tempo;
+		this.tempoMap = new TempoMap(tempo);
 	}
 	
 	/**
@@ -80,6 +100,54 @@ public class Composition implements Iterable<PlayFigureEvent> {
 		return tempo;
 	}
 	
+	/**
+	 * Get the {@link TempoMap}, which has the {@link Tempo} as its
+	 * base tempo.  Note that setting the {@link Tempo} replaces
+	 * the TempoMap.
+	 * 
+	 * @return the {@link TempoMap}
+	 */
+	public TempoMap getTempoMap() {
+		return tempoMap;
+	}
+	
+	/**
+	 * Get the time at which a strike of a played figure starts.
+	 * The strike's start time (which is relative to the start of the
+	 * figure, at the base {@link Tempo}) is converted to a beat, which
+	 * the {@link TempoMap} converts to a time.
+	 * 
+	 * @param e       the {@link PlayFigureEvent}
+	 * @param strike  a {@link Strike} in the figure's {@link Rhythm}
+	 * @return the start time in microseconds
+	 */
+	public long getStrikeStartUs(PlayFigureEvent e, Strike strike) {
+		if (tempoMap == null || tempoMap.isConstant()) {
+			return e.getStartUs() + strike.getStartUs();
+		}
+		return tempoMap.beatToUs(getFigureStartBeat(e) + tempo.usToBeat(strike.getStartUs()));
+	}
+	
+	/**
+	 * Get the time at which a strike of a played figure ends.
+	 * 
+	 * @param e       the {@link PlayFigureEvent}
+	 * @param strike  a {@link Strike} in the figure's {@link Rhythm}
+	 * @return the end time in microseconds
+	 */
+	public long getStrikeEndUs(PlayFigureEvent e, Strike strike) {
+		if (tempoMap == null || tempoMap.isConstant()) {
+			return e.getStartUs() + strike.getStartUs() + strike.getDurationUs();
+		}
+		return tempoMap.beatToUs(getFigureStartBeat(e)
+				+ tempo.usToBeat(strike.getStartUs() + strike.getDurationUs()));
+	}
+	
+	private double getFigureStartBeat(PlayFigureEvent e) {
+		double beat = e.getStartBeat();
+		return Double.isNaN(beat) ? tempoMap.usToBeat(e.getStartUs()) : beat;
+	}
+	
 	/**
 	 * Add a {@link PlayFigureEvent}.
 	 * 
@@ -91,6 +159,7 @@ public class Composition implements Iterable<PlayFigureEvent> {
 	
 	/**
 	 * Get number of {@link PlayFigureEvent}s added.
+	 * Note that a repeating PlayFigureEvent counts once.
 	 * 
 	 * @return number of {@link PlayFigureEvent}s
 	 */
@@ -99,7 +168,7 @@ public class Composition implements Iterable<PlayFigureEvent> {
 	}
 	
 	/**
-	 * Get a {@link PlayFigureEvent}.
+	 * Get a {@link PlayFigureEvent} (as added, so it may repeat.)
 	 * 
 	 * @param index the index of the {@link PlayFigureEvent}
 	 * @return the {@link PlayFigureEvent}
@@ -108,11 +177,146 @@ public class Composition implements Iterable<PlayFigureEvent> {
 		return playFigureEvents.get(index);
 	}
 	
+	/**
+	 * Get a {@link PlayFigureEvent} for one repetition of
+	 * a repeating PlayFigureEvent.
+	 * 
+	 * @param e           the repeating {@link PlayFigureEvent}
+	 * @param repetition  the repetition (0 for the first)
+	 * @return {@link PlayFigureEvent} for the repetition
+	 *         (which is e itself for the first repetition)
+	 */
+	public PlayFigureEvent getRepetition(PlayFigureEvent e, int repetition) {
+		if (repetition == 0) {
+			return e;
+		}
+		double startBeat = getFigureStartBeat(e) + repetition * e.getPeriodBeats();
+		PlayFigureEvent result = new PlayFigureEvent();
+		result.setFigure(e.getFigure());
+		result.setStartBeat(startBeat);
+		result.setStartUs(tempoMap.beatToUs(startBeat));
+		return result;
+	}
+	
+	/**
+	 * Iterate over the {@link PlayFigureEvent}s, with the repetitions
+	 * of repeating PlayFigureEvents expanded into separate
+	 * PlayFigureEvents (which are created as the iteration reaches them.)
+	 * 
+	 * @return iterator over the (expanded) {@link PlayFigureEvent}s
+	 */
 	@Override
 	public Iterator<PlayFigureEvent> iterator() {
-		return playFigureEvents.iterator();
+		return new Iterator<PlayFigureEvent>() {
+			private final Iterator<PlayFigureEvent> events = playFigureEvents.iterator();
+			private PlayFigureEvent current;
+			private int repetition;
+			
+			@Override
+			public boolean hasNext() {
+				return (current != null && repetition < current.getRepeatCount()) || events.hasNext();
+			}
+			
+			@Override
+			public PlayFigureEvent next() {
+				if (current == null || repetition >= current.getRepeatCount()) {
+					current = events.next();
+					repetition = 0;
+				}
+				return getRepetition(current, repetition++);
+			}
+			
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
 	}
 
+	/**
+	 * Create an empty composition sharing this composition's
+	 * {@link Scale}, {@link Tempo}, and {@link TempoMap}, for building
+	 * a segment which will be merged into this composition.
+	 * 
+	 * @return the segment
+	 */
+	Composition createSegment() {
+		Composition segment = new Composition();
+		segment.scale = scale;
+		segment.tempo = tempo;
+		segment.tempoMap = tempoMap;
+		segment.usingDefaultScale = usingDefaultScale;
+		return segment;
+	}
+	
+	/**
+	 * Merge segments (created by {@link #createSegment()}) into this
+	 * composition.  The {@link PlayFigureEvent}s of this composition and the
+	 * segments are sorted by start time, and merged (a k-way merge) so that
+	 * the composition's events are in order of start time, with events
+	 * starting at the same time kept in the order of this composition
+	 * followed by the segments.  The segments' gain events, effects,
+	 * and sends are appended to this composition's (and a segment's
+	 * audition instrument, if any, replaces this composition's.)
+	 * 
+	 * @param segments the segments
+	 */
+	void merge(List<Composition> segments) {
+		// Each list of events is sorted (which is quick, since events are
+		// usually added in order), then the lists are merged, using a heap
+		// of the next event from each list
+		final List<List<PlayFigureEvent>> lists = new ArrayList<List<PlayFigureEvent>>();
+		lists.add(playFigureEvents);
+		int total = playFigureEvents.size();
+		for (Composition segment : segments) {
+			lists.add(segment.playFigureEvents);
+			total += segment.playFigureEvents.size();
+		}
+		for (List<PlayFigureEvent> list : lists) {
+			Collections.sort(list, START_COMPARATOR);
+		}
+		final int[] pos = new int[lists.size()];
+		PriorityQueue<Integer> heap = new PriorityQueue<Integer>(lists.size(), new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				int cmp = START_COMPARATOR.compare(lists.get(o1).get(pos[o1]), lists.get(o2).get(pos[o2]));
+				return cmp != 0 ? cmp : Integer.compare(o1, o2);
+			}
+		});
+		for (int i = 0; i < lists.size(); i++) {
+			if (!lists.get(i).isEmpty()) {
+				heap.add(i);
+			}
+		}
+		List<PlayFigureEvent> merged = new ArrayList<PlayFigureEvent>(total);
+		while (!heap.isEmpty()) {
+			int i = heap.poll();
+			merged.add(lists.get(i).get(pos[i]++));
+			if (pos[i] < lists.get(i).size()) {
+				heap.add(i);
+			}
+		}
+		playFigureEvents = merged;
+		
+		for (Composition segment : segments) {
+			gainEvents.addAll(segment.gainEvents);
+			for (Map.Entry<Instrument, List<AddEffect>> entry : segment.fxMap.entrySet()) {
+				for (AddEffect effect : entry.getValue()) {
+					addEffect(entry.getKey(), effect);
+				}
+			}
+			for (Map.Entry<String, List<AddEffect>> entry : segment.busFxMap.entrySet()) {
+				for (AddEffect effect : entry.getValue()) {
+					addBusEffect(entry.getKey(), effect);
+				}
+			}
+			sends.addAll(segment.sends);
+			if (segment.audition != null) {
+				audition = segment.audition;
+			}
+		}
+	}
+	
 	/**
 	 * Add a {@link GainEvent}.
 	 * 
@@ -159,6 +363,56 @@ public class Composition implements Iterable<PlayFigureEvent> {
 		fx.add(effect);
 	}
 	
+	/**
+	 * Get the map of send bus names to lists of {@link AddEffect}
+	 * objects specifying the effects on each bus.
+	 * 
+	 * @return the bus effects map
+	 */
+	public Map<String, List<AddEffect>> getBusEffectsMap() {
+		return busFxMap;
+	}
+	
+	/**
+	 * Add an effect to the named send bus.
+	 * Each effect is appended onto the bus's effects chain.
+	 * Since the bus output is mixed with the (dry) outputs of the
+	 * instruments feeding it, bus effects should generally not pass
+	 * through the original signal: e.g., set the {@link ParamNames#DRY_GAIN}
+	 * parameter of {@link AddReverb} to 0.
+	 * 
+	 * @param bus     the name of the bus
+	 * @param effect  the {@link AddEffect} which adds the effect
+	 */
+	public void addBusEffect(String bus, AddEffect effect) {
+		List<AddEffect> fx = busFxMap.get(bus);
+		if (fx == null) {
+			fx = new ArrayList<AddEffect>();
+			busFxMap.put(bus, fx);
+		}
+		fx.add(effect);
+	}
+	
+	/**
+	 * Send the output of an {@link Instrument} to the named send bus.
+	 * 
+	 * @param instr  the {@link Instrument}
+	 * @param bus    the name of the bus
+	 * @param level  the send level, between 0 (silent) and 1 (full)
+	 */
+	public void addSend(Instrument instr, String bus, double level) {
+		sends.add(new Send(instr, bus, level));
+	}
+	
+	/**
+	 * Get the list of {@link Send}s.
+	 * 
+	 * @return the list of {@link Send}s
+	 */
+	public List<Send> getSends() {
+		return sends;
+	}
+	
 	/**
 	 * Get the audition instrument.
 	 * 
@@ -0,0 +1,273 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.UGen;
+
+/**
+ * Compute a stable (across runs of the program) hash of content
+ * that affects rendered audio, for use as a cache key.
+ * Arbitrary objects (such as {@link AddEffect}s and their parameter
+ * DataBeads) are hashed reflectively, so that changing any
+ * parameter changes the hash, unless they implement
+ * {@link CacheKeySource}.  If an object can't be hashed completely
+ * (for example, because it refers to an enclosing instance or to a UGen),
+ * the hash is marked as incomplete, and shouldn't be used as a cache key.
+ */
+class ContentHasher {
+	// Maximum depth of object graph hashed reflectively
+	private static final int MAX_DEPTH = 8;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private static final Comparator<Field> FIELD_NAME_COMPARATOR = new Comparator<Field>() {
+		@Override
+		public int compare(Field o1, Field o2) {
+			return o1.getName().compareTo(o2.getName());
+		}
+	};
+	
+	private final MessageDigest md;
+	private final byte[] buf;
+	private String incompleteReason;
+	
+	/**
+	 * Constructor.
+	 */
+	public ContentHasher() {
+		try {
+			this.md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available", e);
+		}
+		this.buf = new byte[8];
+	}
+	
+	public void putLong(long v) {
+		for (int i = 0; i < 8; i++) {
+			buf[i] = (byte) (v >>> (56 - i*8));
+		}
+		md.update(buf, 0, 8);
+	}
+	
+	public void putInt(int v) {
+		putLong(v);
+	}
+	
+	public void putDouble(double v) {
+		putLong(Double.doubleToLongBits(v));
+	}
+	
+	public void putString(String s) {
+		if (s == null) {
+			putInt(-1);
+			return;
+		}
+		byte[] b = s.getBytes(UTF8);
+		putInt(b.length);
+		md.update(b);
+	}
+	
+	/**
+	 * Hash a file name, along with the file's size and modification time
+	 * (so that changing the file's contents changes the hash.)
+	 * 
+	 * @param fileName the file name
+	 */
+	public void putFile(String fileName) {
+		putString(fileName);
+		if (fileName != null) {
+			File f = new File(fileName);
+			putLong(f.length());
+			putLong(f.lastModified());
+		}
+	}
+	
+	/**
+	 * Hash the entire contents of a file.
+	 * 
+	 * @param fileName the file name
+	 * @throws IOException if the file can't be read
+	 */
+	public void putFileContents(String fileName) throws IOException {
+		InputStream in = new FileInputStream(fileName);
+		try {
+			byte[] buf = new byte[65536];
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				md.update(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Hash an arbitrary object reflectively.
+	 * 
+	 * @param obj the object
+	 */
+	public void putObject(Object obj) {
+		putObject(obj, 0, new IdentityHashMap<Object, Boolean>());
+	}
+	
+	private void putObject(Object obj, int depth, IdentityHashMap<Object, Boolean> visited) {
+		if (obj == null) {
+			putString("null");
+			return;
+		}
+		Class<?> cls = obj.getClass();
+		putString(cls.getName());
+		if (obj instanceof String || obj instanceof Number || obj instanceof Boolean
+				|| obj instanceof Character || obj instanceof Enum) {
+			putString(obj.toString());
+			return;
+		}
+		if (obj instanceof CacheKeySource) {
+			putString(((CacheKeySource) obj).getCacheKey());
+			return;
+		}
+		if (obj instanceof AudioContext || visited.containsKey(obj)) {
+			// The AudioContext isn't part of the content, and objects
+			// already visited have been hashed
+			return;
+		}
+		if (obj instanceof UGen || obj instanceof Thread) {
+			markIncomplete("can't hash " + cls.getName());
+			return;
+		}
+		if (depth >= MAX_DEPTH) {
+			markIncomplete(cls.getName() + " is nested too deeply to hash");
+			return;
+		}
+		visited.put(obj, Boolean.TRUE);
+		if (cls.isArray()) {
+			int len = Array.getLength(obj);
+			putInt(len);
+			for (int i = 0; i < len; i++) {
+				putObject(Array.get(obj, i), depth + 1, visited);
+			}
+		} else if (obj instanceof Map) {
+			// Hash entries in order of their keys' string representations,
+			// so that the hash doesn't depend on the Map's iteration order
+			List<Map.Entry<?, ?>> entries = new ArrayList<Map.Entry<?, ?>>(((Map<?, ?>) obj).entrySet());
+			Collections.sort(entries, new Comparator<Map.Entry<?, ?>>() {
+				@Override
+				public int compare(Map.Entry<?, ?> o1, Map.Entry<?, ?> o2) {
+					return String.valueOf(o1.getKey()).compareTo(String.valueOf(o2.getKey()));
+				}
+			});
+			putInt(entries.size());
+			for (Map.Entry<?, ?> entry : entries) {
+				putObject(entry.getKey(), depth + 1, visited);
+				putObject(entry.getValue(), depth + 1, visited);
+			}
+		} else if (obj instanceof Collection) {
+			Collection<?> coll = (Collection<?>) obj;
+			putInt(coll.size());
+			for (Object elt : coll) {
+				putObject(elt, depth + 1, visited);
+			}
+		} else {
+			for (Class<?> c = cls; c != null && c != Object.class; c = c.getSuperclass()) {
+				putFields(obj, c, depth, visited);
+			}
+		}
+	}
+
+	private void putFields(Object obj, Class<?> c, int depth, IdentityHashMap<Object, Boolean> visited) {
+		Field[] fields = c.getDeclaredFields();
+		Arrays.sort(fields, FIELD_NAME_COMPARATOR);
+		for (Field field : fields) {
+			int mod = field.getModifiers();
+			if (Modifier.isStatic(mod) || Modifier.isTransient(mod)) {
+				continue;
+			}
+			if (field.isSynthetic() && !field.getName().startsWith("val$")) {
+				// A reference to an enclosing instance (as opposed to a variable
+				// captured by an anonymous class): the enclosing object's fields
+				// may affect the audio, but hashing all of them isn't meaningful
+				markIncomplete(c.getName() + " refers to its enclosing instance");
+				continue;
+			}
+			putString(field.getName());
+			try {
+				field.setAccessible(true);
+				putObject(field.get(obj), depth + 1, visited);
+			} catch (Exception e) {
+				markIncomplete("can't access " + c.getName() + "." + field.getName());
+			}
+		}
+	}
+	
+	private void markIncomplete(String reason) {
+		if (incompleteReason == null) {
+			incompleteReason = reason;
+		}
+	}
+	
+	/**
+	 * Check whether everything added to the hash was hashed completely.
+	 * If not, the hash shouldn't be used as a cache key.
+	 * 
+	 * @return true if the hash is complete, false if not
+	 */
+	public boolean isComplete() {
+		return incompleteReason == null;
+	}
+	
+	/**
+	 * Get the reason the hash is incomplete.
+	 * 
+	 * @return the reason, or null if the hash is complete
+	 */
+	public String getIncompleteReason() {
+		return incompleteReason;
+	}
+	
+	/**
+	 * Get the hash as a string of hex digits.
+	 * 
+	 * @return the hash
+	 */
+	public String digest() {
+		byte[] hash = md.digest();
+		StringBuilder sb = new StringBuilder();
+		for (byte b : hash) {
+			sb.append(String.format("%02x", b & 0xff));
+		}
+		return sb.toString();
+	}
+}
@@ -15,7 +15,11 @@
 
 package io.github.daveho.funwithsound;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Convert {@link Rhythm}, {@link Strike}, {@link Melody},
@@ -24,6 +28,10 @@ import java.util.ArrayList;
  * These methods are used to convert live-played audition parts back
  * into code, but they could also be very useful for turning
  * algorithmically-created rhythms and melodies back into code.
+ * The code can be appended to any Appendable (e.g., a Writer), so that
+ * large amounts of code (e.g., for an entire {@link Composition},
+ * see {@link #appendCode(Appendable, Composition)}) can be
+ * streamed to a file without building it in memory.
  */
 public class ConvertToCode {
 	/**
@@ -51,10 +59,29 @@ public class ConvertToCode {
 	 */
 	public static String toCode(Rhythm rhythm, Tempo tempo, boolean useNL) {
 		StringBuilder buf = new StringBuilder();
-		
-		buf.append("r(");
+		try {
+			appendCode(buf, rhythm, tempo, useNL);
+		} catch (IOException e) {
+			throw new IllegalStateException("This can't happen", e);
+		}
+		return buf.toString();
+	}
+	
+	/**
+	 * Append code for a {@link Rhythm} in the form of a call to
+	 * the {@link Composer} class's {@link Composer#r(Strike...)}
+	 * method.
+	 * 
+	 * @param out    the Appendable to append the code to
+	 * @param rhythm the {@link Rhythm}
+	 * @param tempo  the {@link Tempo}
+	 * @param useNL  true if newlines should be used in the code
+	 * @throws IOException if the code can't be appended
+	 */
+	public static void appendCode(Appendable out, Rhythm rhythm, Tempo tempo, boolean useNL) throws IOException {
+		out.append("r(");
 		if (useNL) {
-			buf.append("\n");
+			out.append("\n");
 		}
 		
 		boolean first = true;
@@ -63,9 +90,56 @@ public class ConvertToCode {
 			if (first) {
 				first = false;
 			} else {
-				buf.append(",");
+				out.append(",");
+			}
+			appendCode(out, s, tempo);
+		}
+		
+		if (useNL) {
+			out.append("\n");
+		}
+		out.append(")");
+	}
+
+	/**
+	 * Convert a {@link Rhythm} whose strike times are relative to a given
+	 * time in the composition to code in the form of a call to
+	 * the {@link Composer} class's {@link Composer#r(Strike...)}
+	 * method.  The strike times are converted to beats using a
+	 * {@link TempoMap}, so the code reflects any tempo changes
+	 * in effect when the strikes occur.
+	 * 
+	 * @param rhythm    the {@link Rhythm}
+	 * @param tempoMap  the {@link TempoMap}
+	 * @param originUs  the time (in the composition) to which the
+	 *                  strike times are relative
+	 * @param useNL     true if newlines should be used in the returned code representation
+	 * @return the code for the {@link Rhythm}
+	 */
+	public static String toCode(Rhythm rhythm, TempoMap tempoMap, long originUs, boolean useNL) {
+		StringBuilder buf = new StringBuilder();
+		
+		buf.append("r(");
+		if (useNL) {
+			buf.append("\n");
+		}
+		
+		double originBeat = tempoMap.usToBeat(originUs);
+		boolean first = true;
+		
+		try {
+			for (Strike s : rhythm) {
+				if (first) {
+					first = false;
+				} else {
+					buf.append(",");
+				}
+				double startBeat = tempoMap.usToBeat(originUs + s.getStartUs());
+				double endBeat = tempoMap.usToBeat(originUs + s.getStartUs() + s.getDurationUs());
+				appendStrike(buf, startBeat - originBeat, endBeat - startBeat, s.getVelocity());
 			}
-			buf.append(toCode(s, tempo));
+		} catch (IOException e) {
+			throw new IllegalStateException("This can't happen", e);
 		}
 		
 		if (useNL) {
@@ -86,20 +160,76 @@ public class ConvertToCode {
 	 */
 	public static String toCode(Strike strike, Tempo tempo) {
 		StringBuilder buf = new StringBuilder();
-
-		buf.append("s(");
-		buf.append(String.format("%.3f", tempo.usToBeat((long)strike.getStartUs())));
-		buf.append(",");
-		buf.append(String.format("%.3f", tempo.usToBeat(((long)strike.getDurationUs()))));
-		int vel = strike.getVelocity();
-		if (vel < 127) {
-			buf.append(",");
-			buf.append(vel);
+		try {
+			appendCode(buf, strike, tempo);
+		} catch (IOException e) {
+			throw new IllegalStateException("This can't happen", e);
 		}
-		buf.append(")");
-
 		return buf.toString();
 	}
+	
+	/**
+	 * Append code for a {@link Strike} in the form of a call to the
+	 * {@link Composer} class's {@link Composer#s(double, double, int)} method.
+	 * 
+	 * @param out    the Appendable to append the code to
+	 * @param strike the {@link Strike}
+	 * @param tempo  the {@link Tempo}
+	 * @throws IOException if the code can't be appended
+	 */
+	public static void appendCode(Appendable out, Strike strike, Tempo tempo) throws IOException {
+		appendStrike(out, tempo.usToBeat(strike.getStartUs()),
+				tempo.usToBeat(strike.getDurationUs()), strike.getVelocity());
+	}
+	
+	private static void appendStrike(Appendable out, double beat, double duration, int vel) throws IOException {
+		out.append("s(");
+		appendDecimal(out, beat);
+		out.append(",");
+		appendDecimal(out, duration);
+		if (vel < 127) {
+			out.append(",");
+			appendLong(out, vel);
+		}
+		out.append(")");
+	}
+	
+	/**
+	 * Append a number with three digits after the decimal point
+	 * (like <code>String.format("%.3f", value)</code>, but without
+	 * creating any objects.)
+	 * 
+	 * @param out    the Appendable
+	 * @param value  the number
+	 * @throws IOException if the number can't be appended
+	 */
+	static void appendDecimal(Appendable out, double value) throws IOException {
+		long thousandths = Math.round(Math.abs(value) * 1000.0);
+		if (value < 0.0 && thousandths != 0L) {
+			out.append('-');
+		}
+		appendLong(out, thousandths / 1000L);
+		out.append('.');
+		long frac = thousandths % 1000L;
+		out.append((char)('0' + frac / 100L));
+		out.append((char)('0' + (frac / 10L) % 10L));
+		out.append((char)('0' + frac % 10L));
+	}
+	
+	// Append an integer without creating any objects
+	private static void appendLong(Appendable out, long value) throws IOException {
+		if (value < 0L) {
+			out.append('-');
+			value = -value;
+		}
+		long div = 1L;
+		while (value / div >= 10L) {
+			div *= 10L;
+		}
+		for (; div > 0L; div /= 10L) {
+			out.append((char)('0' + (value / div) % 10L));
+		}
+	}
 
 	/**
 	 * Convert a {@link Melody} to code in the form of a call to
@@ -131,10 +261,31 @@ public class ConvertToCode {
 	 */
 	public static String toCode(Melody melody, Scale scale, boolean useNL) {
 		StringBuilder buf = new StringBuilder();
-		
-		buf.append("m(");
+		try {
+			appendCode(buf, melody, scale, useNL);
+		} catch (IOException e) {
+			throw new IllegalStateException("This can't happen", e);
+		}
+		return buf.toString();
+	}
+	
+	/**
+	 * Append code for a {@link Melody} in the form of a call to
+	 * the {@link Composer} class's {@link Composer#m(Object...)}
+	 * method.
+	 * 
+	 * @param out    the Appendable to append the code to
+	 * @param melody the {@link Melody}
+	 * @param scale  the {@link Scale}: if non-null, pitches that belong to the
+	 *    scale will be generated as scale-relative notes rather than
+	 *    absolute MIDI note numbers
+	 * @param useNL  true if newlines should be used in the code
+	 * @throws IOException if the code can't be appended
+	 */
+	public static void appendCode(Appendable out, Melody melody, Scale scale, boolean useNL) throws IOException {
+		out.append("m(");
 		if (useNL) {
-			buf.append("\n");
+			out.append("\n");
 		}
 		
 		boolean first = true;
@@ -143,17 +294,15 @@ public class ConvertToCode {
 			if (first) {
 				first = false;
 			} else {
-				buf.append(",");
+				out.append(",");
 			}
-			buf.append(toCode(c, scale));
+			appendCode(out, c, scale);
 		}
 		
 		if (useNL) {
-			buf.append("\n");
+			out.append("\n");
 		}
-		buf.append(")");
-		
-		return buf.toString();
+		out.append(")");
 	}
 	
 	/**
@@ -170,42 +319,479 @@ public class ConvertToCode {
 	 */
 	public static String toCode(Chord c, Scale scale) {
 		StringBuilder buf = new StringBuilder();
-		
+		try {
+			appendCode(buf, c, scale);
+		} catch (IOException e) {
+			throw new IllegalStateException("This can't happen", e);
+		}
+		return buf.toString();
+	}
+	
+	/**
+	 * Append code for a {@link Chord} (see {@link #toCode(Chord, Scale)}.)
+	 * 
+	 * @param out   the Appendable to append the code to
+	 * @param c     a {@link Chord}
+	 * @param scale the {@link Scale} (can be null if there is no scale)
+	 * @throws IOException if the code can't be appended
+	 */
+	public static void appendCode(Appendable out, Chord c, Scale scale) throws IOException {
 		if (scale != null && allBelong(c, scale)) {
 			// All of the chord's notes belong to the scale,
 			// so we can specify a scale-relative note or chord
 			if (c.size() == 1) {
 				// Single note, so we can output it directly as an integer.
-				buf.append(scale.findMidiNote(c.get(0)));
+				appendLong(out, scale.findMidiNote(c.get(0)));
 			} else {
 				// Multi-note chord: output it using n()
-				ArrayList<Integer> scaleRelativeNotes = new ArrayList<Integer>();
-				for (Integer note : c) {
-					scaleRelativeNotes.add(scale.findMidiNote(note));
+				out.append("n(");
+				for (int i = 0; i < c.size(); i++) {
+					if (i > 0) {
+						out.append(",");
+					}
+					appendLong(out, scale.findMidiNote(c.get(i)));
 				}
-				buf.append("n(");
-				buf.append(Util.join(scaleRelativeNotes, ","));
-				buf.append(")");
+				out.append(")");
 			}
 		} else {
 			// No scale is specified, or there is at least one pitch
 			// which isn't part of the scale, so output using an()
-			buf.append("an(");
-			buf.append(Util.join(c, ","));
-			buf.append(")");
+			out.append("an(");
+			for (int i = 0; i < c.size(); i++) {
+				if (i > 0) {
+					out.append(",");
+				}
+				appendLong(out, c.get(i));
+			}
+			out.append(")");
 		}
-		
-		return buf.toString();
 	}
 
 	// See if all of the MIDI notes in the given
 	// chord belong to the given scale.
 	private static boolean allBelong(Chord c, Scale scale) {
-		for (Integer note : c) {
-			if (!scale.hasMidiNote(note)) {
+		for (int i = 0; i < c.size(); i++) {
+			if (!scale.hasMidiNote(c.get(i))) {
 				return false;
 			}
 		}
 		return true;
 	}
+	
+	/**
+	 * Append code for an entire {@link Composition}, in the form of
+	 * statements suitable for the body of a {@link Composer} subclass's
+	 * create method.  The tempo, tempo map, and (non-default) scale
+	 * are set first.  Then each distinct instrument, {@link Rhythm},
+	 * {@link Melody}, and figure is declared exactly once, as a
+	 * named variable: rhythms and melodies with the same contents
+	 * (and figures combining the same rhythm, melody, and instrument)
+	 * share a variable no matter how many times they are played.
+	 * Finally, each figure is placed using
+	 * {@link Composer#at(int, Figure)} (repeated figures are placed
+	 * using a loop.)  The code is appended incrementally, so
+	 * only the distinct rhythms, melodies, and figures are kept
+	 * in memory, regardless of how large the composition is.
+	 * Instruments are created using their soundfont and patch
+	 * (or their type, for non-MIDI instruments): samples, zones,
+	 * and effects aren't converted to code (effects are noted
+	 * in comments.)
+	 * 
+	 * @param out          the Appendable (e.g., a Writer) to append the code to
+	 * @param composition  the {@link Composition}
+	 * @throws IOException if the code can't be appended
+	 */
+	public static void appendCode(Appendable out, Composition composition) throws IOException {
+		new CompositionWriter(out, composition).write();
+	}
+	
+	// Key for finding rhythms with the same strikes
+	private static class RhythmKey {
+		final Rhythm rhythm;
+		final int hash;
+		
+		RhythmKey(Rhythm rhythm) {
+			this.rhythm = rhythm;
+			int h = rhythm.size();
+			for (int i = 0; i < rhythm.size(); i++) {
+				Strike s = rhythm.get(i);
+				h = h*31 + (int)(s.getStartUs() ^ (s.getStartUs() >>> 32));
+				h = h*31 + (int)(s.getDurationUs() ^ (s.getDurationUs() >>> 32));
+				h = h*31 + s.getVelocity();
+			}
+			this.hash = h;
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof RhythmKey)) {
+				return false;
+			}
+			RhythmKey other = (RhythmKey) obj;
+			if (hash != other.hash || rhythm.size() != other.rhythm.size()) {
+				return false;
+			}
+			for (int i = 0; i < rhythm.size(); i++) {
+				Strike s = rhythm.get(i), t = other.rhythm.get(i);
+				if (s.getStartUs() != t.getStartUs() || s.getDurationUs() != t.getDurationUs()
+						|| s.getVelocity() != t.getVelocity()) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+	
+	// Key for finding melodies with the same chords
+	private static class MelodyKey {
+		final Melody melody;
+		final int hash;
+		
+		MelodyKey(Melody melody) {
+			this.melody = melody;
+			int h = melody.size();
+			for (int i = 0; i < melody.size(); i++) {
+				int n = melody.getNumPitches(i);
+				h = h*31 + n;
+				for (int j = 0; j < n; j++) {
+					h = h*31 + melody.getPitch(i, j);
+				}
+			}
+			this.hash = h;
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof MelodyKey)) {
+				return false;
+			}
+			MelodyKey other = (MelodyKey) obj;
+			if (hash != other.hash || melody.size() != other.melody.size()) {
+				return false;
+			}
+			for (int i = 0; i < melody.size(); i++) {
+				int n = melody.getNumPitches(i);
+				if (n != other.melody.getNumPitches(i)) {
+					return false;
+				}
+				for (int j = 0; j < n; j++) {
+					if (melody.getPitch(i, j) != other.melody.getPitch(i, j)) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+	}
+	
+	// Key for finding figures with the same rhythm, melody, and instrument
+	// (identified by the numbers of their variables)
+	private static class FigureKey {
+		final int rhythm, melody, instrument;
+		
+		FigureKey(int rhythm, int melody, int instrument) {
+			this.rhythm = rhythm;
+			this.melody = melody;
+			this.instrument = instrument;
+		}
+		
+		@Override
+		public int hashCode() {
+			return (rhythm*31 + melody)*31 + instrument;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof FigureKey)) {
+				return false;
+			}
+			FigureKey other = (FigureKey) obj;
+			return rhythm == other.rhythm && melody == other.melody && instrument == other.instrument;
+		}
+	}
+	
+	// Writes the code for a composition.
+	private static class CompositionWriter {
+		private final Appendable out;
+		private final Composition composition;
+		private final Tempo tempo;
+		private final Scale scale;
+		private final TempoMap tempoMap;
+		
+		// Variable numbers of declared instruments, rhythms, melodies, and figures
+		private final IdentityHashMap<Instrument, Integer> instruments;
+		private final HashMap<RhythmKey, Integer> rhythms;
+		private final HashMap<MelodyKey, Integer> melodies;
+		private final HashMap<FigureKey, Integer> figures;
+		
+		// Cache of variable numbers of figures, by identity
+		private final IdentityHashMap<SimpleFigure, Integer> figuresById;
+		
+		CompositionWriter(Appendable out, Composition composition) {
+			this.out = out;
+			this.composition = composition;
+			this.tempo = composition.getTempo();
+			this.scale = composition.getScale();
+			this.tempoMap = composition.getTempoMap();
+			this.instruments = new IdentityHashMap<Instrument, Integer>();
+			this.rhythms = new HashMap<RhythmKey, Integer>();
+			this.melodies = new HashMap<MelodyKey, Integer>();
+			this.figures = new HashMap<FigureKey, Integer>();
+			this.figuresById = new IdentityHashMap<SimpleFigure, Integer>();
+		}
+		
+		void write() throws IOException {
+			out.append("tempo(");
+			appendLong(out, tempo.getBeatsPerMinute());
+			out.append(",");
+			appendLong(out, tempo.getBeatsPerMeasure());
+			out.append(");\n");
+			tempoMap.appendChanges(out);
+			if (!composition.isUsingDefaultScale()) {
+				writeScale();
+			}
+			
+			// Declare the instruments, rhythms, melodies, and figures
+			int numEvents = composition.size();
+			for (int i = 0; i < numEvents; i++) {
+				declareFigure(composition.get(i).getFigure());
+			}
+			
+			// Place the figures
+			out.append("\n");
+			for (int i = 0; i < numEvents; i++) {
+				writePlacement(composition.get(i));
+			}
+			
+			writeMixing();
+		}
+		
+		private void writeScale() throws IOException {
+			// Scales are always specified as a root note and intervals
+			out.append("scale(Scale.fromIntervals(");
+			appendLong(out, scale.get(0));
+			for (int i = 1; i < scale.size(); i++) {
+				out.append(",");
+				appendLong(out, scale.get(i) - scale.get(i - 1));
+			}
+			out.append("));\n");
+		}
+		
+		private int declareInstrument(Instrument instr) throws IOException {
+			Integer num = instruments.get(instr);
+			if (num != null) {
+				return num;
+			}
+			int n = instruments.size();
+			instruments.put(instr, n);
+			
+			out.append("Instrument instr");
+			appendLong(out, n);
+			out.append(" = ");
+			InstrumentType type = instr.getType();
+			switch (type.getKind()) {
+			case MIDI:
+				out.append("instr(");
+				appendString(instr.getSoundFont());
+				if (instr.getPatch() >= 0) {
+					out.append(",");
+					appendLong(out, instr.getPatch());
+				}
+				out.append(");\n");
+				break;
+			case MIDI_PERCUSSION:
+				out.append("percussion(");
+				appendString(instr.getSoundFont());
+				out.append(");\n");
+				break;
+			case SAMPLE_BANK:
+				out.append("samplePlayer(); // samples not converted\n");
+				break;
+			case MULTISAMPLE:
+				out.append("multisample(); // zones not converted\n");
+				break;
+			default:
+				out.append("custom(");
+				appendLong(out, type.getCode());
+				out.append(");\n");
+				break;
+			}
+			return n;
+		}
+		
+		private int declareRhythm(Rhythm rhythm) throws IOException {
+			RhythmKey key = new RhythmKey(rhythm);
+			Integer num = rhythms.get(key);
+			if (num != null) {
+				return num;
+			}
+			int n = rhythms.size();
+			rhythms.put(key, n);
+			
+			out.append("Rhythm r");
+			appendLong(out, n);
+			out.append(" = ");
+			appendCode(out, rhythm, tempo, false);
+			out.append(";\n");
+			return n;
+		}
+		
+		private int declareMelody(Melody melody) throws IOException {
+			MelodyKey key = new MelodyKey(melody);
+			Integer num = melodies.get(key);
+			if (num != null) {
+				return num;
+			}
+			int n = melodies.size();
+			melodies.put(key, n);
+			
+			out.append("Melody m");
+			appendLong(out, n);
+			out.append(" = ");
+			appendCode(out, melody, scale, false);
+			out.append(";\n");
+			return n;
+		}
+		
+		private int declareFigure(SimpleFigure figure) throws IOException {
+			Integer num = figuresById.get(figure);
+			if (num != null) {
+				return num;
+			}
+			int instr = declareInstrument(figure.getInstrument());
+			int rhythm = declareRhythm(figure.getRhythm());
+			int melody = declareMelody(figure.getMelody());
+			FigureKey key = new FigureKey(rhythm, melody, instr);
+			num = figures.get(key);
+			if (num == null) {
+				num = figures.size();
+				figures.put(key, num);
+				
+				out.append("Figure f");
+				appendLong(out, num);
+				out.append(" = f(r");
+				appendLong(out, rhythm);
+				out.append(", m");
+				appendLong(out, melody);
+				out.append(", instr");
+				appendLong(out, instr);
+				out.append(");\n");
+			}
+			figuresById.put(figure, num);
+			return num;
+		}
+		
+		private void writePlacement(PlayFigureEvent e) throws IOException {
+			int fig = figuresById.get(e.getFigure());
+			int measure = tempoMap.beatToMeasure(e.getStartBeat());
+			int count = e.getRepeatCount();
+			if (count > 1) {
+				// Repetitions are evenly spaced in beats, which is a whole
+				// number of measures if the meter is constant
+				int beatsPerMeasure = tempoMap.getBeatsPerMeasure(measure);
+				double periodMeasures = e.getPeriodBeats() / beatsPerMeasure;
+				int period = (int) Math.round(periodMeasures);
+				if (period == periodMeasures
+						&& !tempoMap.hasMeterChange(measure + 1, measure + (count - 1)*period)) {
+					out.append("for (int i = 0; i < ");
+					appendLong(out, count);
+					out.append("; i++) {\n\tat(");
+					appendLong(out, measure);
+					out.append(" + i*");
+					appendLong(out, period);
+					out.append(", f");
+					appendLong(out, fig);
+					out.append(");\n}\n");
+					return;
+				}
+			}
+			for (int r = 0; r < count; r++) {
+				double startBeat = e.getStartBeat() + r*e.getPeriodBeats();
+				out.append("at(");
+				appendLong(out, tempoMap.beatToMeasure(startBeat));
+				out.append(", f");
+				appendLong(out, fig);
+				out.append(");\n");
+			}
+		}
+		
+		private void writeMixing() throws IOException {
+			boolean first = true;
+			for (GainEvent g : composition.getGainEvents()) {
+				if (first) {
+					out.append("\n");
+					first = false;
+				}
+				int instr = declareInstrument(g.instr);
+				out.append("v(");
+				if (g.ts != 0L) {
+					appendLong(out, tempoMap.beatToMeasure(tempoMap.usToBeat(g.ts)));
+					out.append(", ");
+				}
+				out.append("instr");
+				appendLong(out, instr);
+				out.append(", ");
+				appendDecimal(out, g.gain);
+				out.append(");\n");
+			}
+			for (Map.Entry<Instrument, List<AddEffect>> entry : composition.getEffectsMap().entrySet()) {
+				int instr = declareInstrument(entry.getKey());
+				for (AddEffect effect : entry.getValue()) {
+					out.append("// addfx(instr");
+					appendLong(out, instr);
+					out.append(", new ").append(effect.getClass().getSimpleName()).append("(...));\n");
+				}
+			}
+			for (Map.Entry<String, List<AddEffect>> entry : composition.getBusEffectsMap().entrySet()) {
+				for (AddEffect effect : entry.getValue()) {
+					out.append("// addbusfx(");
+					appendString(entry.getKey());
+					out.append(", new ").append(effect.getClass().getSimpleName()).append("(...));\n");
+				}
+			}
+			for (Send send : composition.getSends()) {
+				int instr = declareInstrument(send.instr);
+				out.append("send(instr");
+				appendLong(out, instr);
+				out.append(", ");
+				appendString(send.bus);
+				out.append(", ");
+				appendDecimal(out, send.level);
+				out.append(");\n");
+			}
+			Instrument audition = composition.getAudition();
+			if (audition != null) {
+				int instr = declareInstrument(audition);
+				out.append("audition(instr");
+				appendLong(out, instr);
+				out.append(");\n");
+			}
+		}
+		
+		private void appendString(String s) throws IOException {
+			if (s == null) {
+				out.append("null");
+				return;
+			}
+			out.append('"');
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (c == '"' || c == '\\') {
+					out.append('\\');
+				}
+				out.append(c);
+			}
+			out.append('"');
+		}
+	}
 }
@@ -0,0 +1,75 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.UGen;
+
+/**
+ * UGen which convolves its (stereo) input with an {@link ImpulseResponse}
+ * using {@link PartitionedConvolver}s.  The partition size is the
+ * AudioContext's buffer size, so the latency is one buffer.
+ * A mono impulse response is applied to both channels.
+ * When playing in real time, the audio thread never waits for a tail
+ * block: each tail block is requested (at least) one block before it is
+ * needed, and if it isn't ready in time it is dropped (see
+ * {@link #getDroppedTailBlocks()}), so convolution can't take the
+ * audio thread's time away from the rest of the frame.  When rendering
+ * offline (see {@link Util#isRealTime(AudioContext)}), it always waits.
+ */
+public class ConvolutionUGen extends UGen {
+	private PartitionedConvolver[] convolvers;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param ac         the AudioContext
+	 * @param ir         the {@link ImpulseResponse}: its block size must
+	 *                   be the AudioContext's buffer size
+	 * @param numHead    number of partitions to compute in the audio thread:
+	 *                   the rest of the impulse response is computed on
+	 *                   a worker thread
+	 */
+	public ConvolutionUGen(AudioContext ac, ImpulseResponse ir, int numHead) {
+		super(ac, 2, 2);
+		if (ir.getBlockSize() != ac.getBufferSize()) {
+			throw new IllegalArgumentException("Impulse response block size " + ir.getBlockSize() +
+					" doesn't match buffer size " + ac.getBufferSize());
+		}
+		long maxWaitNs = Util.isRealTime(ac) ? 0L : Long.MAX_VALUE;
+		this.convolvers = new PartitionedConvolver[2];
+		for (int i = 0; i < 2; i++) {
+			int irChannel = Math.min(i, ir.getNumChannels() - 1);
+			convolvers[i] = new PartitionedConvolver(ir, irChannel, numHead, maxWaitNs);
+		}
+	}
+
+	/**
+	 * Get the number of tail blocks dropped (in either channel) because
+	 * they weren't computed in time.
+	 * 
+	 * @return number of dropped tail blocks
+	 */
+	public long getDroppedTailBlocks() {
+		return convolvers[0].getDroppedTailBlocks() + convolvers[1].getDroppedTailBlocks();
+	}
+
+	@Override
+	public void calculateBuffer() {
+		for (int i = 0; i < 2; i++) {
+			convolvers[i].process(bufIn[i], bufOut[i]);
+		}
+	}
+}
@@ -89,6 +89,38 @@ public class Defaults implements ParamNames {
 		params.put(EARLY_REFLECTIONS_LEVEL, 1.0f);
 		params.put(LATE_REVERB_LEVEL, 1.0f);
 		
+		// Pass the original signal through
+		params.put(DRY_GAIN, 1.0f);
+		
+		return params;
+	}
+
+	/**
+	 * Get default reverb parameters for a reverb on a send bus
+	 * (see {@link Composition#addBusEffect(String, AddEffect)}).
+	 * These are the same as the {@link #reverbDefaults()}, except
+	 * that the original signal is not passed through.
+	 * 
+	 * @return default send bus reverb parameters
+	 */
+	public static DataBead reverbBusDefaults() {
+		DataBead params = reverbDefaults();
+		params.put(DRY_GAIN, 0.0f);
+		return params;
+	}
+
+	/**
+	 * Get default parameters for {@link AddConvolutionReverb}.
+	 * 
+	 * @return default convolution reverb parameters
+	 */
+	public static DataBead convolutionReverbDefaults() {
+		DataBead params = new DataBead();
+		params.put(WET_GAIN, .3f);
+		params.put(DRY_GAIN, 1.0f);
+		// With the default buffer size (512 frames), this computes
+		// the first ~90 ms of the impulse response in the audio thread
+		params.put(HEAD_PARTITIONS, 8);
 		return params;
 	}
 
@@ -103,6 +135,7 @@ public class Defaults implements ParamNames {
 		params.put(SPREAD, .8);
 		params.put(FIRST_DELAY_GAIN, .4);
 		params.put(GAIN_DROP, .05);
+		params.put(DRY_GAIN, 1.0);
 		return params;
 	}
 }
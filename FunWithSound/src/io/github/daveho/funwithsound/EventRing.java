@@ -0,0 +1,165 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free ring buffer for passing events from one producer
+ * thread (such as the AudioContext thread) to one consumer thread
+ * (such as a visualization's drawing thread.)
+ * The storage is allocated once by the constructor, so neither
+ * publishing nor draining events allocates anything.
+ * The producer never waits: if the ring is full, the events that
+ * don't fit are dropped (and counted.)
+ * 
+ * @param <E> the event type
+ */
+public class EventRing<E> {
+	private final Object[] buffer;
+	private final int mask;
+	
+	// Position of the next event to be read (written only by the consumer)
+	private final AtomicLong head;
+	
+	// Position of the next event to be written (written only by the producer)
+	private final AtomicLong tail;
+	
+	// The producer's (possibly stale) view of head, and the
+	// consumer's (possibly stale) view of tail: these avoid reading
+	// the other thread's position more often than necessary
+	private long producerHead;
+	private long consumerTail;
+	
+	private final AtomicLong dropped;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param capacity the maximum number of events in the ring:
+	 *                 must be a power of 2
+	 */
+	public EventRing(int capacity) {
+		if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("Capacity must be a power of 2: " + capacity);
+		}
+		this.buffer = new Object[capacity];
+		this.mask = capacity - 1;
+		this.head = new AtomicLong();
+		this.tail = new AtomicLong();
+		this.dropped = new AtomicLong();
+	}
+	
+	/**
+	 * Get the capacity.
+	 * 
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return buffer.length;
+	}
+	
+	/**
+	 * Publish one event.  Must only be called by the producer thread.
+	 * 
+	 * @param event the event
+	 * @return true if the event was published, false if the ring was full
+	 */
+	public boolean offer(E event) {
+		long t = tail.get();
+		if (t - producerHead >= buffer.length) {
+			producerHead = head.get();
+			if (t - producerHead >= buffer.length) {
+				dropped.incrementAndGet();
+				return false;
+			}
+		}
+		buffer[(int) t & mask] = event;
+		tail.lazySet(t + 1);
+		return true;
+	}
+	
+	/**
+	 * Publish a batch of events: the consumer sees either none or all
+	 * of the events that fit in the ring.
+	 * Must only be called by the producer thread.
+	 * 
+	 * @param events  list containing the events
+	 * @param from    index of the first event to publish
+	 * @param to      index one past the last event to publish
+	 * @return the number of events published
+	 */
+	public int offer(List<? extends E> events, int from, int to) {
+		int n = to - from;
+		if (n <= 0) {
+			return 0;
+		}
+		long t = tail.get();
+		if (t + n - producerHead > buffer.length) {
+			producerHead = head.get();
+		}
+		int count = (int) Math.min(n, buffer.length - (t - producerHead));
+		for (int i = 0; i < count; i++) {
+			buffer[(int) (t + i) & mask] = events.get(from + i);
+		}
+		tail.lazySet(t + count);
+		if (count < n) {
+			dropped.addAndGet(n - count);
+		}
+		return count;
+	}
+	
+	/**
+	 * Remove as many available events as will fit in the given array.
+	 * Must only be called by the consumer thread.
+	 * 
+	 * @param dest array in which to store the events
+	 * @return the number of events stored in the array
+	 */
+	@SuppressWarnings("unchecked")
+	public int poll(E[] dest) {
+		long h = head.get();
+		if (consumerTail - h < dest.length) {
+			consumerTail = tail.get();
+		}
+		int count = (int) Math.min(dest.length, consumerTail - h);
+		for (int i = 0; i < count; i++) {
+			int index = (int) (h + i) & mask;
+			dest[i] = (E) buffer[index];
+			buffer[index] = null;
+		}
+		head.lazySet(h + count);
+		return count;
+	}
+	
+	/**
+	 * Determine whether the ring is (currently) empty.
+	 * 
+	 * @return true if there are no events available
+	 */
+	public boolean isEmpty() {
+		return head.get() == tail.get();
+	}
+	
+	/**
+	 * Get the number of events dropped because the ring was full.
+	 * 
+	 * @return the number of dropped events
+	 */
+	public long getNumDropped() {
+		return dropped.get();
+	}
+}
@@ -0,0 +1,117 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+/**
+ * In-place radix-2 complex fast Fourier transform of a fixed size.
+ * The twiddle factors and bit-reversal permutation are computed
+ * once by the constructor.  An FFT object has no mutable state,
+ * so it may be shared by multiple threads.
+ */
+public class FFT {
+	private final int size;
+	private final float[] cos;
+	private final float[] sin;
+	private final int[] bitReverse;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param size the transform size: must be a power of 2
+	 */
+	public FFT(int size) {
+		if (size < 2 || Integer.bitCount(size) != 1) {
+			throw new IllegalArgumentException("FFT size must be a power of 2: " + size);
+		}
+		this.size = size;
+		this.cos = new float[size/2];
+		this.sin = new float[size/2];
+		for (int i = 0; i < size/2; i++) {
+			double theta = -2.0 * Math.PI * i / size;
+			cos[i] = (float) Math.cos(theta);
+			sin[i] = (float) Math.sin(theta);
+		}
+		this.bitReverse = new int[size];
+		int bits = Integer.numberOfTrailingZeros(size);
+		for (int i = 0; i < size; i++) {
+			bitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+		}
+	}
+
+	/**
+	 * Get the transform size.
+	 *
+	 * @return the transform size
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Forward transform.
+	 *
+	 * @param re real parts (transformed in place)
+	 * @param im imaginary parts (transformed in place)
+	 */
+	public void forward(float[] re, float[] im) {
+		transform(re, im, 1.0f);
+	}
+
+	/**
+	 * Inverse transform, including the 1/<i>n</i> scaling.
+	 *
+	 * @param re real parts (transformed in place)
+	 * @param im imaginary parts (transformed in place)
+	 */
+	public void inverse(float[] re, float[] im) {
+		transform(re, im, -1.0f);
+		float scale = 1.0f / size;
+		for (int i = 0; i < size; i++) {
+			re[i] *= scale;
+			im[i] *= scale;
+		}
+	}
+
+	private void transform(float[] re, float[] im, float sign) {
+		// Bit-reversal permutation
+		for (int i = 0; i < size; i++) {
+			int j = bitReverse[i];
+			if (j > i) {
+				float t = re[i]; re[i] = re[j]; re[j] = t;
+				t = im[i]; im[i] = im[j]; im[j] = t;
+			}
+		}
+
+		// Butterflies
+		for (int len = 2; len <= size; len <<= 1) {
+			int half = len >> 1;
+			int step = size / len;
+			for (int start = 0; start < size; start += len) {
+				for (int k = 0; k < half; k++) {
+					float wr = cos[k*step];
+					float wi = sign * sin[k*step];
+					int a = start + k;
+					int b = a + half;
+					float tr = re[b]*wr - im[b]*wi;
+					float ti = re[b]*wi + im[b]*wr;
+					re[b] = re[a] - tr;
+					im[b] = im[a] - ti;
+					re[a] += tr;
+					im[a] += ti;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+/**
+ * Summary information about a {@link Figure}: the latest strike
+ * start offset, in microseconds relative to the start of the figure.
+ * {@link SimpleFigure}s cache their FigureInfo until their
+ * {@link Rhythm} changes, and {@link CompositeFigure}s combine the
+ * information of their children, so getting the information for a
+ * figure that has already been added to a composition doesn't
+ * examine any strikes.
+ */
+class FigureInfo {
+	/** Information for an empty figure. */
+	static final FigureInfo EMPTY = new FigureInfo(0L);
+	
+	/** Latest start offset of any strike. */
+	final long maxStartUs;
+	
+	FigureInfo(long maxStartUs) {
+		this.maxStartUs = maxStartUs;
+	}
+	
+	/**
+	 * Combine with the information for another figure.
+	 * 
+	 * @param other the other figure's information
+	 * @return the combined information
+	 */
+	FigureInfo combine(FigureInfo other) {
+		return other.maxStartUs > maxStartUs ? other : this;
+	}
+	
+	/**
+	 * Compute the information for a {@link SimpleFigure}.
+	 * 
+	 * @param rhythm  the figure's {@link Rhythm}
+	 * @return the information
+	 */
+	static FigureInfo compute(Rhythm rhythm) {
+		Strike last = rhythm != null ? rhythm.getLast() : null;
+		return last != null ? new FigureInfo(last.getStartUs()) : EMPTY;
+	}
+	
+	/**
+	 * Get the information for any {@link Figure}.
+	 * 
+	 * @param figure the {@link Figure}
+	 * @return the information
+	 */
+	static FigureInfo of(Figure figure) {
+		if (figure instanceof SimpleFigure) {
+			return ((SimpleFigure) figure).getInfo();
+		} else if (figure instanceof CompositeFigure) {
+			return ((CompositeFigure) figure).getInfo();
+		}
+		FigureInfo result = EMPTY;
+		for (SimpleFigure sf : figure) {
+			result = result.combine(sf.getInfo());
+		}
+		return result;
+	}
+}
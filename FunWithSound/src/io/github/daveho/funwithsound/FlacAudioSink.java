@@ -0,0 +1,585 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * {@link AudioSink} which encodes 16 bit FLAC (lossless compressed audio)
+ * to a file.  The encoder is deliberately simple: each channel (or the
+ * mid/side or left/side decorrelation of a stereo pair) is coded using
+ * the best of FLAC's fixed polynomial predictors, with partitioned
+ * Rice coding of the residual.  Silence is coded as constant subframes.
+ * This typically reduces the size of rendered music to about half of
+ * the uncompressed size.
+ * Encoding is done in the thread calling {@link #write(float[][], int)}:
+ * wrap the sink in a {@link PipelinedAudioSink} to encode in a
+ * separate thread.
+ */
+public class FlacAudioSink implements AudioSink {
+	private static final int BLOCK_SIZE = 4096;
+	private static final int BITS_PER_SAMPLE = 16;
+	private static final int MAX_FIXED_ORDER = 4;
+	private static final int MAX_PARTITION_ORDER = 8;
+	private static final int MAX_RICE_PARAM = 14;
+	// Offset of the STREAMINFO metadata block (after the stream marker)
+	private static final int STREAMINFO_OFFSET = 4;
+	
+	// Channel assignments
+	private static final int INDEPENDENT = 0;
+	private static final int LEFT_SIDE = 8;
+	private static final int RIGHT_SIDE = 9;
+	private static final int MID_SIDE = 10;
+	
+	private static final int[] CRC8_TABLE = new int[256];
+	private static final int[] CRC16_TABLE = new int[256];
+	static {
+		for (int i = 0; i < 256; i++) {
+			int c8 = i;
+			int c16 = i << 8;
+			for (int j = 0; j < 8; j++) {
+				c8 = ((c8 & 0x80) != 0) ? ((c8 << 1) ^ 0x07) : (c8 << 1);
+				c16 = ((c16 & 0x8000) != 0) ? ((c16 << 1) ^ 0x8005) : (c16 << 1);
+			}
+			CRC8_TABLE[i] = c8 & 0xff;
+			CRC16_TABLE[i] = c16 & 0xffff;
+		}
+	}
+	
+	private final File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private MessageDigest md5;
+	private int sampleRate;
+	private int numChannels;
+	
+	private int[][] block;
+	private int blockFrames;
+	private long frameNumber;
+	private long totalFrames;
+	private int minFrameSize;
+	private int maxFrameSize;
+	private byte[] pcmBytes;
+	
+	// Scratch space for encoding
+	private int[] side;
+	private int[] mid;
+	private int[] residual;
+	private long[] partitionSums;
+	private int lastPartitionOrder;
+	private BitWriter out;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param file the FLAC file to write
+	 */
+	public FlacAudioSink(File file) {
+		this.file = file;
+	}
+	
+	@Override
+	public void open(float sampleRate, int numChannels) throws IOException {
+		if (numChannels < 1 || numChannels > 8) {
+			throw new IllegalArgumentException("FLAC supports 1-8 channels: " + numChannels);
+		}
+		try {
+			this.md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not available", e);
+		}
+		this.sampleRate = Math.round(sampleRate);
+		this.numChannels = numChannels;
+		this.block = new int[numChannels][BLOCK_SIZE];
+		this.blockFrames = 0;
+		this.frameNumber = 0L;
+		this.totalFrames = 0L;
+		this.minFrameSize = Integer.MAX_VALUE;
+		this.maxFrameSize = 0;
+		this.pcmBytes = new byte[BLOCK_SIZE * numChannels * 2];
+		this.side = new int[BLOCK_SIZE];
+		this.mid = new int[BLOCK_SIZE];
+		this.residual = new int[BLOCK_SIZE];
+		this.partitionSums = new long[1 << MAX_PARTITION_ORDER];
+		// Worst case: verbatim 17 bit samples, plus headers
+		this.out = new BitWriter(BLOCK_SIZE * numChannels * 3 + 64);
+		
+		this.raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0L);
+		this.channel = raf.getChannel();
+		
+		// Write the stream marker and a placeholder STREAMINFO block,
+		// which is filled in by close()
+		out.reset();
+		out.writeBits(0x664c6143L, 32); // "fLaC"
+		writeStreamInfo();
+		writeBytes(out.getBytes(), out.getByteCount());
+	}
+	
+	private void writeStreamInfo() {
+		out.writeBits(1, 1);  // last metadata block
+		out.writeBits(0, 7);  // STREAMINFO
+		out.writeBits(34, 24);
+		out.writeBits(BLOCK_SIZE, 16);
+		out.writeBits(BLOCK_SIZE, 16);
+		out.writeBits(minFrameSize == Integer.MAX_VALUE ? 0 : minFrameSize, 24);
+		out.writeBits(maxFrameSize, 24);
+		out.writeBits(sampleRate, 20);
+		out.writeBits(numChannels - 1, 3);
+		out.writeBits(BITS_PER_SAMPLE - 1, 5);
+		out.writeBits(totalFrames, 36);
+		byte[] digest = totalFrames > 0 ? md5.digest() : new byte[16];
+		for (byte b : digest) {
+			out.writeBits(b & 0xff, 8);
+		}
+	}
+	
+	@Override
+	public void write(float[][] buf, int numFrames) throws IOException {
+		int i = 0;
+		while (i < numFrames) {
+			int n = Math.min(numFrames - i, BLOCK_SIZE - blockFrames);
+			for (int c = 0; c < numChannels; c++) {
+				float[] src = buf[c];
+				int[] dst = block[c];
+				for (int j = 0; j < n; j++) {
+					dst[blockFrames + j] = Util.toPcm16(src[i + j]);
+				}
+			}
+			blockFrames += n;
+			i += n;
+			if (blockFrames == BLOCK_SIZE) {
+				encodeBlock();
+			}
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		try {
+			if (blockFrames > 0) {
+				encodeBlock();
+			}
+			out.reset();
+			writeStreamInfo();
+			ByteBuffer bb = ByteBuffer.wrap(out.getBytes(), 0, out.getByteCount());
+			long pos = STREAMINFO_OFFSET;
+			while (bb.hasRemaining()) {
+				pos += channel.write(bb, pos);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+	
+	private void encodeBlock() throws IOException {
+		int n = blockFrames;
+		updateMd5(n);
+		
+		// Choose the channel assignment for stereo
+		int assignment = INDEPENDENT + numChannels - 1;
+		if (numChannels == 2) {
+			int[] left = block[0];
+			int[] right = block[1];
+			for (int i = 0; i < n; i++) {
+				side[i] = left[i] - right[i];
+				mid[i] = (left[i] + right[i]) >> 1;
+			}
+			long leftBits = estimateBits(left, n);
+			long rightBits = estimateBits(right, n);
+			long sideBits = estimateBits(side, n);
+			long midBits = estimateBits(mid, n);
+			long best = leftBits + rightBits;
+			if (leftBits + sideBits < best) {
+				best = leftBits + sideBits;
+				assignment = LEFT_SIDE;
+			}
+			if (rightBits + sideBits < best) {
+				best = rightBits + sideBits;
+				assignment = RIGHT_SIDE;
+			}
+			if (midBits + sideBits < best) {
+				assignment = MID_SIDE;
+			}
+		}
+		
+		out.reset();
+		writeFrameHeader(n, assignment);
+		switch (assignment) {
+		case LEFT_SIDE:
+			writeSubframe(block[0], n, BITS_PER_SAMPLE);
+			writeSubframe(side, n, BITS_PER_SAMPLE + 1);
+			break;
+		case RIGHT_SIDE:
+			writeSubframe(side, n, BITS_PER_SAMPLE + 1);
+			writeSubframe(block[1], n, BITS_PER_SAMPLE);
+			break;
+		case MID_SIDE:
+			writeSubframe(mid, n, BITS_PER_SAMPLE);
+			writeSubframe(side, n, BITS_PER_SAMPLE + 1);
+			break;
+		default:
+			for (int c = 0; c < numChannels; c++) {
+				writeSubframe(block[c], n, BITS_PER_SAMPLE);
+			}
+			break;
+		}
+		out.alignToByte();
+		out.writeBits(crc16(out.getBytes(), out.getByteCount()), 16);
+		
+		int frameSize = out.getByteCount();
+		minFrameSize = Math.min(minFrameSize, frameSize);
+		maxFrameSize = Math.max(maxFrameSize, frameSize);
+		writeBytes(out.getBytes(), frameSize);
+		
+		frameNumber++;
+		totalFrames += n;
+		blockFrames = 0;
+	}
+	
+	// The MD5 signature is computed on the little-endian interleaved samples
+	private void updateMd5(int n) {
+		int pos = 0;
+		for (int i = 0; i < n; i++) {
+			for (int c = 0; c < numChannels; c++) {
+				int v = block[c][i];
+				pcmBytes[pos++] = (byte) v;
+				pcmBytes[pos++] = (byte) (v >> 8);
+			}
+		}
+		md5.update(pcmBytes, 0, pos);
+	}
+	
+	private void writeFrameHeader(int n, int assignment) {
+		out.writeBits(0x3ffe, 14); // sync code
+		out.writeBits(0, 1);
+		out.writeBits(0, 1);       // fixed block size
+		out.writeBits(7, 4);       // block size-1 in 16 bits at end of header
+		out.writeBits(sampleRateCode(), 4);
+		out.writeBits(assignment, 4);
+		out.writeBits(4, 3);       // 16 bits per sample
+		out.writeBits(0, 1);
+		writeUtf8(frameNumber);
+		out.writeBits(n - 1, 16);
+		out.writeBits(crc8(out.getBytes(), out.getByteCount()), 8);
+	}
+	
+	private int sampleRateCode() {
+		switch (sampleRate) {
+		case 88200: return 1;
+		case 176400: return 2;
+		case 192000: return 3;
+		case 8000: return 4;
+		case 16000: return 5;
+		case 22050: return 6;
+		case 24000: return 7;
+		case 32000: return 8;
+		case 44100: return 9;
+		case 48000: return 10;
+		case 96000: return 11;
+		default: return 0; // from STREAMINFO
+		}
+	}
+	
+	// Frame numbers are coded like UTF-8 characters
+	private void writeUtf8(long v) {
+		if (v < 0x80) {
+			out.writeBits(v, 8);
+			return;
+		}
+		int numBytes = 2;
+		while (numBytes < 7 && v >= (1L << (5*numBytes + 1))) {
+			numBytes++;
+		}
+		int shift = 6 * (numBytes - 1);
+		out.writeBits((0xff00 >> numBytes) & 0xff | (v >> shift), 8);
+		for (shift -= 6; shift >= 0; shift -= 6) {
+			out.writeBits(0x80 | ((v >> shift) & 0x3f), 8);
+		}
+	}
+	
+	// Estimate the number of bits needed to code samples
+	private long estimateBits(int[] x, int n) {
+		if (isConstant(x, n)) {
+			return 0L;
+		}
+		long best = Long.MAX_VALUE;
+		for (int order = 0; order <= MAX_FIXED_ORDER && order < n; order++) {
+			computeResidual(x, n, order);
+			best = Math.min(best, riceBits(n, order, -1));
+		}
+		return best;
+	}
+	
+	private static boolean isConstant(int[] x, int n) {
+		for (int i = 1; i < n; i++) {
+			if (x[i] != x[0]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private void writeSubframe(int[] x, int n, int bps) {
+		if (isConstant(x, n)) {
+			out.writeBits(0, 8); // CONSTANT
+			out.writeBits(x[0], bps);
+			return;
+		}
+		
+		// Choose the fixed predictor order with the smallest residual
+		int bestOrder = -1;
+		long bestBits = (long)n * bps;
+		for (int order = 0; order <= MAX_FIXED_ORDER && order < n; order++) {
+			computeResidual(x, n, order);
+			long bits = order * bps + riceBits(n, order, -1);
+			if (bits < bestBits) {
+				bestBits = bits;
+				bestOrder = order;
+			}
+		}
+		
+		if (bestOrder < 0) {
+			// VERBATIM
+			out.writeBits(2, 8);
+			for (int i = 0; i < n; i++) {
+				out.writeBits(x[i], bps);
+			}
+			return;
+		}
+		
+		// FIXED
+		out.writeBits((8 | bestOrder) << 1, 8);
+		for (int i = 0; i < bestOrder; i++) {
+			out.writeBits(x[i], bps);
+		}
+		computeResidual(x, n, bestOrder);
+		writeResidual(n, bestOrder);
+	}
+	
+	private void computeResidual(int[] x, int n, int order) {
+		int[] r = residual;
+		switch (order) {
+		case 0:
+			for (int i = 0; i < n; i++) {
+				r[i] = x[i];
+			}
+			break;
+		case 1:
+			for (int i = 1; i < n; i++) {
+				r[i] = x[i] - x[i-1];
+			}
+			break;
+		case 2:
+			for (int i = 2; i < n; i++) {
+				r[i] = x[i] - 2*x[i-1] + x[i-2];
+			}
+			break;
+		case 3:
+			for (int i = 3; i < n; i++) {
+				r[i] = x[i] - 3*x[i-1] + 3*x[i-2] - x[i-3];
+			}
+			break;
+		default:
+			for (int i = 4; i < n; i++) {
+				r[i] = x[i] - 4*x[i-1] + 6*x[i-2] - 4*x[i-3] + x[i-4];
+			}
+			break;
+		}
+	}
+	
+	private static int zigzag(int v) {
+		return (v << 1) ^ (v >> 31);
+	}
+	
+	// Determine the partition order to use for the current residual
+	// (if partitionOrder is negative, the best order is chosen), and return
+	// the estimated number of bits needed to code it.  On return,
+	// partitionSums contains the sums for the chosen order.
+	private long riceBits(int n, int predOrder, int partitionOrder) {
+		// Highest usable partition order: the block size must be divisible
+		// by the number of partitions, and the first partition must hold
+		// more than predOrder samples
+		int maxOrder = 0;
+		while (maxOrder < MAX_PARTITION_ORDER && (n % (2 << maxOrder)) == 0
+				&& (n >> (maxOrder + 1)) > predOrder) {
+			maxOrder++;
+		}
+		
+		// Sums of the zigzagged residual for the finest partitioning
+		int numPartitions = 1 << maxOrder;
+		int len = n >> maxOrder;
+		int i = predOrder;
+		for (int p = 0; p < numPartitions; p++) {
+			long sum = 0L;
+			int end = (p + 1) * len;
+			for (; i < end; i++) {
+				sum += zigzag(residual[i]) & 0xffffffffL;
+			}
+			partitionSums[p] = sum;
+		}
+		
+		// Try coarser partitionings by merging adjacent partitions
+		long bestBits = Long.MAX_VALUE;
+		int bestOrder = maxOrder;
+		int order = maxOrder;
+		while (true) {
+			numPartitions = 1 << order;
+			long bits = 0L;
+			for (int p = 0; p < numPartitions; p++) {
+				int count = (n >> order) - (p == 0 ? predOrder : 0);
+				bits += 4 + partitionBits(partitionSums[p], count);
+			}
+			if (partitionOrder < 0 ? bits < bestBits : order == partitionOrder) {
+				bestBits = bits;
+				bestOrder = order;
+			}
+			if (order == 0 || (partitionOrder >= 0 && order == partitionOrder)) {
+				break;
+			}
+			for (int p = 0; p < numPartitions / 2; p++) {
+				partitionSums[p] = partitionSums[2*p] + partitionSums[2*p + 1];
+			}
+			order--;
+		}
+		
+		if (partitionOrder < 0 && bestOrder != 0) {
+			// Recompute the sums for the chosen order
+			riceBits(n, predOrder, bestOrder);
+		}
+		lastPartitionOrder = bestOrder;
+		return 6 + bestBits;
+	}
+	
+	private static int riceParam(long sum, int count) {
+		if (count <= 0) {
+			return 0;
+		}
+		long mean = sum / count;
+		int k = 0;
+		while (k < MAX_RICE_PARAM && (1L << (k + 1)) <= mean) {
+			k++;
+		}
+		return k;
+	}
+	
+	private static long partitionBits(long sum, int count) {
+		int k = riceParam(sum, count);
+		return (long)count * (k + 1) + (sum >> k);
+	}
+	
+	private void writeResidual(int n, int predOrder) {
+		riceBits(n, predOrder, -1);
+		int order = lastPartitionOrder;
+		out.writeBits(0, 2); // 4-bit Rice parameters
+		out.writeBits(order, 4);
+		int numPartitions = 1 << order;
+		int i = predOrder;
+		for (int p = 0; p < numPartitions; p++) {
+			int count = (n >> order) - (p == 0 ? predOrder : 0);
+			int k = riceParam(partitionSums[p], count);
+			out.writeBits(k, 4);
+			int end = i + count;
+			for (; i < end; i++) {
+				int u = zigzag(residual[i]);
+				out.writeUnary(u >>> k);
+				if (k > 0) {
+					out.writeBits(u & ((1 << k) - 1), k);
+				}
+			}
+		}
+	}
+	
+	private void writeBytes(byte[] buf, int len) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+		while (bb.hasRemaining()) {
+			channel.write(bb);
+		}
+	}
+	
+	private static int crc8(byte[] buf, int len) {
+		int crc = 0;
+		for (int i = 0; i < len; i++) {
+			crc = CRC8_TABLE[(crc ^ buf[i]) & 0xff];
+		}
+		return crc;
+	}
+	
+	private static int crc16(byte[] buf, int len) {
+		int crc = 0;
+		for (int i = 0; i < len; i++) {
+			crc = ((crc << 8) ^ CRC16_TABLE[((crc >> 8) ^ buf[i]) & 0xff]) & 0xffff;
+		}
+		return crc;
+	}
+	
+	// Big-endian bit writer
+	private static class BitWriter {
+		private final byte[] buf;
+		private int pos;
+		private long acc;
+		private int accBits;
+		
+		BitWriter(int capacity) {
+			this.buf = new byte[capacity];
+		}
+		
+		void reset() {
+			pos = 0;
+			acc = 0L;
+			accBits = 0;
+		}
+		
+		// Write the low numBits bits of value (numBits <= 36)
+		void writeBits(long value, int numBits) {
+			acc = (acc << numBits) | (value & ((1L << numBits) - 1));
+			accBits += numBits;
+			while (accBits >= 8) {
+				accBits -= 8;
+				buf[pos++] = (byte) (acc >>> accBits);
+			}
+		}
+		
+		// Write q zero bits followed by a one bit
+		void writeUnary(int q) {
+			while (q >= 32) {
+				writeBits(0, 32);
+				q -= 32;
+			}
+			writeBits(1, q + 1);
+		}
+		
+		void alignToByte() {
+			if (accBits > 0) {
+				writeBits(0, 8 - accBits);
+			}
+		}
+		
+		// Number of complete bytes written
+		int getByteCount() {
+			return pos;
+		}
+		
+		byte[] getBytes() {
+			return buf;
+		}
+	}
+}
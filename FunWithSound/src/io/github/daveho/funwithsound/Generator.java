@@ -0,0 +1,246 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Algorithmic composition generators: Euclidean rhythms, arpeggios,
+ * Markov chain melodies, and random walks over a {@link Scale}.
+ * Each generator writes notes into a {@link ScoreBuffer}, starting
+ * at the buffer's current beat, and advances the current beat past
+ * the generated notes, so generators can be called in sequence
+ * to build long figures.  The random number generator is seeded, so
+ * the same sequence of calls always generates the same notes.
+ */
+public class Generator {
+	/**
+	 * Order in which an arpeggio plays the notes of a chord.
+	 */
+	public enum ArpeggioMode {
+		/** Lowest to highest. */
+		UP,
+		/** Highest to lowest. */
+		DOWN,
+		/** Lowest to highest and back down (without repeating the ends.) */
+		UP_DOWN,
+		/** Randomly chosen notes. */
+		RANDOM,
+	}
+	
+	private final Scale scale;
+	private final Random random;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param scale  the {@link Scale} for scale-relative notes
+	 * @param seed   the random number generator seed
+	 */
+	public Generator(Scale scale, long seed) {
+		this.scale = scale;
+		this.random = new Random(seed);
+	}
+	
+	/**
+	 * Compute a Euclidean rhythm: the given number of pulses
+	 * distributed as evenly as possible over the given number of steps,
+	 * with the first step a pulse.
+	 * 
+	 * @param pulses  the number of pulses
+	 * @param steps   the number of steps
+	 * @return array indicating which steps are pulses
+	 */
+	public static boolean[] euclid(int pulses, int steps) {
+		if (steps <= 0 || pulses < 0 || pulses > steps) {
+			throw new IllegalArgumentException("Invalid Euclidean rhythm: " + pulses + " pulses in " + steps + " steps");
+		}
+		boolean[] result = new boolean[steps];
+		for (int i = 0; i < steps; i++) {
+			result[i] = (i*pulses) % steps < pulses;
+		}
+		return result;
+	}
+	
+	/**
+	 * Generate a Euclidean rhythm playing a chord.
+	 * 
+	 * @param out        the {@link ScoreBuffer} to add the notes to
+	 * @param pulses     the number of pulses in each cycle
+	 * @param steps      the number of steps in each cycle
+	 * @param cycles     the number of cycles to generate
+	 * @param stepBeats  the length of each step, in beats
+	 * @param chord      the chord played on each pulse
+	 * @param velocity   the velocity
+	 */
+	public void euclid(ScoreBuffer out, int pulses, int steps, int cycles, double stepBeats, Chord chord, int velocity) {
+		boolean[] pattern = euclid(pulses, steps);
+		double beat = out.getBeat();
+		for (int c = 0; c < cycles; c++) {
+			for (int i = 0; i < steps; i++) {
+				if (pattern[i]) {
+					out.add(beat, stepBeats, velocity, chord);
+				}
+				beat += stepBeats;
+			}
+		}
+		out.setBeat(beat);
+	}
+	
+	/**
+	 * Generate an arpeggio over the notes of a chord.
+	 * 
+	 * @param out        the {@link ScoreBuffer} to add the notes to
+	 * @param chord      the chord
+	 * @param mode       the order in which the chord's notes are played
+	 * @param octaves    the number of octaves the arpeggio spans (at least 1)
+	 * @param count      the number of notes to generate
+	 * @param stepBeats  the time between notes, in beats
+	 * @param velocity   the velocity
+	 */
+	public void arpeggiate(ScoreBuffer out, Chord chord, ArpeggioMode mode, int octaves, int count, double stepBeats, int velocity) {
+		// Notes of the chord in each octave, in ascending order
+		int[] base = chord.toArray();
+		Arrays.sort(base);
+		int[] notes = new int[base.length * Math.max(1, octaves)];
+		for (int i = 0; i < notes.length; i++) {
+			notes[i] = base[i % base.length] + 12*(i / base.length);
+		}
+		if (notes.length == 0) {
+			return;
+		}
+		
+		int cycle = (mode == ArpeggioMode.UP_DOWN) ? Math.max(1, 2*notes.length - 2) : notes.length;
+		double beat = out.getBeat();
+		for (int i = 0; i < count; i++) {
+			int pos = i % cycle;
+			int note;
+			switch (mode) {
+			case DOWN:
+				note = notes[notes.length - 1 - pos];
+				break;
+			case UP_DOWN:
+				note = notes[pos < notes.length ? pos : cycle - pos];
+				break;
+			case RANDOM:
+				note = notes[random.nextInt(notes.length)];
+				break;
+			default:
+				note = notes[pos];
+				break;
+			}
+			out.add(beat, stepBeats, velocity, note);
+			beat += stepBeats;
+		}
+		out.setBeat(beat);
+	}
+	
+	/**
+	 * Generate a melody using a Markov chain over the notes of
+	 * the scale.  Row <i>i</i> of the transition matrix gives the
+	 * (relative) probabilities of the note following scale note <i>i</i>
+	 * being each of the scale notes.
+	 * 
+	 * @param out          the {@link ScoreBuffer} to add the notes to
+	 * @param transitions  the transition matrix (n by n, where n is the
+	 *                     number of notes in the scale, with no
+	 *                     negative entries)
+	 * @param first        the scale-relative first note (in the range 0..n-1)
+	 * @param count        the number of notes to generate
+	 * @param stepBeats    the time between notes, in beats
+	 * @param velocity     the velocity
+	 */
+	public void markov(ScoreBuffer out, double[][] transitions, int first, int count, double stepBeats, int velocity) {
+		int n = scale.size();
+		if (transitions.length != n) {
+			throw new IllegalArgumentException("Transition matrix must have " + n + " rows");
+		}
+		if (first < 0 || first >= n) {
+			throw new IllegalArgumentException("First note " + first + " is not in the range 0.." + (n - 1));
+		}
+		// Cumulative probabilities for each row
+		double[][] cumulative = new double[n][n];
+		for (int i = 0; i < n; i++) {
+			if (transitions[i].length != n) {
+				throw new IllegalArgumentException("Transition matrix must have " + n + " columns");
+			}
+			double sum = 0.0;
+			for (int j = 0; j < n; j++) {
+				if (!(transitions[i][j] >= 0.0)) {
+					throw new IllegalArgumentException("Transition matrix entry " + i + "," + j + " is negative");
+				}
+				sum += transitions[i][j];
+				cumulative[i][j] = sum;
+			}
+			if (sum <= 0.0) {
+				throw new IllegalArgumentException("Transition matrix row " + i + " has no transitions");
+			}
+		}
+		
+		double beat = out.getBeat();
+		int note = first;
+		for (int i = 0; i < count; i++) {
+			out.add(beat, stepBeats, velocity, scale.get(note));
+			beat += stepBeats;
+			double[] row = cumulative[note];
+			double r = random.nextDouble() * row[n - 1];
+			int next = 0;
+			while (next < n - 1 && r >= row[next]) {
+				next++;
+			}
+			note = next;
+		}
+		out.setBeat(beat);
+	}
+	
+	/**
+	 * Generate a melody using a random walk over the notes of the scale:
+	 * each note is a random number of steps (up to maxStep) above or
+	 * below the previous note, staying within a range of scale notes.
+	 * 
+	 * @param out        the {@link ScoreBuffer} to add the notes to
+	 * @param first      the scale-relative first note
+	 * @param maxStep    the maximum number of scale steps between notes
+	 *                   (must not be negative)
+	 * @param low        the lowest scale-relative note
+	 * @param high       the highest scale-relative note
+	 * @param count      the number of notes to generate
+	 * @param stepBeats  the time between notes, in beats
+	 * @param velocity   the velocity
+	 */
+	public void randomWalk(ScoreBuffer out, int first, int maxStep, int low, int high, int count, double stepBeats, int velocity) {
+		if (low > high) {
+			throw new IllegalArgumentException("Invalid random walk range: " + low + ".." + high);
+		}
+		if (maxStep < 0) {
+			throw new IllegalArgumentException("Maximum step " + maxStep + " is negative");
+		}
+		double beat = out.getBeat();
+		int note = Math.max(low, Math.min(high, first));
+		for (int i = 0; i < count; i++) {
+			out.add(beat, stepBeats, velocity, scale.get(note));
+			beat += stepBeats;
+			note += random.nextInt(2*maxStep + 1) - maxStep;
+			// Reflect off the ends of the range
+			if (note < low) {
+				note = Math.min(high, 2*low - note);
+			} else if (note > high) {
+				note = Math.max(low, 2*high - note);
+			}
+		}
+		out.setBeat(beat);
+	}
+}
@@ -0,0 +1,180 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.beadsproject.beads.data.Sample;
+import net.beadsproject.beads.data.SampleManager;
+
+/**
+ * An impulse response split into uniform partitions, with the spectrum
+ * of each partition precomputed for use by {@link PartitionedConvolver}.
+ * The spectra for each channel are stored in a single flat array
+ * (partition-major, with interleaved real and imaginary parts for bins
+ * 0..<i>blockSize</i>), so they can be shared read-only by any number
+ * of convolvers, and could be written to or mapped from a file as-is.
+ * Impulse responses loaded from files are cached, so each
+ * file is only loaded and transformed once for a given block size
+ * and sample rate.
+ */
+public class ImpulseResponse {
+	private static final ConcurrentHashMap<String, ImpulseResponse> cache =
+			new ConcurrentHashMap<String, ImpulseResponse>();
+
+	private final int blockSize;
+	private final int numPartitions;
+	private final float[][] spectra;
+	private final FFT fft;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param data       the impulse response samples, indexed by channel and frame
+	 * @param blockSize  the partition size (a power of 2): this should be the
+	 *                   AudioContext's buffer size
+	 */
+	public ImpulseResponse(float[][] data, int blockSize) {
+		this.blockSize = blockSize;
+		this.fft = new FFT(blockSize*2);
+		int numFrames = data[0].length;
+		this.numPartitions = Math.max(1, (numFrames + blockSize - 1) / blockSize);
+		this.spectra = new float[data.length][];
+
+		int n = blockSize*2;
+		int bins = blockSize+1;
+		float[] re = new float[n];
+		float[] im = new float[n];
+		for (int c = 0; c < data.length; c++) {
+			float[] spec = new float[numPartitions*bins*2];
+			for (int p = 0; p < numPartitions; p++) {
+				// Each partition is zero-padded to twice the block size
+				for (int i = 0; i < n; i++) {
+					int frame = p*blockSize + i;
+					re[i] = (i < blockSize && frame < numFrames) ? data[c][frame] : 0.0f;
+					im[i] = 0.0f;
+				}
+				fft.forward(re, im);
+				// The input is real, so only bins 0..blockSize are needed
+				int base = p*bins*2;
+				for (int k = 0; k < bins; k++) {
+					spec[base + k*2] = re[k];
+					spec[base + k*2 + 1] = im[k];
+				}
+			}
+			spectra[c] = spec;
+		}
+	}
+
+	/**
+	 * Get the cached impulse response for the given file,
+	 * loading it (and resampling it, if necessary) if it is not
+	 * already cached.
+	 *
+	 * @param fileName    the impulse response sample file
+	 * @param blockSize   the partition size (the AudioContext's buffer size)
+	 * @param sampleRate  the AudioContext's sample rate
+	 * @return the impulse response
+	 * @throws IllegalArgumentException if the file can't be loaded
+	 */
+	public static ImpulseResponse get(String fileName, int blockSize, float sampleRate) {
+		String key = fileName + "@" + blockSize + "@" + sampleRate;
+		ImpulseResponse ir = cache.get(key);
+		if (ir == null) {
+			Sample sample = SampleManager.sample(fileName);
+			if (sample == null) {
+				throw new IllegalArgumentException("Could not load impulse response " + fileName);
+			}
+			int numFrames = (int) sample.getNumFrames();
+			float[][] data = new float[sample.getNumChannels()][numFrames];
+			sample.getFrames(0, data);
+			if (sample.getSampleRate() != sampleRate) {
+				data = resampleLinear(data, sampleRate / sample.getSampleRate());
+			}
+			ir = new ImpulseResponse(data, blockSize);
+			ImpulseResponse prev = cache.putIfAbsent(key, ir);
+			if (prev != null) {
+				ir = prev;
+			}
+		}
+		return ir;
+	}
+
+	// Linear interpolation is adequate for an impulse response,
+	// which is typically noise-like and decaying.
+	private static float[][] resampleLinear(float[][] data, double ratio) {
+		int inFrames = data[0].length;
+		int outFrames = (int) Math.ceil(inFrames * ratio);
+		float[][] result = new float[data.length][outFrames];
+		for (int c = 0; c < data.length; c++) {
+			for (int i = 0; i < outFrames; i++) {
+				double pos = i / ratio;
+				int j = (int) pos;
+				float frac = (float) (pos - j);
+				float a = j < inFrames ? data[c][j] : 0.0f;
+				float b = j+1 < inFrames ? data[c][j+1] : 0.0f;
+				result[c][i] = a + frac*(b - a);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Get the partition size.
+	 *
+	 * @return the partition size
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Get the number of partitions.
+	 *
+	 * @return the number of partitions
+	 */
+	public int getNumPartitions() {
+		return numPartitions;
+	}
+
+	/**
+	 * Get the number of channels.
+	 *
+	 * @return the number of channels
+	 */
+	public int getNumChannels() {
+		return spectra.length;
+	}
+
+	/**
+	 * Get the precomputed partition spectra for a channel.
+	 *
+	 * @param channel the channel
+	 * @return the partition spectra
+	 */
+	float[] getSpectra(int channel) {
+		return spectra[channel];
+	}
+
+	/**
+	 * Get the FFT used to compute the partition spectra
+	 * (its size is twice the block size.)
+	 *
+	 * @return the FFT
+	 */
+	FFT getFFT() {
+		return fft;
+	}
+}
@@ -15,7 +15,9 @@
 
 package io.github.daveho.funwithsound;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -28,6 +30,7 @@ public class Instrument {
 	private final int patch;
 	private final String soundFont;
 	private final Map<Integer, SampleInfo> sampleMap;
+	private final List<SampleZone> zones;
 	
 	Instrument(int patch) {
 		this(InstrumentType.MIDI, patch, null);
@@ -38,6 +41,7 @@ public class Instrument {
 		this.patch = patch;
 		this.soundFont = soundFont;
 		this.sampleMap = new HashMap<Integer, SampleInfo>();
+		this.zones = new ArrayList<SampleZone>();
 	}
 	
 	Instrument(InstrumentType type) {
@@ -147,6 +151,76 @@ public class Instrument {
 		return sampleMap;
 	}
 
+	/**
+	 * Add a zone to a multisample instrument.
+	 * The entire sample will be played at full volume for all notes
+	 * in the specified range (at any velocity), pitch shifted from
+	 * the root note.
+	 * 
+	 * @param lowNote   the lowest note (inclusive)
+	 * @param highNote  the highest note (inclusive)
+	 * @param rootNote  the note at which the sample plays at its recorded pitch
+	 * @param fileName  the sample filename
+	 */
+	public void addZone(int lowNote, int highNote, int rootNote, String fileName) {
+		addZone(lowNote, highNote, 0, 127, rootNote, fileName, 1.0);
+	}
+
+	/**
+	 * Add a zone to a multisample instrument.
+	 * The entire sample will be played with the specified gain for all
+	 * notes and velocities in the specified ranges, pitch shifted from
+	 * the root note.  Notes are played using the first zone added
+	 * whose ranges contain the note and velocity: if there is no such
+	 * zone, the zone with the nearest root note is used.
+	 * 
+	 * @param lowNote       the lowest note (inclusive)
+	 * @param highNote      the highest note (inclusive)
+	 * @param lowVelocity   the lowest velocity (inclusive)
+	 * @param highVelocity  the highest velocity (inclusive)
+	 * @param rootNote      the note at which the sample plays at its recorded pitch
+	 * @param fileName      the sample filename
+	 * @param gain          the gain
+	 */
+	public void addZone(int lowNote, int highNote, int lowVelocity, int highVelocity,
+			int rootNote, String fileName, double gain) {
+		addZone(lowNote, highNote, lowVelocity, highVelocity, rootNote, fileName, -1, -1, gain);
+	}
+
+	/**
+	 * Add a zone to a multisample instrument.
+	 * The specified range of the sample will be played with the specified
+	 * gain for all notes and velocities in the specified ranges.
+	 * 
+	 * @param lowNote       the lowest note (inclusive)
+	 * @param highNote      the highest note (inclusive)
+	 * @param lowVelocity   the lowest velocity (inclusive)
+	 * @param highVelocity  the highest velocity (inclusive)
+	 * @param rootNote      the note at which the sample plays at its recorded pitch
+	 * @param fileName      the sample filename
+	 * @param startMs       the start time in milliseconds
+	 * @param endMs         the end time in milliseconds
+	 * @param gain          the gain
+	 */
+	public void addZone(int lowNote, int highNote, int lowVelocity, int highVelocity,
+			int rootNote, String fileName, double startMs, double endMs, double gain) {
+		if (type != InstrumentType.MULTISAMPLE) {
+			throw new RuntimeException("Can't add zones to " + type + " instrument");
+		}
+		zones.add(new SampleZone(lowNote, highNote, lowVelocity, highVelocity, rootNote,
+				fileName, startMs, endMs, gain));
+	}
+	
+	/**
+	 * Get the zones of a multisample instrument, in the order
+	 * in which they were added.
+	 * 
+	 * @return the list of {@link SampleZone}s
+	 */
+	public List<SampleZone> getZones() {
+		return zones;
+	}
+
 	/**
 	 * Determine whether this is a MIDI instrument.
 	 * 
@@ -37,6 +37,9 @@ public class InstrumentType implements Comparable<InstrumentType> {
 		/** Sample bank instrument. */
 		SAMPLE_BANK,
 		
+		/** Multisample instrument. */
+		MULTISAMPLE,
+		
 		/** Custom instrument type. */
 		CUSTOM,;
 
@@ -59,6 +62,11 @@ public class InstrumentType implements Comparable<InstrumentType> {
 	 */
 	public static final InstrumentType SAMPLE_BANK = new InstrumentType(Kind.SAMPLE_BANK, 0);
 	
+	/**
+	 * Multisample instrument.
+	 */
+	public static final InstrumentType MULTISAMPLE = new InstrumentType(Kind.MULTISAMPLE, 0);
+	
 	private static final Map<Integer, InstrumentType> customInstrumentTypeMap =
 			new ConcurrentHashMap<Integer, InstrumentType>();
 	
@@ -0,0 +1,214 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A wave file whose audio data is memory-mapped (rather than loaded into
+ * arrays on the Java heap), and decoded on demand.  Supports 8, 16, 24, and
+ * 32 bit integer PCM and 32 bit floating point data.
+ * A MappedSample is immutable, and may be used by any number of
+ * threads concurrently.  Use {@link MappedSampleStore} to share
+ * mappings of the same file.
+ */
+public class MappedSample {
+	private static final int FORMAT_PCM = 1;
+	private static final int FORMAT_FLOAT = 3;
+	private static final int FORMAT_EXTENSIBLE = 0xfffe;
+	
+	private final String fileName;
+	private final ByteBuffer data;
+	private final int numChannels;
+	private final float sampleRate;
+	private final int bytesPerSample;
+	private final boolean isFloat;
+	private final int frameSize;
+	private final long numFrames;
+	
+	/**
+	 * Constructor: maps the given wave file.
+	 * 
+	 * @param fileName the wave file
+	 * @throws IOException if the file can't be read, or isn't a supported wave file
+	 */
+	public MappedSample(String fileName) throws IOException {
+		this.fileName = fileName;
+		RandomAccessFile raf = new RandomAccessFile(new File(fileName), "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Wave file too large to map: " + fileName);
+			}
+			// The mapping remains valid after the file is closed
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+			map.order(ByteOrder.LITTLE_ENDIAN);
+			
+			if (size < 12 || map.getInt(0) != 0x46464952 || map.getInt(8) != 0x45564157) { // "RIFF", "WAVE"
+				throw new IOException("Not a wave file: " + fileName);
+			}
+			
+			// Find the fmt and data chunks
+			int format = -1, channels = 0, bits = 0;
+			float rate = 0.0f;
+			int dataStart = -1;
+			long dataLen = 0L;
+			int pos = 12;
+			while (pos + 8 <= size && dataStart < 0) {
+				int id = map.getInt(pos);
+				long len = map.getInt(pos + 4) & 0xffffffffL;
+				int body = pos + 8;
+				if (id == 0x20746d66) { // "fmt "
+					format = map.getShort(body) & 0xffff;
+					channels = map.getShort(body + 2) & 0xffff;
+					rate = map.getInt(body + 4);
+					bits = map.getShort(body + 14) & 0xffff;
+					if (format == FORMAT_EXTENSIBLE && len >= 26) {
+						// The format code is the start of the subformat GUID
+						format = map.getShort(body + 24) & 0xffff;
+					}
+				} else if (id == 0x61746164) { // "data"
+					dataStart = body;
+					dataLen = Math.min(len, size - body);
+				}
+				pos = body + (int) len + (int) (len & 1); // chunks are word-aligned
+			}
+			if (format < 0 || dataStart < 0 || channels < 1) {
+				throw new IOException("Wave file is missing fmt or data chunk: " + fileName);
+			}
+			if (!((format == FORMAT_PCM && (bits == 8 || bits == 16 || bits == 24 || bits == 32))
+					|| (format == FORMAT_FLOAT && bits == 32))) {
+				throw new IOException("Unsupported wave format " + format + " (" + bits + " bits): " + fileName);
+			}
+			
+			map.position(dataStart);
+			map.limit(dataStart + (int) dataLen);
+			this.data = map.slice().order(ByteOrder.LITTLE_ENDIAN);
+			this.numChannels = channels;
+			this.sampleRate = rate;
+			this.bytesPerSample = bits / 8;
+			this.isFloat = format == FORMAT_FLOAT;
+			this.frameSize = channels * bytesPerSample;
+			this.numFrames = dataLen / frameSize;
+		} finally {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Get the file name.
+	 * 
+	 * @return the file name
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+	
+	/**
+	 * Get the number of channels.
+	 * 
+	 * @return the number of channels
+	 */
+	public int getNumChannels() {
+		return numChannels;
+	}
+	
+	/**
+	 * Get the sample rate.
+	 * 
+	 * @return the sample rate
+	 */
+	public float getSampleRate() {
+		return sampleRate;
+	}
+	
+	/**
+	 * Get the number of frames.
+	 * 
+	 * @return the number of frames
+	 */
+	public long getNumFrames() {
+		return numFrames;
+	}
+	
+	/**
+	 * Get the length in milliseconds.
+	 * 
+	 * @return the length in milliseconds
+	 */
+	public double getLengthMs() {
+		return numFrames * 1000.0 / sampleRate;
+	}
+	
+	/**
+	 * Decode one sample.
+	 * 
+	 * @param frame    the frame (0 if out of range)
+	 * @param channel  the channel
+	 * @return the sample value (-1..1)
+	 */
+	public float getSample(long frame, int channel) {
+		if (frame < 0L || frame >= numFrames) {
+			return 0.0f;
+		}
+		int off = (int) (frame * frameSize) + channel * bytesPerSample;
+		if (isFloat) {
+			return data.getFloat(off);
+		}
+		switch (bytesPerSample) {
+		case 1:
+			return ((data.get(off) & 0xff) - 128) / 128.0f;
+		case 2:
+			return data.getShort(off) / 32768.0f;
+		case 3:
+			return ((data.get(off) & 0xff) | ((data.get(off + 1) & 0xff) << 8) | (data.get(off + 2) << 16)) / 8388608.0f;
+		default:
+			return data.getInt(off) / 2147483648.0f;
+		}
+	}
+	
+	/**
+	 * Decode consecutive frames of one channel.
+	 * Frames out of range are decoded as silence.
+	 * 
+	 * @param startFrame  the first frame
+	 * @param channel     the channel
+	 * @param dest        array to receive the samples
+	 * @param destOffset  offset in the destination array
+	 * @param count       the number of frames
+	 */
+	public void getSamples(long startFrame, int channel, float[] dest, int destOffset, int count) {
+		if (!isFloat && bytesPerSample == 2) {
+			// Fast path for the common case
+			for (int i = 0; i < count; i++) {
+				long frame = startFrame + i;
+				dest[destOffset + i] = (frame >= 0L && frame < numFrames)
+						? data.getShort((int) (frame * frameSize) + channel * 2) / 32768.0f
+						: 0.0f;
+			}
+		} else {
+			for (int i = 0; i < count; i++) {
+				dest[destOffset + i] = getSample(startFrame + i, channel);
+			}
+		}
+	}
+}
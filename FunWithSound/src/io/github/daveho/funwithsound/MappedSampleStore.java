@@ -0,0 +1,50 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared store of {@link MappedSample}s, so that each wave file is
+ * only mapped once, no matter how many instruments (in how many
+ * {@link Player}s) use it.
+ */
+public class MappedSampleStore {
+	private static final ConcurrentHashMap<String, MappedSample> store =
+			new ConcurrentHashMap<String, MappedSample>();
+	
+	/**
+	 * Get the {@link MappedSample} for the given wave file,
+	 * mapping it if it is not already mapped.
+	 * 
+	 * @param fileName the wave file
+	 * @return the {@link MappedSample}
+	 * @throws IOException if the file can't be read, or isn't a supported wave file
+	 */
+	public static MappedSample get(String fileName) throws IOException {
+		String key = new File(fileName).getCanonicalPath();
+		MappedSample sample = store.get(key);
+		if (sample == null) {
+			sample = new MappedSample(fileName);
+			MappedSample prev = store.putIfAbsent(key, sample);
+			if (prev != null) {
+				sample = prev;
+			}
+		}
+		return sample;
+	}
+}
@@ -0,0 +1,109 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import java.util.Arrays;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.UGen;
+
+/**
+ * UGen which plays a range of a {@link MappedSample}, decoding frames
+ * directly into its output buffer as they are needed, with short
+ * linear ramps at the start and end to avoid clicks.
+ * If the sample's rate differs from the AudioContext's, it is
+ * resampled using linear interpolation.
+ * Mono samples are played on both output channels.
+ */
+class MappedSampleVoice extends UGen {
+	private final MappedSample sample;
+	private final double step;
+	private final double rampFrames;
+	private double pos;
+	private long outFrame;
+	private long outFrames;
+	private boolean playing;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param ac          the AudioContext
+	 * @param sample      the {@link MappedSample} to play
+	 * @param rampTimeMs  duration of the ramps at the start and end
+	 */
+	public MappedSampleVoice(AudioContext ac, MappedSample sample, float rampTimeMs) {
+		super(ac, 0, 2);
+		this.sample = sample;
+		this.step = sample.getSampleRate() / ac.getSampleRate();
+		this.rampFrames = Math.max(1.0, ac.msToSamples(rampTimeMs));
+	}
+	
+	/**
+	 * Start playing a range of the sample (from the beginning of the
+	 * range, even if the voice is already playing.)
+	 * 
+	 * @param range the {@link SampleRange}
+	 */
+	public void trigger(SampleRange range) {
+		double rate = sample.getSampleRate() / 1000.0;
+		pos = Math.max(0.0, range.startMs * rate);
+		double endPos = Math.min(range.endMs * rate, (double) sample.getNumFrames());
+		outFrames = (long) ((endPos - pos) / step);
+		outFrame = 0L;
+		playing = outFrames > 0L;
+	}
+	
+	@Override
+	public void calculateBuffer() {
+		int n = playing ? (int) Math.min(bufferSize, outFrames - outFrame) : 0;
+		
+		int numChannels = sample.getNumChannels();
+		for (int c = 0; c < 2; c++) {
+			float[] out = bufOut[c];
+			int sc = c % numChannels;
+			if (step == 1.0 && pos == Math.floor(pos)) {
+				sample.getSamples((long) pos, sc, out, 0, n);
+			} else {
+				for (int i = 0; i < n; i++) {
+					double p = pos + i * step;
+					long i0 = (long) p;
+					float frac = (float) (p - i0);
+					float a = sample.getSample(i0, sc);
+					float b = sample.getSample(i0 + 1, sc);
+					out[i] = a + frac * (b - a);
+				}
+			}
+			
+			// Ramps at the start and end
+			for (int i = 0; i < n; i++) {
+				long k = outFrame + i;
+				double g = Math.min(k, outFrames - k) / rampFrames;
+				if (g < 1.0) {
+					out[i] *= (float) g;
+				}
+			}
+			
+			Arrays.fill(out, n, bufferSize, 0.0f);
+		}
+		
+		if (playing) {
+			pos += n * step;
+			outFrame += n;
+			if (outFrame >= outFrames) {
+				playing = false;
+			}
+		}
+	}
+}
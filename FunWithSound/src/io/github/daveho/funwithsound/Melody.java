@@ -15,7 +15,8 @@
 
 package io.github.daveho.funwithsound;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
@@ -25,15 +26,20 @@ import java.util.List;
  * information: that is represented by {@link Rhythm}
  * and {@link Strike}.  A melody also does not specify
  * an instrument.
+ * The pitches of the chords can be accessed without boxing
+ * using {@link #getNumPitches(int)} and {@link #getPitch(int, int)}.
  */
 public class Melody implements Iterable<Chord> {
-	private List<Chord> chords;
+	private static final Chord[] EMPTY = new Chord[0];
+	
+	private Chord[] chords;
+	private int size;
 	
 	/**
 	 * Constructor.
 	 */
 	public Melody() {
-		chords = new ArrayList<Chord>();
+		chords = EMPTY;
 	}
 	
 	/**
@@ -42,7 +48,10 @@ public class Melody implements Iterable<Chord> {
 	 * @param chord the {@link Chord} to append
 	 */
 	public void add(Chord chord) {
-		chords.add(chord);
+		if (size == chords.length) {
+			chords = Arrays.copyOf(chords, Math.max(8, size*2));
+		}
+		chords[size++] = chord;
 	}
 	
 	/**
@@ -51,7 +60,7 @@ public class Melody implements Iterable<Chord> {
 	 * @return the number of {@link Chord}s
 	 */
 	public int size() {
-		return chords.size();
+		return size;
 	}
 	
 	/**
@@ -61,11 +70,36 @@ public class Melody implements Iterable<Chord> {
 	 * @return the {@link Chord}
 	 */
 	public Chord get(int index) {
-		return chords.get(index);
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+		}
+		return chords[index];
+	}
+	
+	/**
+	 * Get the number of pitches in a specified {@link Chord}.
+	 * 
+	 * @param index the index of the {@link Chord}
+	 * @return the number of pitches in the {@link Chord}
+	 */
+	public int getNumPitches(int index) {
+		return get(index).size();
+	}
+	
+	/**
+	 * Get a pitch of a specified {@link Chord}.
+	 * 
+	 * @param index  the index of the {@link Chord}
+	 * @param pitch  the index of the pitch within the {@link Chord}
+	 * @return the pitch (MIDI note number)
+	 */
+	public int getPitch(int index, int pitch) {
+		return get(index).get(pitch);
 	}
 	
 	@Override
 	public Iterator<Chord> iterator() {
-		return chords.iterator();
+		List<Chord> view = Arrays.asList(chords).subList(0, size);
+		return Collections.unmodifiableList(view).iterator();
 	}
 }
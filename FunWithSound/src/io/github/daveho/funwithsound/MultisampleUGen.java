@@ -0,0 +1,324 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import io.github.daveho.gervill4beads.Midi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.Bead;
+import net.beadsproject.beads.core.UGen;
+import net.beadsproject.beads.data.Sample;
+
+/**
+ * A UGen that plays a multisample instrument: each note is played
+ * using the {@link SampleZone} selected by its key and velocity,
+ * pitch shifted from the zone's root note.
+ * Notes are played by a fixed pool of voices shared by all zones:
+ * when all voices are busy, the oldest voice is reused.
+ * Each zone's sample is sliced (see {@link SampleSlice}) once, and
+ * the slices of zones using the same sample and range are shared,
+ * so memory use depends only on the number of distinct recordings.
+ * Like {@link SampleBankUGen}, it expects to receive MidiMessages
+ * at the correct playback times.
+ */
+public class MultisampleUGen extends UGen {
+	/** Default number of voices. */
+	public static final int DEFAULT_NUM_VOICES = 32;
+	
+	/** Duration of the fade in and fade out ramps applied to sample slices. */
+	static final float RAMP_TIME_MS = 5.0f;
+	private static final float RELEASE_TIME_MS = 50.0f;
+	
+	private static class Zone {
+		SampleSlice slice;
+		Future<SampleSlice> pending;
+	}
+	
+	// A pending slice for a zone, added during playback
+	private static class LateZone {
+		final int index;
+		final Future<SampleSlice> slice;
+		
+		LateZone(int index, Future<SampleSlice> slice) {
+			this.index = index;
+			this.slice = slice;
+		}
+	}
+	
+	private static class Voice {
+		boolean active;
+		int note;
+		long age;
+		SampleSlice slice;
+		double pos;
+		double step;
+		float gain;
+		float env;
+		boolean releasing;
+	}
+	
+	private final List<SampleZone> zoneInfo;
+	private final List<Zone> zones;
+	private final Voice[] voices;
+	private final float releaseStep;
+	private long noteCount;
+	private boolean waitForSamples;
+	private long notLoadedNotes;
+	private final ConcurrentLinkedQueue<LateZone> lateZones = new ConcurrentLinkedQueue<LateZone>();
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param ac the AudioContext
+	 */
+	public MultisampleUGen(AudioContext ac) {
+		this(ac, DEFAULT_NUM_VOICES);
+	}
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param ac         the AudioContext
+	 * @param numVoices  the number of voices (maximum number of
+	 *                   simultaneous notes)
+	 */
+	public MultisampleUGen(AudioContext ac, int numVoices) {
+		super(ac, 0, 2);
+		this.zoneInfo = new ArrayList<SampleZone>();
+		this.zones = new ArrayList<Zone>();
+		this.voices = new Voice[numVoices];
+		for (int i = 0; i < numVoices; i++) {
+			voices[i] = new Voice();
+		}
+		this.releaseStep = (float) (1000.0 / (RELEASE_TIME_MS * ac.getSampleRate()));
+	}
+	
+	/**
+	 * Add a zone.
+	 * 
+	 * @param zone    the {@link SampleZone}
+	 * @param sample  the zone's Sample
+	 */
+	public void addZone(SampleZone zone, Sample sample) {
+		Zone z = new Zone();
+		if (sample != null) {
+			z.slice = SampleSlice.get(sample, zone.getRange(), context.getSampleRate(), RAMP_TIME_MS);
+		}
+		zoneInfo.add(zone);
+		zones.add(z);
+	}
+	
+	/**
+	 * Add a zone whose {@link SampleSlice} is being loaded asynchronously
+	 * (see {@link SamplePrefetcher}).
+	 * The slice is installed when the zone is first played: if it
+	 * hasn't finished loading by then, the note is skipped (and counted,
+	 * see {@link #getNotLoadedNotes()}), unless
+	 * {@link #setWaitForSamples(boolean)} has been used to wait for
+	 * samples to load.
+	 * 
+	 * @param zone    the {@link SampleZone}
+	 * @param slice   Future which will provide the zone's SampleSlice,
+	 *                or null if the zone is never played
+	 */
+	void addPendingZone(SampleZone zone, Future<SampleSlice> slice) {
+		Zone z = new Zone();
+		z.pending = slice;
+		zoneInfo.add(zone);
+		zones.add(z);
+	}
+	
+	/**
+	 * Provide the slice for a zone which was added (using
+	 * {@link #addPendingZone(SampleZone, Future)}) without one because it
+	 * wasn't expected to be played.  May be called (from any thread)
+	 * during playback: the slice is installed by the audio thread
+	 * before it handles the next MIDI message.
+	 * 
+	 * @param index  the index of the zone
+	 * @param slice  Future which will provide the zone's SampleSlice
+	 */
+	void addLatePendingZone(int index, Future<SampleSlice> slice) {
+		lateZones.add(new LateZone(index, slice));
+	}
+	
+	/**
+	 * Set whether playing a note whose sample is still being loaded
+	 * should wait for the sample to load (rather than skipping the note.)
+	 * 
+	 * @param waitForSamples true if notes should wait for samples to load
+	 */
+	public void setWaitForSamples(boolean waitForSamples) {
+		this.waitForSamples = waitForSamples;
+	}
+	
+	/**
+	 * Get the number of notes which were skipped because their
+	 * sample hadn't finished loading.
+	 * 
+	 * @return number of skipped notes
+	 */
+	public long getNotLoadedNotes() {
+		return notLoadedNotes;
+	}
+	
+	// Get the slice for a zone, installing it if it was
+	// being loaded asynchronously.  Returns null if it isn't available.
+	private SampleSlice getSlice(int index) {
+		Zone z = zones.get(index);
+		if (z.slice != null || z.pending == null) {
+			return z.slice;
+		}
+		if (!waitForSamples && !z.pending.isDone()) {
+			notLoadedNotes++;
+			return null;
+		}
+		try {
+			z.slice = z.pending.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			// The prefetcher reports samples that can't be loaded
+			z.slice = null;
+		}
+		z.pending = null;
+		return z.slice;
+	}
+	
+	@Override
+	protected void messageReceived(Bead message) {
+		LateZone late;
+		while ((late = lateZones.poll()) != null) {
+			Zone z = zones.get(late.index);
+			if (z.slice == null && z.pending == null) {
+				z.pending = late.slice;
+			}
+		}
+		if (Midi.hasMidiMessage(message)) {
+			MidiMessage msg = Midi.getMidiMessage(message);
+			if (msg instanceof ShortMessage) {
+				ShortMessage smsg = (ShortMessage) msg;
+				int note = smsg.getData1();
+				if (smsg.getCommand() == ShortMessage.NOTE_ON && smsg.getData2() > 0) {
+					onNoteOn(note, smsg.getData2());
+				} else if (smsg.getCommand() == ShortMessage.NOTE_OFF || smsg.getCommand() == ShortMessage.NOTE_ON) {
+					onNoteOff(note);
+				}
+			}
+		}
+	}
+	
+	private void onNoteOn(int note, int velocity) {
+		int index = SampleZone.find(zoneInfo, note, velocity);
+		if (index < 0) {
+			return;
+		}
+		SampleSlice slice = getSlice(index);
+		if (slice == null) {
+			return;
+		}
+		SampleZone info = zoneInfo.get(index);
+		
+		Voice v = allocateVoice();
+		v.active = true;
+		v.note = note;
+		v.age = noteCount++;
+		v.slice = slice;
+		v.pos = 0.0;
+		v.step = Math.pow(2.0, (note - info.rootNote) / 12.0);
+		v.gain = (float) (info.gain * velocity / 127.0);
+		v.env = 1.0f;
+		v.releasing = false;
+	}
+	
+	private void onNoteOff(int note) {
+		for (Voice v : voices) {
+			if (v.active && v.note == note) {
+				v.releasing = true;
+			}
+		}
+	}
+	
+	// Find a free voice, or else the oldest voice (preferring
+	// voices whose notes have been released)
+	private Voice allocateVoice() {
+		Voice best = null;
+		for (Voice v : voices) {
+			if (!v.active) {
+				return v;
+			}
+			if (best == null || (v.releasing && !best.releasing)
+					|| (v.releasing == best.releasing && v.age < best.age)) {
+				best = v;
+			}
+		}
+		return best;
+	}
+	
+	@Override
+	public void calculateBuffer() {
+		float[] outL = bufOut[0];
+		float[] outR = bufOut[1];
+		Arrays.fill(outL, 0, bufferSize, 0.0f);
+		Arrays.fill(outR, 0, bufferSize, 0.0f);
+		for (Voice v : voices) {
+			if (v.active) {
+				render(v, outL, outR);
+			}
+		}
+	}
+	
+	// Mix one voice into the output, with linear interpolation
+	private void render(Voice v, float[] outL, float[] outR) {
+		float[] l = v.slice.data[0];
+		float[] r = v.slice.data[1];
+		int n = v.slice.numFrames;
+		double pos = v.pos;
+		float env = v.env;
+		for (int i = 0; i < bufferSize; i++) {
+			int i0 = (int) pos;
+			if (i0 >= n || env <= 0.0f) {
+				v.active = false;
+				break;
+			}
+			float frac = (float) (pos - i0);
+			float g = v.gain * env;
+			if (i0 + 1 < n) {
+				outL[i] += (l[i0] + frac * (l[i0 + 1] - l[i0])) * g;
+				outR[i] += (r[i0] + frac * (r[i0 + 1] - r[i0])) * g;
+			} else {
+				outL[i] += l[i0] * (1.0f - frac) * g;
+				outR[i] += r[i0] * (1.0f - frac) * g;
+			}
+			pos += v.step;
+			if (v.releasing) {
+				env -= releaseStep;
+			}
+		}
+		v.pos = pos;
+		v.env = env;
+	}
+}
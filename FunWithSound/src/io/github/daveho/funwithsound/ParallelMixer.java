@@ -0,0 +1,378 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.AudioIO;
+import net.beadsproject.beads.core.UGen;
+
+/**
+ * UGen which renders a set of independent "lane" AudioContexts in
+ * parallel, one frame at a time, and mixes their outputs.
+ * {@link Player} uses a lane for each {@link RealizedInstrument}
+ * (everything up to and including its gain UGen) when rendering with
+ * multiple threads.  Each lane has its own AudioContext because an
+ * AudioContext's scratch buffers are not thread-safe.  Lanes are
+ * created using {@link Lane}, which advances its AudioContext
+ * exactly one frame per call to {@link Lane#renderFrame()}.
+ * <p>
+ * Each frame, the lanes are claimed (using an atomic counter, and a
+ * per-lane busy flag) by a fixed pool of worker threads and by the audio
+ * thread itself: if the workers are late, the audio thread renders the
+ * unclaimed lanes itself.  Workers park between frames.
+ * When playing in real time, the audio thread renders and waits for lanes
+ * only until the frame's deadline, which is a fraction of the buffer
+ * duration (so that the rest of the frame, such as mixing, send buses and
+ * the master effects, still fits in the buffer duration; note that
+ * {@link ConvolutionUGen}s in lanes don't wait for their worker threads
+ * when playing in real time, so they don't use up the budget):
+ * a lane which isn't finished by then contributes silence to the frame
+ * (see {@link #getDroppedLaneFrames()}), and catches up (rendering
+ * the frames it missed) the next time it is claimed, so it stays in
+ * sync with the main AudioContext.  When rendering offline
+ * (see {@link #setWaitForLanes(boolean)}), every lane is always waited for.
+ * Frames whose lanes take longer than the deadline are counted
+ * (see {@link #getMissedDeadlines()}).
+ * <p>
+ * The post-fader output of each lane is copied once all lanes
+ * are finished (or the deadline has passed), and is available
+ * (e.g., to feed send buses) as a UGen in the main AudioContext:
+ * see {@link #getLaneOutput(int)}.
+ */
+public class ParallelMixer extends UGen {
+	// Fraction of the buffer duration which the audio thread spends
+	// rendering and waiting for lanes when playing in real time
+	private static final double DEADLINE_FRACTION = 0.5;
+	
+	/**
+	 * AudioIO for a lane: the lane's AudioContext is advanced
+	 * explicitly, one frame at a time, by the {@link ParallelMixer}.
+	 */
+	public static class Lane extends AudioIO {
+		private final AudioContext lane;
+		private final boolean realTime;
+		
+		// Number of frames rendered: only accessed by the thread
+		// which has claimed the lane
+		long framesRendered;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param ac the main AudioContext: the lane's AudioContext has
+		 *           the same buffer size and audio format
+		 */
+		public Lane(AudioContext ac) {
+			this.lane = new AudioContext(this, ac.getBufferSize(), ac.getAudioFormat());
+			this.realTime = Util.isRealTime(ac);
+		}
+		
+		/**
+		 * Check whether the main AudioContext is playing in real time.
+		 * 
+		 * @return true if the main AudioContext is playing in real time
+		 */
+		public boolean isRealTime() {
+			return realTime;
+		}
+		
+		/**
+		 * Get the lane's AudioContext.
+		 * 
+		 * @return the lane's AudioContext
+		 */
+		public AudioContext getLane() {
+			return lane;
+		}
+		
+		/**
+		 * Render one frame.
+		 */
+		void renderFrame() {
+			update();
+		}
+		
+		@Override
+		protected boolean start() {
+			// Lanes are only advanced by renderFrame()
+			return true;
+		}
+		
+		@Override
+		protected UGen getAudioInput(int[] channels) {
+			// Lanes don't have audio input
+			return null;
+		}
+	}
+	
+	// Post-fader output of a lane, as a UGen in the main AudioContext
+	private class LaneOutput extends UGen {
+		private final int index;
+		
+		LaneOutput(AudioContext ac, int index) {
+			super(ac, 0, 2);
+			this.index = index;
+		}
+		
+		@Override
+		public void calculateBuffer() {
+			// Make sure the lanes have been rendered for this frame
+			ParallelMixer.this.update();
+			for (int c = 0; c < 2; c++) {
+				if (mixed[index]) {
+					System.arraycopy(laneBufs[index][c], 0, bufOut[c], 0, bufferSize);
+				} else {
+					for (int i = 0; i < bufferSize; i++) {
+						bufOut[c][i] = 0.0f;
+					}
+				}
+			}
+		}
+	}
+
+	private class Worker extends Thread {
+		Worker(int index) {
+			super("ParallelMixer-" + index);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			long seen = 0L;
+			while (!shutdown) {
+				long g = generation;
+				if (g == seen) {
+					// Wait for the next frame (the audio thread unparks
+					// every worker when it publishes a frame)
+					LockSupport.park(this);
+					continue;
+				}
+				seen = g;
+				renderLanes(false, 0L);
+			}
+		}
+	}
+
+	private final Lane[] lanes;
+	private final long deadlineNs;
+	private final Worker[] workers;
+	private final AtomicInteger nextLane;
+	
+	// 1 if a lane is claimed by a thread rendering it
+	private final AtomicIntegerArray busy;
+	
+	// The last frame which each lane has finished rendering
+	private final AtomicLongArray done;
+	
+	// Copies of the lane outputs, and whether each was
+	// mixed into the current frame
+	private final float[][][] laneBufs;
+	private final boolean[] mixed;
+	
+	private final LaneOutput[] laneOutputs;
+	private volatile long generation;
+	private volatile boolean shutdown;
+	private boolean waitForLanes;
+	private int missedDeadlines;
+	private int droppedLaneFrames;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param ac          the (main) AudioContext
+	 * @param lanes       the lanes
+	 * @param numWorkers  number of worker threads (in addition to the audio thread)
+	 */
+	public ParallelMixer(AudioContext ac, Lane[] lanes, int numWorkers) {
+		super(ac, 0, 2);
+		this.lanes = lanes;
+		this.deadlineNs = (long) (ac.samplesToMs(ac.getBufferSize()) * 1000000.0 * DEADLINE_FRACTION);
+		this.nextLane = new AtomicInteger(lanes.length);
+		this.busy = new AtomicIntegerArray(lanes.length);
+		this.done = new AtomicLongArray(lanes.length);
+		this.laneBufs = new float[lanes.length][2][ac.getBufferSize()];
+		this.mixed = new boolean[lanes.length];
+		this.laneOutputs = new LaneOutput[lanes.length];
+		for (int i = 0; i < lanes.length; i++) {
+			laneOutputs[i] = new LaneOutput(ac, i);
+		}
+		this.workers = new Worker[numWorkers];
+		for (int i = 0; i < numWorkers; i++) {
+			workers[i] = new Worker(i);
+			workers[i].start();
+		}
+	}
+	
+	/**
+	 * Set whether the audio thread should always wait for all lanes to be
+	 * rendered, no matter how long it takes.  This should be set when
+	 * rendering offline, so that no lane frames are dropped.
+	 * The default is false.
+	 * 
+	 * @param waitForLanes true if the audio thread should always wait for all lanes
+	 */
+	public void setWaitForLanes(boolean waitForLanes) {
+		this.waitForLanes = waitForLanes;
+	}
+	
+	/**
+	 * Get the post-fader output of a lane, as a UGen in the main
+	 * AudioContext.  Pulling the UGen renders the lanes
+	 * (if they haven't been rendered already in the current frame.)
+	 * 
+	 * @param index the index of the lane
+	 * @return the UGen
+	 */
+	public UGen getLaneOutput(int index) {
+		return laneOutputs[index];
+	}
+
+	@Override
+	public void calculateBuffer() {
+		long start = System.nanoTime();
+		
+		// Publish the frame.  Note that the generation must be updated
+		// before nextLane is reset, so that a thread claiming a lane
+		// renders it up to (at least) the new frame.
+		long g = generation + 1;
+		generation = g;
+		nextLane.set(0);
+		for (Worker w : workers) {
+			LockSupport.unpark(w);
+		}
+
+		// Render lanes in this thread too (claiming no more lanes
+		// once the deadline has passed)
+		long deadline = start + deadlineNs;
+		renderLanes(!waitForLanes, deadline);
+
+		// Wait for lanes being rendered by workers, until the deadline
+		// (or indefinitely, if waiting for all lanes)
+		while (!allDone(g)) {
+			if (!waitForLanes && System.nanoTime() - deadline > 0L) {
+				break;
+			}
+			Thread.yield();
+		}
+		
+		if (System.nanoTime() - start > deadlineNs) {
+			missedDeadlines++;
+		}
+
+		// Mix lane outputs (always in the same order): lanes which
+		// aren't finished contribute silence
+		for (int c = 0; c < 2; c++) {
+			float[] out = bufOut[c];
+			for (int i = 0; i < bufferSize; i++) {
+				out[i] = 0.0f;
+			}
+		}
+		for (int k = 0; k < lanes.length; k++) {
+			mixed[k] = done.get(k) == g;
+			if (!mixed[k]) {
+				droppedLaneFrames++;
+				continue;
+			}
+			for (int c = 0; c < 2; c++) {
+				float[] out = bufOut[c];
+				float[] laneOut = laneBufs[k][c];
+				for (int i = 0; i < bufferSize; i++) {
+					out[i] += laneOut[i];
+				}
+			}
+		}
+	}
+	
+	private boolean allDone(long g) {
+		for (int k = 0; k < lanes.length; k++) {
+			if (done.get(k) != g) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void renderLanes(boolean useDeadline, long deadline) {
+		while (true) {
+			if (useDeadline && System.nanoTime() - deadline > 0L) {
+				return;
+			}
+			int k = nextLane.getAndIncrement();
+			if (k >= lanes.length) {
+				return;
+			}
+			if (!busy.compareAndSet(k, 0, 1)) {
+				// Still being rendered (late) from a previous frame
+				continue;
+			}
+			try {
+				// Render up to the current frame, catching up on
+				// any frames missed while the lane was late
+				long g = generation;
+				Lane lane = lanes[k];
+				if (lane.framesRendered < g) {
+					while (lane.framesRendered < g) {
+						lane.renderFrame();
+						lane.framesRendered++;
+					}
+					
+					// Copy the lane's (post-fader) output
+					AudioContext lac = lane.getLane();
+					for (int c = 0; c < 2; c++) {
+						System.arraycopy(lac.out.getOutBuffer(c), 0, laneBufs[k][c], 0, bufferSize);
+					}
+					done.set(k, g);
+				}
+			} finally {
+				busy.set(k, 0);
+			}
+		}
+	}
+
+	/**
+	 * Get the number of frames whose lanes took longer than
+	 * the deadline to render.
+	 * 
+	 * @return the number of missed deadlines
+	 */
+	public int getMissedDeadlines() {
+		return missedDeadlines;
+	}
+	
+	/**
+	 * Get the number of times a lane wasn't finished by the
+	 * frame's deadline, and so contributed silence to the frame.
+	 * 
+	 * @return the number of dropped lane frames
+	 */
+	public int getDroppedLaneFrames() {
+		return droppedLaneFrames;
+	}
+
+	/**
+	 * Stop the worker threads.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		for (Worker w : workers) {
+			LockSupport.unpark(w);
+		}
+	}
+}
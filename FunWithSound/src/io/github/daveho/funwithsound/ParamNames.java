@@ -51,6 +51,16 @@ public interface ParamNames {
 	/** DataBead property name: Damping, in the range 0-1. */
 	public static final String DAMPING = "damping";
 	
+	// Used by AddReverb, AddPingPongStereoDelays, and AddConvolutionReverb
+	/** DataBead property name: Gain for the original (dry) signal; set to 0 for effects on a send bus. */
+	public static final String DRY_GAIN = "dryGain";
+	
+	// Used by AddConvolutionReverb
+	/** DataBead property name: Gain for the convolved (wet) signal. */
+	public static final String WET_GAIN = "wetGain";
+	/** DataBead property name: Number of impulse response partitions computed in the audio thread. */
+	public static final String HEAD_PARTITIONS = "headPartitions";
+	
 	// Used by AddPingPongStereoDelays
 	/** DataBead property name: Number of delays. */
 	public static final String NUM_DELAYS = "numDelays";
@@ -0,0 +1,301 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Uniformly partitioned overlap-save FFT convolution of one channel
+ * of audio with one channel of an {@link ImpulseResponse}.
+ * Each call to {@link #process(float[], float[])} consumes and produces
+ * one block (the impulse response's block size) of audio, so the
+ * latency is one block.
+ * The first "head" partitions are computed in the calling (audio) thread.
+ * The remaining "tail" partitions only depend on input that is at
+ * least as old as the number of head partitions, so the tail for a
+ * future block is computed on the convolver's worker thread as soon as
+ * the input it depends on is available.  When the tail is needed, the
+ * calling thread waits for it for (at most) the maximum wait time:
+ * if it still isn't ready, that tail block is dropped (and counted,
+ * see {@link #getDroppedTailBlocks()}).
+ */
+class PartitionedConvolver {
+	// How long an idle worker parks before checking whether its
+	// convolver is still reachable
+	private static final long IDLE_PARK_NS = 1000000000L;
+
+	// Scratch buffers and result for one tail computation.
+	// There is one per in-flight tail block, so tail computations
+	// never share mutable state.
+	private class TailSlot {
+		final float[] acc = new float[bins*2];
+		final float[] re = new float[n];
+		final float[] im = new float[n];
+		final float[] out = new float[blockSize];
+		int newest;
+
+		void compute() {
+			// The newest input spectrum this block depends on was stored
+			// at position 'newest' in the frequency delay line, and
+			// corresponds to partition numHead
+			accumulate(acc, newest, numHead, numPartitions);
+			toTimeDomain(acc, re, im, out);
+		}
+	}
+
+	// Worker thread which computes tail blocks in the order they
+	// were requested.  It only holds a weak reference to its convolver,
+	// so it exits once the convolver is no longer in use.
+	private static class TailWorker extends Thread {
+		private final WeakReference<PartitionedConvolver> ref;
+
+		TailWorker(PartitionedConvolver convolver) {
+			super("ConvolutionTail");
+			setDaemon(true);
+			this.ref = new WeakReference<PartitionedConvolver>(convolver);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				PartitionedConvolver convolver = ref.get();
+				if (convolver == null) {
+					return;
+				}
+				boolean busy = convolver.computeRequestedTails();
+				convolver = null;
+				if (!busy) {
+					LockSupport.parkNanos(this, IDLE_PARK_NS);
+				}
+			}
+		}
+	}
+
+	private final int blockSize;
+	private final int n;
+	private final int bins;
+	private final int numPartitions;
+	private final int numHead;
+	private final FFT fft;
+	private final float[] spectra;
+
+	private final float[] history;
+	private final float[][] fdl;
+	private int fdlPos;
+	private final float[] acc;
+	private final float[] re;
+	private final float[] im;
+	private final TailSlot[] tailSlots;
+	private long blockCount;
+
+	// Tail requests: request r is made at block r, uses slot
+	// r % tailSlots.length, and is consumed at block r + tailSlots.length.
+	// 'requested' is only written by the calling thread, 'completed'
+	// is only written by the worker.
+	private volatile long requested;
+	private volatile long completed;
+	private final TailWorker worker;
+	private volatile long maxWaitNs;
+	private long droppedTailBlocks;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param ir              the {@link ImpulseResponse}
+	 * @param channel         which channel of the impulse response to use
+	 * @param numHead         the number of partitions to compute in the
+	 *                        calling thread: the remaining partitions are
+	 *                        computed on a worker thread
+	 * @param maxWaitNs       maximum time (in nanoseconds) to wait for
+	 *                        a tail block: 0 to never wait, or
+	 *                        {@link Long#MAX_VALUE} to always wait
+	 */
+	public PartitionedConvolver(ImpulseResponse ir, int channel, int numHead, long maxWaitNs) {
+		this.blockSize = ir.getBlockSize();
+		this.n = blockSize*2;
+		this.bins = blockSize+1;
+		this.numPartitions = ir.getNumPartitions();
+		this.numHead = Math.max(1, Math.min(numHead, numPartitions));
+		this.fft = ir.getFFT();
+		this.spectra = ir.getSpectra(channel);
+
+		this.history = new float[n];
+		this.fdl = new float[numPartitions][bins*2];
+		this.fdlPos = 0;
+		this.acc = new float[bins*2];
+		this.re = new float[n];
+		this.im = new float[n];
+		this.maxWaitNs = maxWaitNs;
+
+		if (this.numHead < numPartitions) {
+			// A tail block is scheduled numHead blocks before it is needed
+			this.tailSlots = new TailSlot[this.numHead];
+			for (int i = 0; i < tailSlots.length; i++) {
+				tailSlots[i] = new TailSlot();
+			}
+			this.worker = new TailWorker(this);
+			worker.start();
+		} else {
+			this.tailSlots = null;
+			this.worker = null;
+		}
+	}
+
+	/**
+	 * Set the maximum time to wait for a tail block before dropping it.
+	 *
+	 * @param maxWaitNs maximum wait in nanoseconds: 0 to never wait, {@link Long#MAX_VALUE}
+	 *                  to always wait
+	 */
+	public void setMaxWaitNs(long maxWaitNs) {
+		this.maxWaitNs = maxWaitNs;
+	}
+
+	/**
+	 * Get the number of tail blocks which were dropped because
+	 * the worker thread didn't compute them in time.
+	 *
+	 * @return number of dropped tail blocks
+	 */
+	public long getDroppedTailBlocks() {
+		return droppedTailBlocks;
+	}
+
+	/**
+	 * Convolve one block of input.
+	 *
+	 * @param input  one block of input samples
+	 * @param output receives one block of convolved output samples
+	 */
+	public void process(float[] input, float[] output) {
+		// Overlap-save: transform the previous and current input blocks
+		System.arraycopy(history, blockSize, history, 0, blockSize);
+		System.arraycopy(input, 0, history, blockSize, blockSize);
+		for (int i = 0; i < n; i++) {
+			re[i] = history[i];
+			im[i] = 0.0f;
+		}
+		fft.forward(re, im);
+
+		// Store the input spectrum in the frequency delay line
+		fdlPos = (fdlPos + 1) % numPartitions;
+		float[] x = fdl[fdlPos];
+		for (int k = 0; k < bins; k++) {
+			x[k*2] = re[k];
+			x[k*2 + 1] = im[k];
+		}
+
+		// Head partitions
+		accumulate(acc, fdlPos, 0, numHead);
+		toTimeDomain(acc, re, im, output);
+
+		if (tailSlots != null) {
+			// Add the tail computed (on the worker thread) for this block
+			TailSlot slot = tailSlots[(int) (blockCount % tailSlots.length)];
+			if (blockCount >= tailSlots.length) {
+				if (awaitTail(blockCount - tailSlots.length)) {
+					for (int i = 0; i < blockSize; i++) {
+						output[i] += slot.out[i];
+					}
+				} else {
+					droppedTailBlocks++;
+				}
+			}
+
+			// All of the input needed for the tail of the block numHead
+			// blocks from now is available, so request it.  (It will
+			// use the slot that was just consumed.)
+			slot.newest = fdlPos;
+			requested = blockCount + 1;
+			LockSupport.unpark(worker);
+		}
+
+		blockCount++;
+	}
+
+	// Wait (for at most maxWaitNs) for tail request r to complete.
+	private boolean awaitTail(long r) {
+		if (completed > r) {
+			return true;
+		}
+		long limit = maxWaitNs;
+		if (limit == 0L) {
+			return false;
+		}
+		long start = System.nanoTime();
+		while (completed <= r) {
+			if (System.nanoTime() - start >= limit) {
+				return false;
+			}
+			Thread.yield();
+		}
+		return true;
+	}
+
+	// Called by the worker: compute requested tail blocks, returning
+	// false if there were none.  Requests whose slot has already been
+	// reused are skipped, since they would be dropped anyway.
+	private boolean computeRequestedTails() {
+		long c = completed, r = requested;
+		if (c >= r) {
+			return false;
+		}
+		c = Math.max(c, r - tailSlots.length);
+		while (c < r) {
+			tailSlots[(int) (c % tailSlots.length)].compute();
+			c++;
+			completed = c;
+		}
+		return true;
+	}
+
+	// Multiply-accumulate input spectra with partition spectra
+	// for partitions first..last-1, where the input spectrum at FDL
+	// position 'newest' is paired with partition 'first'.
+	private void accumulate(float[] sum, int newest, int first, int last) {
+		for (int k = 0; k < bins*2; k++) {
+			sum[k] = 0.0f;
+		}
+		int pos = newest;
+		for (int p = first; p < last; p++) {
+			float[] x = fdl[pos];
+			int base = p*bins*2;
+			for (int k = 0; k < bins*2; k += 2) {
+				float xr = x[k], xi = x[k+1];
+				float hr = spectra[base + k], hi = spectra[base + k + 1];
+				sum[k] += xr*hr - xi*hi;
+				sum[k+1] += xr*hi + xi*hr;
+			}
+			pos = (pos == 0) ? numPartitions - 1 : pos - 1;
+		}
+	}
+
+	// Inverse transform an accumulated (half) spectrum, and keep the
+	// second half of the result (overlap-save discards the first half.)
+	private void toTimeDomain(float[] sum, float[] re, float[] im, float[] out) {
+		for (int k = 0; k < bins; k++) {
+			re[k] = sum[k*2];
+			im[k] = sum[k*2 + 1];
+		}
+		// Conjugate symmetry of the spectrum of a real signal
+		for (int k = 1; k < blockSize; k++) {
+			re[n-k] = re[k];
+			im[n-k] = -im[k];
+		}
+		fft.inverse(re, im);
+		System.arraycopy(re, blockSize, out, 0, blockSize);
+	}
+}
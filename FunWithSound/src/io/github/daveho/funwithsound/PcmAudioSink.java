@@ -0,0 +1,111 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@link AudioSink} which writes 16 bit little-endian interleaved PCM
+ * to an OutputStream or WritableByteChannel, for example to stream
+ * rendered audio to a network client.  Each buffer of audio is written
+ * (and the stream flushed) as soon as it is rendered, so the receiver
+ * can start playing while rendering continues.
+ * Optionally, the data is preceded by a wave file header: since the
+ * length isn't known in advance, the header uses the maximum data size,
+ * which is the usual convention for streamed wave data.
+ * Note that the stream (or channel) is not closed by {@link #close()}.
+ */
+public class PcmAudioSink implements AudioSink {
+	private final WritableByteChannel channel;
+	private final OutputStream os;
+	private final boolean waveHeader;
+	private int numChannels;
+	private ByteBuffer buf;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param channel     the channel to write to
+	 * @param waveHeader  true if a wave file header should be written
+	 */
+	public PcmAudioSink(WritableByteChannel channel, boolean waveHeader) {
+		this.channel = channel;
+		this.os = null;
+		this.waveHeader = waveHeader;
+	}
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param os          the OutputStream to write to
+	 * @param waveHeader  true if a wave file header should be written
+	 */
+	public PcmAudioSink(OutputStream os, boolean waveHeader) {
+		this.channel = Channels.newChannel(os);
+		this.os = os;
+		this.waveHeader = waveHeader;
+	}
+	
+	@Override
+	public void open(float sampleRate, int numChannels) throws IOException {
+		this.numChannels = numChannels;
+		this.buf = ByteBuffer.allocate(Math.max(WaveFileWriter.HEADER_SIZE, 1024 * numChannels * 2))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		if (waveHeader) {
+			WaveFileWriter.putHeader(buf, sampleRate, numChannels, -1L);
+			flush();
+		}
+	}
+	
+	@Override
+	public void write(float[][] data, int numFrames) throws IOException {
+		for (int i = 0; i < numFrames; i++) {
+			if (buf.remaining() < numChannels * 2) {
+				drain();
+			}
+			for (int c = 0; c < numChannels; c++) {
+				buf.putShort((short) Util.toPcm16(data[c][i]));
+			}
+		}
+		flush();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+	
+	// Write buffered data to the channel
+	private void drain() throws IOException {
+		buf.flip();
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+		buf.clear();
+	}
+	
+	// Write buffered data, and make it available to the receiver
+	private void flush() throws IOException {
+		drain();
+		if (os != null) {
+			os.flush();
+		}
+	}
+}
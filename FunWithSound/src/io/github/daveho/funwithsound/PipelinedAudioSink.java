@@ -0,0 +1,187 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * {@link AudioSink} which passes audio to another sink in a separate
+ * thread, so that (for example) encoding and disk I/O overlap with
+ * rendering.  Audio is copied into a bounded ring of preallocated
+ * blocks: if the consumer thread falls behind, {@link #write(float[][], int)}
+ * waits for a free block.
+ */
+public class PipelinedAudioSink implements AudioSink {
+	/** Default number of blocks in the ring. */
+	public static final int DEFAULT_NUM_BLOCKS = 32;
+	
+	/** Default number of frames per block. */
+	public static final int DEFAULT_BLOCK_FRAMES = 4096;
+	
+	private static class Block {
+		final float[][] data;
+		int numFrames;
+		
+		Block(int numChannels, int blockFrames) {
+			this.data = new float[numChannels][blockFrames];
+		}
+	}
+	
+	private final AudioSink delegate;
+	private final int numBlocks;
+	private final int blockFrames;
+	private Block[] ring;
+	private Semaphore free;
+	private Semaphore full;
+	private int writePos;
+	private Block current;
+	private Thread consumer;
+	private volatile Throwable error;
+	
+	/**
+	 * Constructor, using the default ring size.
+	 * 
+	 * @param delegate the sink which will receive the audio
+	 */
+	public PipelinedAudioSink(AudioSink delegate) {
+		this(delegate, DEFAULT_NUM_BLOCKS, DEFAULT_BLOCK_FRAMES);
+	}
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param delegate     the sink which will receive the audio
+	 * @param numBlocks    the number of blocks in the ring
+	 * @param blockFrames  the number of frames per block
+	 */
+	public PipelinedAudioSink(AudioSink delegate, int numBlocks, int blockFrames) {
+		if (numBlocks < 2 || blockFrames < 1) {
+			throw new IllegalArgumentException("invalid ring size: " + numBlocks + " blocks of " + blockFrames + " frames");
+		}
+		this.delegate = delegate;
+		this.numBlocks = numBlocks;
+		this.blockFrames = blockFrames;
+	}
+	
+	@Override
+	public void open(float sampleRate, int numChannels) throws IOException {
+		delegate.open(sampleRate, numChannels);
+		ring = new Block[numBlocks];
+		for (int i = 0; i < numBlocks; i++) {
+			ring[i] = new Block(numChannels, blockFrames);
+		}
+		free = new Semaphore(numBlocks);
+		full = new Semaphore(0);
+		writePos = 0;
+		current = null;
+		error = null;
+		consumer = new Thread("PipelinedAudioSink") {
+			@Override
+			public void run() {
+				consume();
+			}
+		};
+		consumer.setDaemon(true);
+		consumer.start();
+	}
+	
+	// Consumer thread: pass blocks to the delegate until the end-of-stream
+	// block (with a negative frame count) is reached
+	private void consume() {
+		int readPos = 0;
+		while (true) {
+			full.acquireUninterruptibly();
+			Block block = ring[readPos];
+			readPos = (readPos + 1) % numBlocks;
+			if (block.numFrames < 0) {
+				break;
+			}
+			if (error == null) {
+				// After an error, blocks are discarded (rather than
+				// written) so that the producer can't block forever
+				try {
+					delegate.write(block.data, block.numFrames);
+				} catch (Throwable e) {
+					error = e;
+				}
+			}
+			free.release();
+		}
+	}
+	
+	@Override
+	public void write(float[][] buf, int numFrames) throws IOException {
+		checkError();
+		int i = 0;
+		while (i < numFrames) {
+			if (current == null) {
+				free.acquireUninterruptibly();
+				current = ring[writePos];
+				current.numFrames = 0;
+			}
+			int n = Math.min(numFrames - i, blockFrames - current.numFrames);
+			for (int c = 0; c < current.data.length; c++) {
+				System.arraycopy(buf[c], i, current.data[c], current.numFrames, n);
+			}
+			current.numFrames += n;
+			i += n;
+			if (current.numFrames == blockFrames) {
+				publish();
+			}
+		}
+	}
+	
+	private void publish() {
+		current = null;
+		writePos = (writePos + 1) % numBlocks;
+		full.release();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		try {
+			// Publish the last partial block, and the end-of-stream block
+			if (current != null && current.numFrames > 0) {
+				publish();
+			}
+			if (current == null) {
+				free.acquireUninterruptibly();
+				current = ring[writePos];
+			}
+			current.numFrames = -1;
+			publish();
+			
+			try {
+				consumer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for audio output to complete", e);
+			}
+		} finally {
+			delegate.close();
+		}
+		checkError();
+	}
+	
+	private void checkError() throws IOException {
+		Throwable e = error;
+		if (e instanceof IOException) {
+			throw (IOException) e;
+		} else if (e != null) {
+			throw new IOException("Error writing audio", e);
+		}
+	}
+}
@@ -17,10 +17,14 @@ package io.github.daveho.funwithsound;
 
 /**
  * Event to play a {@link SimpleFigure} at a specified time.
+ * The figure may be played repeatedly, at a fixed period (in beats.)
  */
 public class PlayFigureEvent {
 	private SimpleFigure figure;
 	long startUs;
+	double startBeat = Double.NaN;
+	private int repeatCount = 1;
+	private double periodBeats;
 	
 	/**
 	 * Constructor.
@@ -64,4 +68,60 @@ public class PlayFigureEvent {
 	public long getStartUs() {
 		return startUs;
 	}
+	
+	/**
+	 * Set the start time as a beat (see {@link TempoMap}.)
+	 * This is used (rather than the start time in microseconds)
+	 * to compute the times of the figure's strikes when the
+	 * tempo changes.
+	 * 
+	 * @param startBeat the start beat
+	 */
+	public void setStartBeat(double startBeat) {
+		this.startBeat = startBeat;
+	}
+	
+	/**
+	 * Get the start time as a beat.
+	 * 
+	 * @return the start beat, or NaN if it was not set
+	 */
+	public double getStartBeat() {
+		return startBeat;
+	}
+	
+	/**
+	 * Set the number of times the figure is played, and the period at
+	 * which it repeats.
+	 * 
+	 * @param repeatCount  the number of times the figure is played
+	 * @param periodBeats  the number of beats from the start of one
+	 *                     repetition to the start of the next
+	 */
+	public void setRepeat(int repeatCount, double periodBeats) {
+		if (repeatCount < 1) {
+			throw new IllegalArgumentException("Invalid repeat count: " + repeatCount);
+		}
+		this.repeatCount = repeatCount;
+		this.periodBeats = periodBeats;
+	}
+	
+	/**
+	 * Get the number of times the figure is played.
+	 * 
+	 * @return the number of times the figure is played (1 if it does not repeat)
+	 */
+	public int getRepeatCount() {
+		return repeatCount;
+	}
+	
+	/**
+	 * Get the number of beats from the start of one repetition
+	 * to the start of the next.
+	 * 
+	 * @return the repetition period in beats
+	 */
+	public double getPeriodBeats() {
+		return periodBeats;
+	}
 }
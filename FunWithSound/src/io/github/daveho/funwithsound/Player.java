@@ -17,19 +17,25 @@ package io.github.daveho.funwithsound;
 import io.github.daveho.gervill4beads.CaptureMidiMessages;
 import io.github.daveho.gervill4beads.GervillUGen;
 import io.github.daveho.gervill4beads.Midi;
-import io.github.daveho.gervill4beads.MidiMessageAndTimeStamp;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
 
 import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MidiDevice;
@@ -44,6 +50,7 @@ import javax.sound.midi.Synthesizer;
 import net.beadsproject.beads.core.AudioContext;
 import net.beadsproject.beads.core.Bead;
 import net.beadsproject.beads.core.UGen;
+import net.beadsproject.beads.core.io.NonrealtimeIO;
 import net.beadsproject.beads.data.Sample;
 import net.beadsproject.beads.data.SampleManager;
 import net.beadsproject.beads.ugens.DelayTrigger;
@@ -63,6 +70,65 @@ public class Player {
 	// Shut down this many microseconds after the last note off message.
 	private static final long DEFAULT_IDLE_WAIT_US = 2000000L;
 	
+	/**
+	 * When playing in real time, wait for samples needed within this
+	 * many microseconds of the end of the start delay to load
+	 * before starting playback.
+	 */
+	private static final long SAMPLE_PRELOAD_US = 5000000L;
+	
+	/**
+	 * The repetitions of repeating figures are scheduled
+	 * this many microseconds before they start.
+	 */
+	private static final long SCHEDULE_AHEAD_US = 1000000L;
+	
+	/**
+	 * Buffer (block) size used for deterministic rendering.
+	 */
+	private static final int DETERMINISTIC_BUFFER_SIZE = 512;
+	
+	/**
+	 * Properties of the Gervill synthesizers used for deterministic
+	 * rendering: without jitter correction, a synthesizer's clock
+	 * is the number of samples it has rendered, and without
+	 * large mode, soundfont samples aren't streamed from disk.
+	 */
+	private static final Map<String, Object> DETERMINISTIC_SYNTH_INFO;
+	static {
+		Map<String, Object> info = new HashMap<String, Object>();
+		info.put("jitter correction", Boolean.FALSE);
+		info.put("large mode", Boolean.FALSE);
+		DETERMINISTIC_SYNTH_INFO = Collections.unmodifiableMap(info);
+	}
+	
+	// A repeating PlayFigureEvent, and the next of its
+	// repetitions to be scheduled
+	private static class RepeatCursor {
+		PlayFigureEvent event;
+		RealizedInstrument info;
+		int next;
+		PlayFigureEvent nextRep;
+		long nextStartUs;
+		long notBeforeUs = Long.MIN_VALUE;
+	}
+	
+	private static final Comparator<RepeatCursor> NEXT_START_COMPARATOR = new Comparator<RepeatCursor>() {
+		@Override
+		public int compare(RepeatCursor o1, RepeatCursor o2) {
+			return Long.compare(o1.nextStartUs, o2.nextStartUs);
+		}
+	};
+	
+	// Default custom instrument factory (static, so that it has no
+	// reference to the Player, and can be hashed as part of a cache key)
+	private static final CustomInstrumentFactory NO_CUSTOM_INSTRUMENTS = new CustomInstrumentFactory() {
+		@Override
+		public RealizedInstrument create(int code, AudioContext ac) {
+			throw new RuntimeException("No custom instrument factory is registered!");
+		}
+	};
+	
 	private Composition composition;
 	private AudioContext ac;
 	private Gain masterGain;
@@ -72,14 +138,34 @@ public class Player {
 	private long startDelayUs;
 	private long idleWaitUs;
 	private long idleTimeUs;
+	private long renderStartUs;
+	private long renderEndUs;
+	private long preRollUs;
 	private CountDownLatch latch;
-	private ArrayList<MidiMessageAndTimeStamp> capturedEvents;
+	private CaptureAnalyzer captureAnalyzer;
 	private MidiDevice device;
-	private boolean playing;
+	private volatile boolean playing;
 	private CustomInstrumentFactory customInstrumentFactory;
 	private Soundbank emergency;
 	private List<NoteEvent> noteEvents;
+	private PriorityQueue<RepeatCursor> repeats;
+	private PriorityQueue<NoteEvent> repeatNoteEvents;
+	private final ConcurrentLinkedQueue<RepeatCursor> liveFigures = new ConcurrentLinkedQueue<RepeatCursor>();
+	private List<PlayFigureEvent> firstRepetitions;
 	private NoteEventCallback noteEventCallback;
+	private EventRing<NoteEvent> noteEventRing;
+	private List<BeatEvent> beatEvents;
+	private BeatCallback beatCallback;
+	private EventRing<BeatEvent> beatEventRing;
+	private int numRenderThreads;
+	private Map<Instrument, ParallelMixer.Lane> laneMap;
+	private ParallelMixer parallelMixer;
+	private boolean memoryMappedSamples;
+	private boolean lazySampleLoading;
+	private File resampleCacheDir;
+	private boolean offline;
+	private boolean deterministic;
+	private SamplePrefetcher prefetcher;
 	
 	/**
 	 * Constructor.
@@ -87,14 +173,13 @@ public class Player {
 	public Player() {
 		soundBanks = new HashMap<String, Soundbank>();
 		instrMap = new IdentityHashMap<Instrument, RealizedInstrument>();
-		customInstrumentFactory = new CustomInstrumentFactory() {
-			@Override
-			public RealizedInstrument create(int code, AudioContext ac) {
-				throw new RuntimeException("No custom instrument factory is registered!");
-			}
-		};
+		customInstrumentFactory = NO_CUSTOM_INSTRUMENTS;
 		startDelayUs = DEFAULT_START_DELAY_US;
 		idleWaitUs = DEFAULT_IDLE_WAIT_US;
+		numRenderThreads = 1;
+		renderEndUs = -1L;
+		lazySampleLoading = false;
+		laneMap = new LinkedHashMap<Instrument, ParallelMixer.Lane>();
 	}
 	
 	/**
@@ -127,6 +212,165 @@ public class Player {
 		this.idleWaitUs = idleWaitUs;
 	}
 
+	/**
+	 * Set whether sample bank instruments should use memory-mapped
+	 * samples (see {@link MappedSample}) rather than loading sample data
+	 * into memory.  Memory-mapped samples are shared by all instruments
+	 * and players, and don't use any space on the Java heap, so this is
+	 * useful for large sample libraries.  Only wave files can be mapped:
+	 * other samples are loaded as usual.  The default is false.
+	 * 
+	 * @param memoryMappedSamples true if samples should be memory-mapped
+	 */
+	public void setMemoryMappedSamples(boolean memoryMappedSamples) {
+		this.memoryMappedSamples = memoryMappedSamples;
+	}
+
+	/**
+	 * Set whether samples for sample bank instruments should be loaded
+	 * lazily.  If true, only samples which are actually played are
+	 * loaded, and they are loaded in a background thread in the order
+	 * in which they are first needed.  Real-time playback starts as soon
+	 * as the samples needed in the first few seconds are loaded, so
+	 * during real-time playback, a note whose sample hasn't finished
+	 * loading is skipped (the number of skipped notes is printed when
+	 * playback finishes.)  Offline rendering waits for samples, so it
+	 * isn't affected.  If false (the default), all samples are loaded
+	 * before playback starts.  (Samples for the live audition instrument
+	 * are always loaded before playback starts.)
+	 * 
+	 * @param lazySampleLoading true if samples should be loaded lazily
+	 */
+	public void setLazySampleLoading(boolean lazySampleLoading) {
+		this.lazySampleLoading = lazySampleLoading;
+	}
+
+	/**
+	 * Set the directory in which to cache samples converted to the
+	 * AudioContext's sample rate.  Samples whose sample rate doesn't
+	 * match the AudioContext's are converted once, when they are loaded,
+	 * so that playing them doesn't require any rate conversion.
+	 * The default is null, meaning that converted samples are only
+	 * cached in memory.
+	 * 
+	 * @param resampleCacheDir the cache directory, or null
+	 */
+	public void setResampleCacheDir(File resampleCacheDir) {
+		this.resampleCacheDir = resampleCacheDir;
+	}
+
+	/**
+	 * Get the start delay in microseconds.
+	 * 
+	 * @return the start delay in microseconds
+	 */
+	public long getStartDelayUs() {
+		return startDelayUs;
+	}
+
+	/**
+	 * Get the idle wait in microseconds.
+	 * 
+	 * @return the idle wait in microseconds
+	 */
+	public long getIdleWaitUs() {
+		return idleWaitUs;
+	}
+
+	/**
+	 * Get the {@link CustomInstrumentFactory}.
+	 * 
+	 * @return the {@link CustomInstrumentFactory}
+	 */
+	CustomInstrumentFactory getCustomInstrumentFactory() {
+		return customInstrumentFactory;
+	}
+
+	/**
+	 * Restrict rendering to a range of the composition.
+	 * Only notes starting at or after <code>startUs-preRollUs</code> and
+	 * before <code>endUs</code> are played, and the rendered audio (after the
+	 * start delay) begins at <code>startUs-preRollUs</code> and ends at
+	 * <code>endUs</code>.  The pre-roll allows effect tails and synthesizer
+	 * state to build up before the start of the range.
+	 * Gain events before the start of the pre-roll take effect immediately.
+	 * This is used by {@link SegmentRenderer} to render a composition
+	 * in segments.
+	 * 
+	 * @param startUs    start of the range (microseconds)
+	 * @param endUs      end of the range (microseconds), or -1 to render
+	 *                   until the end of the composition
+	 * @param preRollUs  the pre-roll (microseconds)
+	 */
+	public void setRenderRange(long startUs, long endUs, long preRollUs) {
+		this.renderStartUs = startUs;
+		this.renderEndUs = endUs;
+		this.preRollUs = preRollUs;
+	}
+
+	// Composition time at which rendering starts (including pre-roll)
+	private long getRenderWindowStartUs() {
+		return Math.max(0L, renderStartUs - preRollUs);
+	}
+	
+	// Check whether a note starting at given composition time is rendered
+	private boolean isInRenderRange(long ts) {
+		return ts >= getRenderWindowStartUs() && (renderEndUs < 0L || ts < renderEndUs);
+	}
+
+	/**
+	 * Set the number of threads used to render the instruments.
+	 * If greater than 1, each instrument (including its effects chain
+	 * and gain) is rendered independently, by a {@link ParallelMixer}
+	 * using the audio thread and <code>numRenderThreads-1</code> worker
+	 * threads, so that dense arrangements aren't limited to a single core.
+	 * Send buses and the master mix are still rendered by the audio thread.
+	 * The default is 1 (render everything in the audio thread.)
+	 * 
+	 * @param numRenderThreads the number of render threads
+	 */
+	public void setNumRenderThreads(int numRenderThreads) {
+		this.numRenderThreads = numRenderThreads;
+	}
+
+	/**
+	 * Set whether offline rendering (see {@link #render(AudioSink)},
+	 * {@link #saveWaveFile(String)}, and {@link #saveFlacFile(String)})
+	 * is deterministic, so that rendering the same composition
+	 * always produces bit-identical audio.  In deterministic mode,
+	 * audio is rendered in blocks of a fixed size, the Gervill
+	 * synthesizers are clocked purely by the number of samples
+	 * rendered, and rather than muting the output during the start
+	 * delay, the start delay is used to warm up the synthesizers:
+	 * the audio rendered during the start delay is replaced by
+	 * silence, so the rendered audio has the same layout (the start
+	 * delay followed by the composition) in both modes.
+	 * Any randomness in custom instruments should use seeded
+	 * random number generators (created by the
+	 * {@link CustomInstrumentFactory}, so that they are reset each
+	 * time the composition is rendered.)  The default is false.
+	 * 
+	 * @param deterministic true if offline rendering should be deterministic
+	 */
+	public void setDeterministic(boolean deterministic) {
+		this.deterministic = deterministic;
+	}
+	
+	/**
+	 * Check whether offline rendering is deterministic.
+	 * 
+	 * @return true if offline rendering is deterministic
+	 */
+	public boolean isDeterministic() {
+		return deterministic;
+	}
+
+	// Check whether the composition is being rendered deterministically
+	// (deterministic mode only applies to offline rendering)
+	private boolean isRenderingDeterministically() {
+		return deterministic && offline;
+	}
+
 	/**
 	 * Get the current timestamp in microseconds from the
 	 * AudioContext.
@@ -169,10 +413,66 @@ public class Player {
 		this.noteEventCallback = noteEventCallback;
 	}
 	
+	/**
+	 * Set an {@link EventRing} to which {@link NoteEvent}s should be
+	 * published.  Before each frame is rendered, all of the NoteEvents
+	 * occurring within the frame are published to the ring as a single
+	 * batch, without allocating anything or waiting for the consumer.
+	 * The ring should be drained by one other thread (for example,
+	 * a drawing thread.)  If the consumer falls behind and the ring
+	 * fills up, events are dropped.
+	 * 
+	 * @param noteEventRing the {@link EventRing} to publish NoteEvents to
+	 */
+	public void setNoteEventRing(EventRing<NoteEvent> noteEventRing) {
+		this.noteEventRing = noteEventRing;
+	}
+	
+	/**
+	 * Set a {@link BeatCallback}.
+	 * The callback's {@link BeatCallback#onBeat(BeatEvent)} method will
+	 * be called for each beat of the composition's {@link TempoMap},
+	 * before the frame of audio in which the beat occurs is rendered.
+	 * Be aware that the callback will occur in the context of the
+	 * AudioContext thread.
+	 * 
+	 * @param beatCallback the {@link BeatCallback} to set
+	 */
+	public void setBeatCallback(BeatCallback beatCallback) {
+		this.beatCallback = beatCallback;
+	}
+	
+	/**
+	 * Set an {@link EventRing} to which {@link BeatEvent}s should be
+	 * published.  Beats are published in the same way as NoteEvents
+	 * (see {@link #setNoteEventRing(EventRing)}.)
+	 * 
+	 * @param beatEventRing the {@link EventRing} to publish BeatEvents to
+	 */
+	public void setBeatEventRing(EventRing<BeatEvent> beatEventRing) {
+		this.beatEventRing = beatEventRing;
+	}
+	
+	// Get the AudioContext in which an instrument's UGens should be created:
+	// when rendering with multiple threads, each instrument has its own
+	// "lane" AudioContext.
+	private AudioContext contextFor(Instrument instrument) {
+		if (numRenderThreads <= 1) {
+			return ac;
+		}
+		ParallelMixer.Lane lane = laneMap.get(instrument);
+		if (lane == null) {
+			lane = new ParallelMixer.Lane(ac);
+			laneMap.put(instrument, lane);
+		}
+		return lane.getLane();
+	}
+	
 	private RealizedInstrument createGervill(Instrument instrument) throws MidiUnavailableException, IOException {
 		// Note that the GervillUGen isn't connected to an effects chain,
 		// or the AudioContext output, at this point.
-		GervillUGen gervill = new GervillUGen(ac, Collections.<String, Object>emptyMap());
+		GervillUGen gervill = new GervillUGen(contextFor(instrument),
+				isRenderingDeterministically() ? DETERMINISTIC_SYNTH_INFO : Collections.<String, Object>emptyMap());
 		RealizedInstrument info = new RealizedInstrument(gervill);
 		Synthesizer synth = gervill.getSynth();
 		if (instrument.hasSoundFont()) {
@@ -280,15 +580,43 @@ public class Player {
 	}
 
 	private void onPlayingFinished() {
+		// If we rendered using multiple threads, stop the workers
+		if (parallelMixer != null) {
+			if (parallelMixer.getMissedDeadlines() > 0) {
+				System.out.println("Rendering missed " + parallelMixer.getMissedDeadlines() + " frame deadlines");
+			}
+			if (parallelMixer.getDroppedLaneFrames() > 0) {
+				System.out.println("Rendering dropped " + parallelMixer.getDroppedLaneFrames() + " instrument frames");
+			}
+			parallelMixer.shutdown();
+			parallelMixer = null;
+		}
+		
+		// Figures added during playback are no longer needed
+		liveFigures.clear();
+		
+		// Report notes skipped because their samples were still loading
+		long notLoadedNotes = 0L;
+		for (RealizedInstrument info : instrMap.values()) {
+			if (info.head instanceof SampleBankUGen) {
+				notLoadedNotes += ((SampleBankUGen) info.head).getNotLoadedNotes();
+			} else if (info.head instanceof MultisampleUGen) {
+				notLoadedNotes += ((MultisampleUGen) info.head).getNotLoadedNotes();
+			}
+		}
+		if (notLoadedNotes > 0L) {
+			System.out.println("Skipped " + notLoadedNotes + " notes whose samples weren't loaded yet");
+		}
+		
 		// If we opened a MIDI device, close it
 		if (device != null) {
 			device.close();
 		}
 		
-		// If MIDI messages were captured, translate them to
+		// If notes were captured, translate them to
 		// Rhythm and Melody
-		if (capturedEvents != null && !capturedEvents.isEmpty()) {
-			analyzeCapturedEvents(capturedEvents);
+		if (captureAnalyzer != null && captureAnalyzer.getNumNotes() > 0) {
+			printCapturedFigure();
 		}
 	}
 
@@ -312,11 +640,86 @@ public class Player {
 	 * @throws IOException if a soundfont can't be loaded
 	 */
 	public void saveWaveFile(String outputFile) throws MidiUnavailableException, IOException {
-		prepareToPlay();
+		if (deterministic) {
+			System.out.print("Saving audio data to " + outputFile + "...");
+			System.out.flush();
+			render(new WaveAudioSink(new File(outputFile)));
+			System.out.println("done!");
+			return;
+		}
+		offline = true;
+		try {
+			prepareToPlay();
+		} finally {
+			offline = false;
+		}
 		renderToOutputFile(outputFile);
 		onPlayingFinished();
 	}
 
+	/**
+	 * Save the rendered composition as a FLAC (lossless compressed) file.
+	 * The audio is encoded in a separate thread while it is rendered.
+	 * 
+	 * @param outputFile the name of the FLAC file to write
+	 * @throws MidiUnavailableException if a MIDI synthesizer and/or receiver can't be found
+	 * @throws IOException if a soundfont can't be loaded, or if the file can't be written
+	 */
+	public void saveFlacFile(String outputFile) throws MidiUnavailableException, IOException {
+		System.out.print("Saving audio data to " + outputFile + "...");
+		System.out.flush();
+		render(new PipelinedAudioSink(new FlacAudioSink(new File(outputFile))));
+		System.out.println("done!");
+	}
+	
+	/**
+	 * Render the composition (offline) to an {@link AudioSink}.
+	 * The sink receives each buffer of audio as soon as it is rendered,
+	 * so an {@link AudioSink} can be used as a callback to process or
+	 * stream audio while rendering continues.
+	 * 
+	 * @param sink the {@link AudioSink} to receive the rendered audio
+	 * @throws MidiUnavailableException if a MIDI synthesizer and/or receiver can't be found
+	 * @throws IOException if a soundfont can't be loaded, or if the sink reports an error
+	 */
+	public void render(AudioSink sink) throws MidiUnavailableException, IOException {
+		offline = true;
+		try {
+			prepareToPlay();
+		} finally {
+			offline = false;
+		}
+		// In deterministic mode, the audio rendered while the
+		// synthesizers warm up is replaced by silence, so the output
+		// has the same layout as in non-deterministic mode
+		long muteFrames = deterministic ? Math.round(ac.msToSamples(startDelayUs / 1000.0)) : 0L;
+		AudioSinkRecorder recorder = new AudioSinkRecorder(ac, 2, sink, muteFrames);
+		recorder.addInput(ac.out);
+		ac.out.addDependent(recorder);
+		sink.open(ac.getSampleRate(), 2);
+		try {
+			// (The recorder stops the AudioContext if the sink reports an error)
+			ac.runForNMillisecondsNonRealTime(idleTimeUs / 1000L);
+		} finally {
+			sink.close();
+		}
+		onPlayingFinished();
+		recorder.checkError();
+	}
+
+	/**
+	 * Render the composition (offline) as 16 bit wave data streamed
+	 * to an OutputStream (which is not closed.)
+	 * Audio data is written as it is rendered.
+	 * 
+	 * @param os the OutputStream
+	 * @throws MidiUnavailableException if a MIDI synthesizer and/or receiver can't be found
+	 * @throws IOException if a soundfont can't be loaded, or if an error occurs writing the data
+	 */
+	public void renderWave(OutputStream os) throws MidiUnavailableException, IOException {
+		render(new PcmAudioSink(os, true));
+	}
+
 	private void renderToOutputFile(String outputFile) throws IOException {
 		System.out.print("Saving audio data to " + outputFile + "...");
 		System.out.flush();
@@ -340,15 +743,44 @@ public class Player {
 	 * @throws IOException
 	 */
 	protected void prepareToPlay() throws MidiUnavailableException, IOException {
-		// Create an AudioContext
-		this.ac = new AudioContext();
+		// Create an AudioContext (with no audio device if rendering
+		// offline, and a fixed buffer size if rendering deterministically)
+		if (isRenderingDeterministically()) {
+			this.ac = new AudioContext(new NonrealtimeIO(), DETERMINISTIC_BUFFER_SIZE);
+		} else if (offline) {
+			this.ac = new AudioContext(new NonrealtimeIO());
+		} else {
+			this.ac = new AudioContext();
+		}
+		laneMap.clear();
+		liveFigures.clear();
+		
+		// Samples are loaded as instruments are created
+		this.prefetcher = lazySampleLoading ? new SamplePrefetcher(ac.getSampleRate(), resampleCacheDir) : null;
 
 		// Prepare to capture NoteEvents
 		this.noteEvents = new ArrayList<NoteEvent>();
+		this.repeats = new PriorityQueue<RepeatCursor>(11, NEXT_START_COMPARATOR);
+		this.repeatNoteEvents = new PriorityQueue<NoteEvent>(11, NoteEvent.TIMESTAMP_COMPARATOR);
+		this.firstRepetitions = null;
 		
 		// Create instruments, schedule MidiMessages to be sent to instruments
 		this.idleTimeUs = prepareComposition();
 		System.out.printf("Idle time at %d us\n", this.idleTimeUs);
+		
+		// Compute the beats, if anyone is listening for them
+		this.beatEvents = (beatCallback != null || beatEventRing != null)
+				? computeBeatEvents() : Collections.<BeatEvent>emptyList();
+		
+		// Start loading samples.  When rendering offline, sample banks wait
+		// for samples as they are needed.  When playing in real time,
+		// wait for the samples needed early in playback.
+		if (prefetcher != null) {
+			prefetcher.start();
+			if (!offline) {
+				prefetcher.awaitUntil(startDelayUs + SAMPLE_PRELOAD_US);
+			}
+		}
 
 		// Register a shutdown hook to detect when playback is finished
 		this.latch = new CountDownLatch(1); 
@@ -368,6 +800,13 @@ public class Player {
 		// to the AudioContext's output)
 		prepareInstrumentsAndEffects();
 		
+		// When rendering deterministically, the start delay is
+		// used to warm up the synthesizers, and the audio rendered
+		// during the start delay is discarded
+		if (isRenderingDeterministically()) {
+			return;
+		}
+		
 		// Initially, mute the master Gain
 		System.out.println("Muting!");
 		masterGain.setGain(0.0f);
@@ -388,13 +827,14 @@ public class Player {
 	private void prepareForAudition() throws MidiUnavailableException,
 			IOException {
 		// Check the composition to see if there is an audition part
+		// (live input isn't possible when rendering offline)
 		Instrument liveInstr = composition.getAudition();
-		if (liveInstr == null) {
+		if (liveInstr == null || offline) {
 			return;
 		}
 		
 		this.device = null;
-		this.capturedEvents = new ArrayList<MidiMessageAndTimeStamp>();
+		this.captureAnalyzer = new CaptureAnalyzer(composition.getTempoMap());
 		
 		// Create a message source to feed MIDI events to the Gervill instance
 		createMessageSource(liveInstr);
@@ -414,7 +854,8 @@ public class Player {
 
 		// Filter incoming MidiMessages to:
 		// - change to channel 10 (if this is a percussion instrument)
-		// - add them to capturedEvents list
+		// - add them to the capture analyzer (converting the
+		//   timestamps to composition times)
 		final Receiver delegate = liveSynth.source;
 		liveSynth.source = new Receiver() {
 			@Override
@@ -427,7 +868,10 @@ public class Player {
 					}
 				}
 
-				capturedEvents.add(new MidiMessageAndTimeStamp(message, timeStamp));
+				// The device's timestamps use a different clock, so stamp
+				// the message with the AudioContext time it was received at
+				long playerUs = (long)(ac.getTime() * 1000.0);
+				captureAnalyzer.send(message, playerUs - startDelayUs + getRenderWindowStartUs());
 				
 				delegate.send(message, timeStamp);
 			}
@@ -439,6 +883,103 @@ public class Player {
 		};
 	}
 	
+	/**
+	 * Get the {@link CaptureAnalyzer} which analyzes the notes
+	 * played live on the audition instrument.  The notes are added
+	 * as they are played, so figures can be created from them
+	 * (and added back to the composition using {@link #addFigure(int, Figure)})
+	 * during playback.
+	 * 
+	 * @return the CaptureAnalyzer, or null if there is no live audition part
+	 */
+	public CaptureAnalyzer getCaptureAnalyzer() {
+		return captureAnalyzer;
+	}
+	
+	/**
+	 * Add a figure to the composition during asynchronous playback
+	 * (see {@link #startPlaying()}), starting at
+	 * the beginning of the given measure.  The figure's notes are
+	 * scheduled by the audio thread as playback reaches them (notes
+	 * which should already have started are skipped.)  Samples used
+	 * by the figure which haven't been loaded are loaded as soon as
+	 * possible (notes played before they are ready are skipped.)  The figure's
+	 * instruments must be part of the composition being played,
+	 * and note that playback still ends at the time determined
+	 * when playback started.
+	 * 
+	 * @param measure  the measure
+	 * @param figure   the figure to add
+	 * @throws IllegalStateException if the player isn't playing
+	 */
+	public void addFigure(int measure, Figure figure) {
+		if (!playing) {
+			throw new IllegalStateException("Figures can only be added during playback");
+		}
+		TempoMap tempoMap = composition.getTempoMap();
+		double startBeat = tempoMap.measureToBeat(measure);
+		long startUs = tempoMap.beatToUs(startBeat);
+		for (SimpleFigure sf : figure) {
+			RealizedInstrument info = instrMap.get(sf.getInstrument());
+			if (info == null) {
+				throw new IllegalArgumentException("Instrument is not part of the composition being played");
+			}
+			requestLateSamples(sf, info);
+			PlayFigureEvent e = new PlayFigureEvent();
+			e.setFigure(sf);
+			e.setStartBeat(startBeat);
+			e.setStartUs(startUs);
+			composition.add(e);
+			RepeatCursor cursor = new RepeatCursor();
+			cursor.event = e;
+			cursor.info = info;
+			cursor.next = 0;
+			cursor.nextRep = e;
+			cursor.nextStartUs = startDelayUs + startUs - getRenderWindowStartUs();
+			liveFigures.add(cursor);
+		}
+	}
+	
+	// When samples are loaded lazily, only the samples played by the
+	// composition when playback started are loaded, so request any other
+	// samples used by a figure added during playback.  (The prefetcher
+	// returns the same slice for samples which were already requested,
+	// and the UGens ignore slices for notes and zones they already have.)
+	private void requestLateSamples(SimpleFigure sf, RealizedInstrument info) {
+		if (prefetcher == null) {
+			return;
+		}
+		Instrument instr = sf.getInstrument();
+		Rhythm rhythm = sf.getRhythm();
+		Melody melody = sf.getMelody();
+		int n = Math.min(rhythm.size(), melody.size());
+		for (int i = 0; i < n; i++) {
+			Chord c = melody.get(i);
+			for (int j = 0; j < c.size(); j++) {
+				int note = c.get(j);
+				if (info.head instanceof SampleBankUGen) {
+					SampleInfo sampleInfo = instr.getSampleMap().get(note);
+					if (sampleInfo == null) {
+						continue;
+					}
+					SampleRange sr = sampleInfo.startMs >= 0.0 ? new SampleRange(sampleInfo.startMs, sampleInfo.endMs) : null;
+					Future<SampleSlice> pending = prefetcher.requestSlice(sampleInfo.fileName, sr,
+							SampleBankUGen.RAMP_TIME_MS, 0L);
+					((SampleBankUGen) info.head).addLatePendingSample(note, pending, sampleInfo.gain, sr);
+				} else if (info.head instanceof MultisampleUGen) {
+					int index = SampleZone.find(instr.getZones(), note, rhythm.get(i).getVelocity());
+					if (index < 0) {
+						continue;
+					}
+					SampleZone zone = instr.getZones().get(index);
+					Future<SampleSlice> pending = prefetcher.requestSlice(zone.fileName, zone.getRange(),
+							MultisampleUGen.RAMP_TIME_MS, 0L);
+					((MultisampleUGen) info.head).addLatePendingZone(index, pending);
+				}
+			}
+		}
+	}
+	
 	/**
 	 * Get the Receiver that will deliver MIDI messages to
 	 * the Gervill instance being used to play the live audition part.
@@ -451,8 +992,13 @@ public class Player {
 
 	private void addGainEvents() throws MidiUnavailableException, IOException {
 		// Distribute GainEvents by instrument
+		long windowStartUs = getRenderWindowStartUs();
 		for (GainEvent e : composition.getGainEvents()) {
 			RealizedInstrument info = getInstrumentInfo(e.instr);
+			if (windowStartUs > 0L) {
+				// Rendering a range: events before the range take effect immediately
+				e = new GainEvent(Math.max(0L, e.ts - windowStartUs), e.instr, e.gain);
+			}
 			info.gainEvents.add(e);
 		}
 		
@@ -482,24 +1028,97 @@ public class Player {
 		
 		for (Map.Entry<Instrument, RealizedInstrument> entry : instrMap.entrySet()) {
 			RealizedInstrument info = entry.getValue();
+			AudioContext ic = contextFor(entry.getKey());
 			
 			List<AddEffect> fx = composition.getEffectsMap().get(entry.getKey());
 			if (fx != null) {
 				for (AddEffect effect : fx) {
-					info.tail = effect.apply(ac, info);
+					info.tail = effect.apply(ic, info);
 				}
 			}
 			
-			UGen gainEnvelope = new InstrumentGainEnvelope(ac, info.gainEvents);
-			info.gain = new Gain(ac, 2, gainEnvelope);
+			UGen gainEnvelope = new InstrumentGainEnvelope(ic, info.gainEvents);
+			info.gain = new Gain(ic, 2, gainEnvelope);
 			info.gain.addInput(info.tail);
 
-			masterGain.addInput(info.gain);
+			if (ic != ac) {
+				// Instrument is rendered in its own lane
+				ic.out.addInput(info.gain);
+			} else {
+				masterGain.addInput(info.gain);
+			}
 		}
 		
+		// Post-fader outputs of the instruments (as UGens in the
+		// main AudioContext), to feed the send buses
+		Map<Instrument, UGen> postFader = new IdentityHashMap<Instrument, UGen>();
+		for (Map.Entry<Instrument, RealizedInstrument> entry : instrMap.entrySet()) {
+			if (!laneMap.containsKey(entry.getKey())) {
+				postFader.put(entry.getKey(), entry.getValue().gain);
+			}
+		}
+		
+		if (!laneMap.isEmpty()) {
+			// Render the lanes in parallel.  The sends from instruments
+			// rendered in lanes are fed from the mixer's copies of the
+			// lane outputs.
+			ParallelMixer.Lane[] lanes = laneMap.values().toArray(new ParallelMixer.Lane[laneMap.size()]);
+			parallelMixer = new ParallelMixer(ac, lanes, numRenderThreads - 1);
+			parallelMixer.setWaitForLanes(offline);
+			masterGain.addInput(parallelMixer);
+			int index = 0;
+			for (Instrument instr : laneMap.keySet()) {
+				postFader.put(instr, parallelMixer.getLaneOutput(index++));
+			}
+		}
+
+		prepareSendBuses(postFader);
+
 		ac.out.addInput(masterGain);
 	}
 
+	private void prepareSendBuses(Map<Instrument, UGen> postFader) {
+		// Each send bus is a Gain summing the sends feeding it,
+		// followed by the bus's effects chain.  The bus is represented
+		// as a RealizedInstrument (with no MIDI source) so that
+		// the same AddEffect objects can be used for buses and instruments.
+		Map<String, RealizedInstrument> buses = new LinkedHashMap<String, RealizedInstrument>();
+		for (String bus : composition.getBusEffectsMap().keySet()) {
+			buses.put(bus, new RealizedInstrument(null, new Gain(ac, 2)));
+		}
+
+		// Sends are post-fader: they are fed from the instrument's gain
+		for (Send send : composition.getSends()) {
+			UGen source = postFader.get(send.instr);
+			if (source == null) {
+				// Instrument doesn't play anything
+				continue;
+			}
+			RealizedInstrument bus = buses.get(send.bus);
+			if (bus == null) {
+				System.err.println("Warning: send to bus " + send.bus + ", which has no effects");
+				bus = new RealizedInstrument(null, new Gain(ac, 2));
+				buses.put(send.bus, bus);
+			}
+			Gain sendGain = new Gain(ac, 2, (float)send.level);
+			sendGain.addInput(source);
+			bus.head.addInput(sendGain);
+		}
+
+		// Apply each bus's effects (once, on the summed signal),
+		// and mix the bus output into the master gain
+		for (Map.Entry<String, RealizedInstrument> entry : buses.entrySet()) {
+			RealizedInstrument bus = entry.getValue();
+			List<AddEffect> fx = composition.getBusEffectsMap().get(entry.getKey());
+			if (fx != null) {
+				for (AddEffect effect : fx) {
+					bus.tail = effect.apply(ac, bus);
+				}
+			}
+			masterGain.addInput(bus.tail);
+		}
+	}
+
 	private void addShutdownHook(final long idleTimeUs) {
 		ac.invokeAfterEveryFrame(new Bead() {
 			@Override
@@ -521,76 +1140,281 @@ public class Player {
 	private void addPreFrameHook() {
 		ac.invokeBeforeEveryFrame(new Bead() {
 			private int noteEventIndex = 0;
+			private int beatEventIndex = 0;
+			private List<NoteEvent> frameNoteEvents = new ArrayList<NoteEvent>();
 			
 			@Override
 			protected void messageReceived(Bead message) {
 				// Compute end-of-frame time in microseconds
 				long endOfFrame = (long)((ac.getTime() + ac.samplesToMs(ac.getBufferSize())) * 1000.0);
 				
-				// Invoke note callback for any notes that have been schedule to play
-				if (noteEventCallback != null) {
-					// Find all NoteEvents due to occur before the end of the frame
-					while (noteEventIndex < noteEvents.size()) {
-						NoteEvent noteEvent = noteEvents.get(noteEventIndex);
-						if (noteEvent.timeStamp >= endOfFrame) {
+				// Schedule figures added during playback, and the repetitions
+				// of repeating figures which start soon
+				RepeatCursor live;
+				while ((live = liveFigures.poll()) != null) {
+					live.notBeforeUs = (long)(ac.getTime() * 1000.0);
+					repeats.add(live);
+				}
+				scheduleRepetitions(endOfFrame + SCHEDULE_AHEAD_US);
+				
+				// Find all NoteEvents due to occur before the end of the frame,
+				// merging the (sorted) NoteEvents scheduled in advance with
+				// those of the scheduled repetitions
+				frameNoteEvents.clear();
+				if (noteEventCallback != null || noteEventRing != null) {
+					while (true) {
+						NoteEvent stored = noteEventIndex < noteEvents.size() ? noteEvents.get(noteEventIndex) : null;
+						NoteEvent repeated = repeatNoteEvents.peek();
+						if (repeated != null && (stored == null || repeated.timeStamp < stored.timeStamp)) {
+							if (repeated.timeStamp >= endOfFrame) {
+								break;
+							}
+							frameNoteEvents.add(repeatNoteEvents.poll());
+						} else if (stored != null && stored.timeStamp < endOfFrame) {
+							frameNoteEvents.add(stored);
+							noteEventIndex++;
+						} else {
 							break;
 						}
+					}
+				}
+				
+				// Publish them to the ring as one batch
+				if (noteEventRing != null) {
+					noteEventRing.offer(frameNoteEvents, 0, frameNoteEvents.size());
+				}
+				
+				// Invoke note callback for any notes that have been schedule to play
+				if (noteEventCallback != null) {
+					for (NoteEvent noteEvent : frameNoteEvents) {
 						noteEventCallback.onNoteEvent(noteEvent);
-						noteEventIndex++;
 					}
 				}
 				
-				// TODO: beat callback
+				// Find all beats occurring in the frame (comparing sample
+				// indices, so each beat is delivered with the frame its
+				// frame offset refers to), and deliver them the same way
+				long endSample = (ac.getTimeStep() + 1L) * ac.getBufferSize();
+				int start = beatEventIndex;
+				while (beatEventIndex < beatEvents.size()
+						&& beatEvents.get(beatEventIndex).getSampleIndex() < endSample) {
+					beatEventIndex++;
+				}
+				if (beatEventRing != null) {
+					beatEventRing.offer(beatEvents, start, beatEventIndex);
+				}
+				if (beatCallback != null) {
+					for (int i = start; i < beatEventIndex; i++) {
+						beatCallback.onBeat(beatEvents.get(i));
+					}
+				}
 			}
 		});
 	}
+	
+	// Compute the BeatEvents for the beats occurring during playback
+	private List<BeatEvent> computeBeatEvents() {
+		List<BeatEvent> result = new ArrayList<BeatEvent>();
+		TempoMap tempoMap = composition.getTempoMap();
+		if (tempoMap == null) {
+			return result;
+		}
+		long windowStartUs = getRenderWindowStartUs();
+		float sampleRate = ac.getSampleRate();
+		int bufferSize = ac.getBufferSize();
+		
+		// Beats before the start of the player timeline are skipped
+		long firstUs = Math.max(0L, windowStartUs - startDelayUs);
+		for (int measure = tempoMap.beatToMeasure(tempoMap.usToBeat(firstUs)); ; measure++) {
+			double firstBeat = tempoMap.measureToBeat(measure);
+			int beatsPerMeasure = tempoMap.getBeatsPerMeasure(measure);
+			for (int beat = 0; beat < beatsPerMeasure; beat++) {
+				long ts = startDelayUs + tempoMap.beatToUs(firstBeat + beat) - windowStartUs;
+				if (ts < 0L) {
+					continue;
+				}
+				if (ts >= idleTimeUs) {
+					return result;
+				}
+				long sampleIndex = Math.round(ts * (double)sampleRate / 1000000.0);
+				int frameOffset = (int) (sampleIndex % bufferSize);
+				result.add(new BeatEvent(ts, sampleIndex, frameOffset, measure, beat));
+			}
+		}
+	}
 
 	private long prepareComposition() throws MidiUnavailableException, IOException {
 		// Convert figures to MidiMessages and schedule them to be played
+		long windowStartUs = getRenderWindowStartUs();
 		long lastNoteOffUs = 0L;
-		for (PlayFigureEvent e : composition) {
+		for (int i = 0; i < composition.size(); i++) {
+			PlayFigureEvent e = composition.get(i);
 //			System.out.printf("PlayFigureEvent start time=%d\n", e.getStartUs());
-			SimpleFigure f = e.getFigure();
-			Instrument instrument = f.getInstrument();
-			RealizedInstrument info = getInstrumentInfo(instrument);
-			Rhythm rhythm = f.getRhythm();
-			Melody melody = f.getMelody();
-			int n = Math.min(rhythm.size(), melody.size());
-			for (int i = 0; i < n; i++) {
-				Strike s = rhythm.get(i);
-//				System.out.printf("Strike start time=%d, duration=%d\n", s.getStartUs(), s.getDurationUs());
-				Chord c = melody.get(i);
-				for (Integer note : c) {
-					// Percussion events play on channel 10, normal MIDI
-					// events play on channel 1.  (Note that 1 is encoded as
-					// 0, and 10 is encoded as 9.)
-					int channel = instrument.getType() == InstrumentType.MIDI_PERCUSSION ? 9 : 0;
-					
-					long onTime = startDelayUs + e.getStartUs() + s.getStartUs();
-//					System.out.printf("Note on at %d\n", onTime);
-					long offTime = onTime + s.getDurationUs();
-					ShortMessage noteOn = Midi.createShortMessage(ShortMessage.NOTE_ON|channel, note, s.getVelocity());
-					info.source.send(noteOn, onTime);
-					noteEvents.add(new NoteEvent(noteOn, onTime, instrument));
-					ShortMessage noteOff = Midi.createShortMessage(ShortMessage.NOTE_OFF|channel, note, s.getVelocity());
-					info.source.send(noteOff, offTime);
-					noteEvents.add(new NoteEvent(noteOff, offTime, instrument));
-					// Keep track of the time of the last note off event
-					if (offTime > lastNoteOffUs) {
-						lastNoteOffUs = offTime;
-					}
-				}
+			RealizedInstrument info = getInstrumentInfo(e.getFigure().getInstrument());
+			if (e.getRepeatCount() == 1) {
+				lastNoteOffUs = Math.max(lastNoteOffUs, scheduleFigure(e, info, noteEvents, Long.MIN_VALUE));
+			} else {
+				// The repetitions are scheduled as playback reaches them,
+				// but the last one determines when playback can end
+				PlayFigureEvent last = composition.getRepetition(e, e.getRepeatCount() - 1);
+				lastNoteOffUs = Math.max(lastNoteOffUs, getLastNoteOffUs(last));
+				RepeatCursor cursor = new RepeatCursor();
+				cursor.event = e;
+				cursor.info = info;
+				cursor.next = 0;
+				cursor.nextRep = e;
+				cursor.nextStartUs = startDelayUs + e.getStartUs() - windowStartUs;
+				repeats.add(cursor);
 			}
 		}
 		
 		// Sort NoteEvents by timestamp
 		Collections.sort(noteEvents, NoteEvent.TIMESTAMP_COMPARATOR);
+		
+		// Schedule the repetitions that start early in playback
+		scheduleRepetitions(startDelayUs + SCHEDULE_AHEAD_US);
 
 		// Determine idle time
+		if (renderEndUs >= 0L) {
+			// Rendering a range: stop at the end of the range
+			return startDelayUs + renderEndUs - windowStartUs;
+		}
 		final long idleTimeUs = lastNoteOffUs + this.idleWaitUs;
 		return idleTimeUs;
 	}
 
+	// Send the MidiMessages to play a PlayFigureEvent (the notes in
+	// the render range, starting no earlier than notBeforeUs) to its
+	// instrument, adding the corresponding NoteEvents to the given
+	// collection (unless it's null.)
+	// Returns the time of the last note off event (0 if there are none.)
+	private long scheduleFigure(PlayFigureEvent e, RealizedInstrument info, Collection<NoteEvent> out, long notBeforeUs) {
+		long windowStartUs = getRenderWindowStartUs();
+		long lastNoteOffUs = 0L;
+		SimpleFigure f = e.getFigure();
+		Instrument instrument = f.getInstrument();
+		Rhythm rhythm = f.getRhythm();
+		Melody melody = f.getMelody();
+		int n = Math.min(rhythm.size(), melody.size());
+		for (int i = 0; i < n; i++) {
+			Strike s = rhythm.get(i);
+//			System.out.printf("Strike start time=%d, duration=%d\n", s.getStartUs(), s.getDurationUs());
+			long ts = composition.getStrikeStartUs(e, s);
+			if (!isInRenderRange(ts)) {
+				// Not in render range
+				continue;
+			}
+			long durationUs = composition.getStrikeEndUs(e, s) - ts;
+			Chord c = melody.get(i);
+			for (int j = 0; j < c.size(); j++) {
+				int note = c.get(j);
+				// Percussion events play on channel 10, normal MIDI
+				// events play on channel 1.  (Note that 1 is encoded as
+				// 0, and 10 is encoded as 9.)
+				int channel = instrument.getType() == InstrumentType.MIDI_PERCUSSION ? 9 : 0;
+				
+				long onTime = startDelayUs + ts - windowStartUs;
+				if (onTime < notBeforeUs) {
+					// Added during playback, too late to play
+					continue;
+				}
+//				System.out.printf("Note on at %d\n", onTime);
+				long offTime = onTime + durationUs;
+				ShortMessage noteOn = Midi.createShortMessage(ShortMessage.NOTE_ON|channel, note, s.getVelocity());
+				info.source.send(noteOn, onTime);
+				ShortMessage noteOff = Midi.createShortMessage(ShortMessage.NOTE_OFF|channel, note, s.getVelocity());
+				info.source.send(noteOff, offTime);
+				if (out != null) {
+					out.add(new NoteEvent(noteOn, onTime, instrument));
+					out.add(new NoteEvent(noteOff, offTime, instrument));
+				}
+				// Keep track of the time of the last note off event
+				if (offTime > lastNoteOffUs) {
+					lastNoteOffUs = offTime;
+				}
+			}
+		}
+		return lastNoteOffUs;
+	}
+	
+	// Get the time of the last note off event of a PlayFigureEvent
+	// (0 if it plays no notes in the render range)
+	private long getLastNoteOffUs(PlayFigureEvent e) {
+		long windowStartUs = getRenderWindowStartUs();
+		long lastNoteOffUs = 0L;
+		SimpleFigure f = e.getFigure();
+		Rhythm rhythm = f.getRhythm();
+		Melody melody = f.getMelody();
+		int n = Math.min(rhythm.size(), melody.size());
+		for (int i = 0; i < n; i++) {
+			Strike s = rhythm.get(i);
+			if (melody.get(i).size() == 0 || !isInRenderRange(composition.getStrikeStartUs(e, s))) {
+				continue;
+			}
+			long offTime = startDelayUs + composition.getStrikeEndUs(e, s) - windowStartUs;
+			lastNoteOffUs = Math.max(lastNoteOffUs, offTime);
+		}
+		return lastNoteOffUs;
+	}
+	
+	// Schedule the repetitions of repeating PlayFigureEvents which
+	// start before the given (player) time.  This is called before
+	// playback starts, and then before each frame, so only the
+	// repetitions which are about to play are in memory.
+	private void scheduleRepetitions(long horizonUs) {
+		boolean listening = noteEventCallback != null || noteEventRing != null;
+		long windowStartUs = getRenderWindowStartUs();
+		while (!repeats.isEmpty() && repeats.peek().nextStartUs < horizonUs) {
+			RepeatCursor cursor = repeats.poll();
+			scheduleFigure(cursor.nextRep, cursor.info, listening ? repeatNoteEvents : null, cursor.notBeforeUs);
+			cursor.next++;
+			if (cursor.next < cursor.event.getRepeatCount()) {
+				cursor.nextRep = composition.getRepetition(cursor.event, cursor.next);
+				cursor.nextStartUs = startDelayUs + cursor.nextRep.getStartUs() - windowStartUs;
+				repeats.add(cursor);
+			}
+		}
+	}
+	
+	// Get the PlayFigureEvents (with repetitions expanded) which could
+	// be the first to play any of their notes.  For a repeating PlayFigureEvent,
+	// these are the repetitions from the first with a note in the render range
+	// to the first with no notes before the render range: later repetitions
+	// only repeat notes played earlier.
+	private List<PlayFigureEvent> getFirstRepetitions() {
+		if (firstRepetitions != null) {
+			return firstRepetitions;
+		}
+		long windowStartUs = getRenderWindowStartUs();
+		List<PlayFigureEvent> result = new ArrayList<PlayFigureEvent>();
+		for (int i = 0; i < composition.size(); i++) {
+			PlayFigureEvent e = composition.get(i);
+			if (e.getRepeatCount() == 1) {
+				result.add(e);
+				continue;
+			}
+			Rhythm rhythm = e.getFigure().getRhythm();
+			for (int r = 0; r < e.getRepeatCount(); r++) {
+				PlayFigureEvent rep = composition.getRepetition(e, r);
+				boolean anyInRange = false;
+				boolean allStarted = true;
+				for (Strike s : rhythm) {
+					long ts = composition.getStrikeStartUs(rep, s);
+					anyInRange |= isInRenderRange(ts);
+					allStarted &= ts >= windowStartUs;
+				}
+				if (anyInRange) {
+					result.add(rep);
+				}
+				if (allStarted) {
+					break;
+				}
+			}
+		}
+		firstRepetitions = result;
+		return result;
+	}
+
 	private RealizedInstrument getInstrumentInfo(Instrument instrument)
 			throws MidiUnavailableException, IOException {
 		RealizedInstrument info = instrMap.get(instrument);
@@ -599,8 +1423,10 @@ public class Player {
 				info = createGervill(instrument);
 			} else if (instrument.getType() == InstrumentType.SAMPLE_BANK) {
 				info = createSampleBank(instrument);
+			} else if (instrument.getType() == InstrumentType.MULTISAMPLE) {
+				info = createMultisample(instrument);
 			} else if (instrument.getType().isCustom()) {
-				info = customInstrumentFactory.create(instrument.getType().getCode(), ac);
+				info = customInstrumentFactory.create(instrument.getType().getCode(), contextFor(instrument));
 			} else {
 				throw new RuntimeException("Don't know how to create a " + instrument.getType() + " instrument");
 			}
@@ -612,11 +1438,56 @@ public class Player {
 	private RealizedInstrument createSampleBank(Instrument instr) {
 		RealizedInstrument info = instrMap.get(instr);
 		if (info == null) {
-			SampleBankUGen sb = new SampleBankUGen(ac);
+			AudioContext ic = contextFor(instr);
+			SampleBankUGen sb = new SampleBankUGen(ic);
+			sb.setWaitForSamples(offline);
+			
+			// When loading lazily, find out which samples are played, and when
+			Map<Integer, Long> firstUse = null;
+			if (prefetcher != null && instr != composition.getAudition()) {
+				firstUse = findFirstUseTimes(instr);
+			}
+			
 			for (Map.Entry<Integer, SampleInfo> entry : instr.getSampleMap().entrySet()) {
 				SampleInfo sampleInfo = entry.getValue();
+				
+				// Note that mapping a sample is cheap, since the sample data
+				// is only read as it is played, so mapped samples are added
+				// even if they aren't played (in case figures using them
+				// are added during playback)
+				if (memoryMappedSamples) {
+					MappedSample mapped = getMappedSample(sampleInfo.fileName);
+					if (mapped != null) {
+						if (sampleInfo.startMs >= 0.0) {
+							SampleRange sr = new SampleRange(sampleInfo.startMs, sampleInfo.endMs);
+							sb.addSample(sampleInfo.note, mapped, sampleInfo.gain, sr);
+						} else {
+							sb.addSample(sampleInfo.note, mapped, sampleInfo.gain);
+						}
+						continue;
+					}
+				}
+				
+				Long firstUseUs = null;
+				if (firstUse != null) {
+					firstUseUs = firstUse.get(sampleInfo.note);
+					if (firstUseUs == null) {
+						// This sample is never played (unless a figure
+						// using it is added during playback)
+						continue;
+					}
+				}
+				
+				if (firstUseUs != null) {
+					SampleRange sr = sampleInfo.startMs >= 0.0 ? new SampleRange(sampleInfo.startMs, sampleInfo.endMs) : null;
+					Future<SampleSlice> pending = prefetcher.requestSlice(sampleInfo.fileName, sr,
+							SampleBankUGen.RAMP_TIME_MS, firstUseUs);
+					sb.addPendingSample(sampleInfo.note, pending, sampleInfo.gain, sr);
+					continue;
+				}
 
-				Sample sample = SampleManager.sample(sampleInfo.fileName);
+				Sample sample = ResampleCache.get(sampleInfo.fileName, SampleManager.sample(sampleInfo.fileName),
+						ac.getSampleRate(), resampleCacheDir);
 				
 				if (sampleInfo.startMs >= 0.0) {
 					// Range is specified
@@ -627,12 +1498,120 @@ public class Player {
 					sb.addSample(sampleInfo.note, sample, sampleInfo.gain);
 				}
 			}
-			info = new RealizedInstrument(sb, ac);
+			info = new RealizedInstrument(sb, ic);
 			instrMap.put(instr, info);
 		}
 		return info;
 	}
 
+	private RealizedInstrument createMultisample(Instrument instr) {
+		AudioContext ic = contextFor(instr);
+		MultisampleUGen ms = new MultisampleUGen(ic);
+		ms.setWaitForSamples(offline);
+		
+		// When loading lazily, find out which zones are played, and when
+		long[] firstUse = null;
+		if (prefetcher != null && instr != composition.getAudition()) {
+			firstUse = findFirstZoneUseTimes(instr);
+		}
+		
+		// Note that zones using the same sample file share the same
+		// loaded (and sliced) sample
+		for (int i = 0; i < instr.getZones().size(); i++) {
+			SampleZone zone = instr.getZones().get(i);
+			if (firstUse != null) {
+				// Zones that are never played are not loaded
+				Future<SampleSlice> pending = firstUse[i] >= 0L
+						? prefetcher.requestSlice(zone.fileName, zone.getRange(), MultisampleUGen.RAMP_TIME_MS, firstUse[i])
+						: null;
+				ms.addPendingZone(zone, pending);
+			} else {
+				Sample sample = ResampleCache.get(zone.fileName, SampleManager.sample(zone.fileName),
+						ac.getSampleRate(), resampleCacheDir);
+				ms.addZone(zone, sample);
+			}
+		}
+		return new RealizedInstrument(ms, ic);
+	}
+
+	// Find the time at which each zone of a multisample instrument
+	// is first played (-1 if it is never played)
+	private long[] findFirstZoneUseTimes(Instrument instr) {
+		List<SampleZone> zones = instr.getZones();
+		long[] firstUse = new long[zones.size()];
+		Arrays.fill(firstUse, -1L);
+		long windowStartUs = getRenderWindowStartUs();
+		for (PlayFigureEvent e : getFirstRepetitions()) {
+			SimpleFigure f = e.getFigure();
+			if (f.getInstrument() != instr) {
+				continue;
+			}
+			Rhythm rhythm = f.getRhythm();
+			Melody melody = f.getMelody();
+			int n = Math.min(rhythm.size(), melody.size());
+			for (int i = 0; i < n; i++) {
+				Strike s = rhythm.get(i);
+				long ts = composition.getStrikeStartUs(e, s);
+				if (!isInRenderRange(ts)) {
+					continue;
+				}
+				long onTime = startDelayUs + ts - windowStartUs;
+				Chord c = melody.get(i);
+				for (int j = 0; j < c.size(); j++) {
+					int zone = SampleZone.find(zones, c.get(j), s.getVelocity());
+					if (zone >= 0 && (firstUse[zone] < 0L || onTime < firstUse[zone])) {
+						firstUse[zone] = onTime;
+					}
+				}
+			}
+		}
+		return firstUse;
+	}
+
+	// Find the time at which each note of an instrument is first played
+	private Map<Integer, Long> findFirstUseTimes(Instrument instr) {
+		Map<Integer, Long> firstUse = new HashMap<Integer, Long>();
+		long windowStartUs = getRenderWindowStartUs();
+		for (PlayFigureEvent e : getFirstRepetitions()) {
+			SimpleFigure f = e.getFigure();
+			if (f.getInstrument() != instr) {
+				continue;
+			}
+			Rhythm rhythm = f.getRhythm();
+			Melody melody = f.getMelody();
+			int n = Math.min(rhythm.size(), melody.size());
+			for (int i = 0; i < n; i++) {
+				long ts = composition.getStrikeStartUs(e, rhythm.get(i));
+				if (!isInRenderRange(ts)) {
+					continue;
+				}
+				long onTime = startDelayUs + ts - windowStartUs;
+				Chord c = melody.get(i);
+				for (int j = 0; j < c.size(); j++) {
+					int note = c.get(j);
+					Long prev = firstUse.get(note);
+					if (prev == null || onTime < prev) {
+						firstUse.put(note, onTime);
+					}
+				}
+			}
+		}
+		return firstUse;
+	}
+
+	private MappedSample getMappedSample(String fileName) {
+		if (!fileName.toLowerCase().endsWith(".wav")) {
+			return null;
+		}
+		try {
+			return MappedSampleStore.get(fileName);
+		} catch (IOException e) {
+			// Unsupported encoding (for example): load it normally
+			System.out.println("Could not map " + fileName + ": " + e.getMessage());
+			return null;
+		}
+	}
+
 	private Soundbank getSoundBank(Instrument instrument) throws IOException {
 		System.out.println("Loading soundfont " + instrument.getSoundFont());
 		Soundbank sb = null;
@@ -651,60 +1630,17 @@ public class Player {
 		return sb;
 	}
 	
-	static class NoteStart {
-		final long ts;
-		final int velocity;
-		NoteStart(long ts, int velocity) {
-			this.ts = ts;
-			this.velocity = velocity;
-		}
-	}
-
-	private void analyzeCapturedEvents(List<MidiMessageAndTimeStamp> capturedEvents) {
-		Map<Integer, NoteStart> starts = new HashMap<Integer, NoteStart>();
-		
-		Rhythm rhythm = new Rhythm();
-		Melody melody = new Melody();
-		
-		Tempo tempo = composition.getTempo();
-		
-		long baseTs = -1L;
-		
-		for (MidiMessageAndTimeStamp mmts : capturedEvents) {
-			MidiMessage msg = mmts.msg;
-			long ts = mmts.timeStamp;
-			if (msg instanceof ShortMessage) {
-				ShortMessage smsg = (ShortMessage) msg;
-				if (smsg.getCommand() == ShortMessage.NOTE_ON) {
-					if (baseTs < 0L && ts >= 0L) {
-						baseTs = ts;
-//						System.out.println("baseTs="+baseTs);
-					}
-					int note = smsg.getData1();
-					int velocity = smsg.getData2();
-					starts.put(note, new NoteStart(ts, velocity));
-				} else if (smsg.getCommand() == ShortMessage.NOTE_OFF) {
-					int note = smsg.getData1();
-					NoteStart start = starts.get(note);
-					if (start != null) {
-						//System.out.printf("baseTs=%d, start.ts=%d, ts=%d\n", baseTs, start.ts, ts);
-						Strike s = new Strike(start.ts - baseTs, ts - start.ts, start.velocity);
-						rhythm.add(s);
-						Chord ch = new Chord();
-						ch.add(note);
-						melody.add(ch);
-					}
-				}
-			}
-		}
-		
-		// Output captured Rhythm and Melody
+	// Print code for the figure played live
+	private void printCapturedFigure() {
+		int measure = captureAnalyzer.getFirstMeasure();
+		SimpleFigure figure = captureAnalyzer.getFigure(composition.getAudition(), measure);
 		Scale scale = composition.isUsingDefaultScale() ? null : composition.getScale();
+		System.out.println("// Captured starting at measure " + measure);
 		System.out.print("Rhythm rhythm = ");
-		System.out.print(ConvertToCode.toCode(rhythm, tempo));
+		System.out.print(ConvertToCode.toCode(figure.getRhythm(), composition.getTempo()));
 		System.out.println(";");
 		System.out.print("Melody melody = ");
-		System.out.print(ConvertToCode.toCode(melody, scale));
+		System.out.print(ConvertToCode.toCode(figure.getMelody(), scale));
 		System.out.println(";");
 	}
 }
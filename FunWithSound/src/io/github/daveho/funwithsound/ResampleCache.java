@@ -0,0 +1,239 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.beadsproject.beads.data.Sample;
+
+/**
+ * Cache of samples converted (using {@link Resampler}) to the sample
+ * rate of the AudioContext, so that sample playback never needs to
+ * convert sample rates.  Converted samples are cached in memory, and,
+ * if a cache directory is specified, on disk, keyed by a hash of the
+ * contents of the sample file and the target sample rate, so each
+ * sample file is only converted once for a given rate.
+ * Samples cached in memory are softly referenced, so they can be
+ * reclaimed when memory is needed, and the hash of a sample file is
+ * remembered (for as long as the Sample loaded from it is in use)
+ * so the file is only hashed once.
+ */
+class ResampleCache {
+	// Identifies a cached sample file: "FWSR" (big-endian)
+	private static final int MAGIC = 0x46575352;
+	
+	// Cache file header: magic, number of channels, number of frames, sample rate
+	private static final int HEADER_SIZE = 16;
+	
+	// Softly referenced cached sample, which knows its key so it
+	// can be removed from the cache once it has been reclaimed
+	private static class CachedSample extends SoftReference<Sample> {
+		final String key;
+		
+		CachedSample(String key, Sample sample, ReferenceQueue<Sample> queue) {
+			super(sample, queue);
+			this.key = key;
+		}
+	}
+	
+	private static final ConcurrentHashMap<String, CachedSample> cache =
+			new ConcurrentHashMap<String, CachedSample>();
+	private static final ReferenceQueue<Sample> reclaimed = new ReferenceQueue<Sample>();
+	
+	// Cache keys for the (original) Samples loaded from sample files,
+	// by sample rate
+	private static final Map<Sample, Map<Float, String>> keys =
+			Collections.synchronizedMap(new WeakHashMap<Sample, Map<Float, String>>());
+	
+	/**
+	 * Get a Sample converted to the given sample rate.
+	 * If the Sample already has the requested sample rate, it is
+	 * returned as-is.
+	 * 
+	 * @param fileName    the sample file the Sample was loaded from
+	 * @param sample      the Sample
+	 * @param sampleRate  the requested sample rate
+	 * @param cacheDir    directory in which to cache converted samples,
+	 *                    or null to cache them only in memory
+	 * @return Sample with the requested sample rate
+	 */
+	public static Sample get(String fileName, Sample sample, float sampleRate, File cacheDir) {
+		if (sample == null || sample.getSampleRate() == sampleRate) {
+			return sample;
+		}
+		removeReclaimed();
+		String key = getKey(fileName, sample, sampleRate);
+		if (key == null) {
+			// The file can't be hashed, so the result can't be cached
+			return Resampler.resample(sample, sampleRate);
+		}
+		CachedSample cached = cache.get(key);
+		Sample result = cached != null ? cached.get() : null;
+		if (result == null) {
+			result = load(fileName, key, sample, sampleRate, cacheDir);
+			CachedSample ref = new CachedSample(key, result, reclaimed);
+			CachedSample prev = cache.putIfAbsent(key, ref);
+			if (prev != null) {
+				// Another thread cached it first: use its result if it
+				// is still available
+				Sample prevResult = prev.get();
+				if (prevResult != null) {
+					result = prevResult;
+				} else {
+					cache.replace(key, prev, ref);
+				}
+			}
+		}
+		return result;
+	}
+	
+	// Remove cache entries whose samples have been reclaimed
+	private static void removeReclaimed() {
+		CachedSample ref;
+		while ((ref = (CachedSample) reclaimed.poll()) != null) {
+			cache.remove(ref.key, ref);
+		}
+	}
+	
+	// Get the cache key (a hash of the contents of the sample file
+	// and the sample rate) for a Sample, or null if the sample file
+	// can't be read
+	private static String getKey(String fileName, Sample sample, float sampleRate) {
+		Map<Float, String> sampleKeys;
+		synchronized (keys) {
+			sampleKeys = keys.get(sample);
+			if (sampleKeys == null) {
+				sampleKeys = new ConcurrentHashMap<Float, String>();
+				keys.put(sample, sampleKeys);
+			}
+		}
+		String key = sampleKeys.get(sampleRate);
+		if (key == null) {
+			try {
+				ContentHasher hasher = new ContentHasher();
+				hasher.putFileContents(fileName);
+				hasher.putDouble(sampleRate);
+				key = hasher.digest();
+			} catch (IOException e) {
+				System.out.println("Could not hash sample file " + fileName + ": " + e.getMessage());
+				return null;
+			}
+			sampleKeys.put(sampleRate, key);
+		}
+		return key;
+	}
+	
+	private static Sample load(String fileName, String key, Sample sample, float sampleRate, File cacheDir) {
+		File cacheFile = null;
+		if (cacheDir != null) {
+			cacheFile = new File(cacheDir, key + ".fwsr");
+			if (cacheFile.exists()) {
+				try {
+					return read(cacheFile);
+				} catch (IOException e) {
+					System.out.println("Could not read resampled sample for " + fileName + ": " + e.getMessage());
+				}
+			}
+		}
+		
+		System.out.printf("Resampling %s from %f to %f\n", fileName, sample.getSampleRate(), sampleRate);
+		Sample result = Resampler.resample(sample, sampleRate);
+		
+		if (cacheFile != null) {
+			try {
+				write(result, cacheFile);
+			} catch (IOException e) {
+				System.out.println("Could not cache resampled sample for " + fileName + ": " + e.getMessage());
+			}
+		}
+		return result;
+	}
+	
+	private static Sample read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			if (buf.remaining() < HEADER_SIZE || buf.getInt() != MAGIC) {
+				throw new IOException("Not a resampled sample file: " + file.getPath());
+			}
+			int numChannels = buf.getInt();
+			int numFrames = buf.getInt();
+			float sampleRate = buf.getFloat();
+			if (buf.remaining() != (long) numChannels * numFrames * 4) {
+				throw new IOException("Truncated resampled sample file: " + file.getPath());
+			}
+			FloatBuffer fb = buf.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+			float[][] data = new float[numChannels][numFrames];
+			for (int c = 0; c < numChannels; c++) {
+				fb.get(data[c]);
+			}
+			return Resampler.toSample(data, sampleRate);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	private static void write(Sample sample, File file) throws IOException {
+		File dir = file.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create cache directory " + dir.getPath());
+		}
+		int numChannels = sample.getNumChannels();
+		int numFrames = (int) sample.getNumFrames();
+		float[][] data = new float[numChannels][numFrames];
+		sample.getFrames(0, data);
+		
+		// Write to a temporary file and rename it, so a partially
+		// written file is never seen in the cache
+		File tmp = File.createTempFile("resample", ".tmp", dir);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(numChannels);
+			out.writeInt(numFrames);
+			out.writeFloat(sample.getSampleRate());
+			ByteBuffer buf = ByteBuffer.allocate(numFrames * 4).order(ByteOrder.LITTLE_ENDIAN);
+			for (int c = 0; c < numChannels; c++) {
+				buf.clear();
+				buf.asFloatBuffer().put(data[c]);
+				out.write(buf.array(), 0, numFrames * 4);
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			if (!file.exists()) {
+				throw new IOException("Could not rename " + tmp.getPath() + " to " + file.getPath());
+			}
+		}
+	}
+}
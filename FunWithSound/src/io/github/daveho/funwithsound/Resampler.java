@@ -0,0 +1,204 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import net.beadsproject.beads.data.Sample;
+
+/**
+ * Polyphase windowed-sinc sample rate converter.
+ * The conversion ratio is reduced to a ratio of integers
+ * <i>L</i>/<i>M</i>, and the filter coefficients for each of the
+ * <i>L</i> phases are computed once by the constructor, so
+ * converting is just one dot product per output frame.
+ * The filter is a Kaiser-windowed sinc with its cutoff just below
+ * the lower of the two Nyquist frequencies.
+ * A Resampler has no mutable state, so it may be shared by
+ * multiple threads.
+ */
+public class Resampler {
+	// Filter half-length (in zero crossings of the sinc)
+	private static final int HALF_ZERO_CROSSINGS = 16;
+	
+	// Cutoff, as a fraction of the lower Nyquist frequency
+	private static final double CUTOFF = 0.95;
+	
+	// Kaiser window shape parameter (about 90 dB stopband attenuation)
+	private static final double KAISER_BETA = 9.0;
+	
+	private final int up;
+	private final int down;
+	private final int half;
+	private final float[][] phases;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param srcRate the sample rate of the input
+	 * @param dstRate the sample rate of the output
+	 */
+	public Resampler(float srcRate, float dstRate) {
+		int src = Math.round(srcRate);
+		int dst = Math.round(dstRate);
+		if (src <= 0 || dst <= 0) {
+			throw new IllegalArgumentException("Invalid sample rates: " + srcRate + ", " + dstRate);
+		}
+		int g = gcd(src, dst);
+		this.up = dst / g;
+		this.down = src / g;
+		
+		// When downsampling, the cutoff is lowered (and the filter
+		// lengthened in proportion) to avoid aliasing
+		double fc = CUTOFF * Math.min(1.0, (double) up / down);
+		this.half = (int) Math.ceil(HALF_ZERO_CROSSINGS / fc);
+		int taps = half * 2;
+		double i0Beta = besselI0(KAISER_BETA);
+		
+		this.phases = new float[up][taps];
+		for (int p = 0; p < up; p++) {
+			// Tap k is applied to the input frame at distance d
+			// from the output position
+			double frac = (double) p / up;
+			double sum = 0.0;
+			double[] h = new double[taps];
+			for (int k = 0; k < taps; k++) {
+				double d = frac + half - 1 - k;
+				double x = d / half;
+				double w = Math.abs(x) < 1.0 ? besselI0(KAISER_BETA * Math.sqrt(1.0 - x*x)) / i0Beta : 0.0;
+				h[k] = fc * sinc(fc * d) * w;
+				sum += h[k];
+			}
+			// Normalize each phase to unity gain at DC
+			for (int k = 0; k < taps; k++) {
+				phases[p][k] = (float) (h[k] / sum);
+			}
+		}
+	}
+	
+	/**
+	 * Get the number of output frames produced from the given number
+	 * of input frames.
+	 * 
+	 * @param numFrames number of input frames
+	 * @return number of output frames
+	 */
+	public int getOutputLength(int numFrames) {
+		return (int) (((long) numFrames * up + down - 1) / down);
+	}
+	
+	/**
+	 * Resample one channel of audio.
+	 * 
+	 * @param in the input samples
+	 * @return the output samples
+	 */
+	public float[] process(float[] in) {
+		int outFrames = getOutputLength(in.length);
+		float[] out = new float[outFrames];
+		int taps = half * 2;
+		for (int j = 0; j < outFrames; j++) {
+			long pos = (long) j * down;
+			int i = (int) (pos / up);
+			float[] h = phases[(int) (pos % up)];
+			int first = i - half + 1;
+			int k0 = Math.max(0, -first);
+			int k1 = Math.min(taps, in.length - first);
+			float acc = 0.0f;
+			for (int k = k0; k < k1; k++) {
+				acc += h[k] * in[first + k];
+			}
+			out[j] = acc;
+		}
+		return out;
+	}
+	
+	/**
+	 * Resample multichannel audio.
+	 * 
+	 * @param data the input audio, indexed by channel and frame
+	 * @return the output audio, indexed by channel and frame
+	 */
+	public float[][] process(float[][] data) {
+		float[][] result = new float[data.length][];
+		for (int c = 0; c < data.length; c++) {
+			result[c] = process(data[c]);
+		}
+		return result;
+	}
+	
+	/**
+	 * Resample a Sample to a given sample rate.
+	 * If the Sample already has the requested sample rate, it is returned as-is.
+	 * 
+	 * @param sample      the Sample
+	 * @param sampleRate  the requested sample rate
+	 * @return Sample with the requested sample rate
+	 */
+	public static Sample resample(Sample sample, float sampleRate) {
+		if (sample.getSampleRate() == sampleRate) {
+			return sample;
+		}
+		int numChannels = sample.getNumChannels();
+		float[][] data = new float[numChannels][(int) sample.getNumFrames()];
+		sample.getFrames(0, data);
+		return toSample(new Resampler(sample.getSampleRate(), sampleRate).process(data), sampleRate);
+	}
+	
+	/**
+	 * Create a Sample from audio data.
+	 * 
+	 * @param data        the audio data, indexed by channel and frame
+	 * @param sampleRate  the sample rate
+	 * @return the Sample
+	 */
+	static Sample toSample(float[][] data, float sampleRate) {
+		int numFrames = data[0].length;
+		Sample result = new Sample(numFrames * 1000.0 / sampleRate, data.length, sampleRate);
+		result.putFrames(0, data);
+		return result;
+	}
+	
+	private static double sinc(double x) {
+		if (x == 0.0) {
+			return 1.0;
+		}
+		double px = Math.PI * x;
+		return Math.sin(px) / px;
+	}
+	
+	// Zeroth order modified Bessel function of the first kind
+	// (power series)
+	private static double besselI0(double x) {
+		double sum = 1.0;
+		double term = 1.0;
+		double q = x * x / 4.0;
+		for (int k = 1; k < 50; k++) {
+			term *= q / ((double) k * k);
+			sum += term;
+			if (term < sum * 1e-12) {
+				break;
+			}
+		}
+		return sum;
+	}
+	
+	private static int gcd(int a, int b) {
+		while (b != 0) {
+			int t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+}
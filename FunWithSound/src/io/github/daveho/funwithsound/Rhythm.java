@@ -15,31 +15,50 @@
 
 package io.github.daveho.funwithsound;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.TreeSet;
+import java.util.List;
 
 /**
  * A rhythm is a sequence of {@link Strike}s.
  * It specifies a rhythm pattern, but does not specify
  * notes or instruments.
+ * The strikes are kept in a list sorted by start time,
+ * so they can be accessed by index in constant time, and
+ * adding strikes in order (as rhythms are usually built)
+ * just appends them.
  */
 public class Rhythm implements Iterable<Strike> {
-	private TreeSet<Strike> strikes;
+	private ArrayList<Strike> strikes;
+	private int modCount;
 	
 	/**
 	 * Constructor.
 	 */
 	public Rhythm() {
-		strikes = new TreeSet<Strike>(Strike.COMPARE_BY_START);
+		strikes = new ArrayList<Strike>();
 	}
 	
 	/**
 	 * Add a {@link Strike} to the rhythm.
+	 * A strike identical (in start time, duration, and velocity)
+	 * to one already in the rhythm is ignored.
 	 * 
 	 * @param strike the {@link Strike} to add
 	 */
 	public void add(Strike strike) {
-		strikes.add(strike);
+		int n = strikes.size();
+		if (n == 0 || Strike.COMPARE_BY_START.compare(strikes.get(n - 1), strike) < 0) {
+			strikes.add(strike);
+		} else {
+			int pos = Collections.binarySearch(strikes, strike, Strike.COMPARE_BY_START);
+			if (pos >= 0) {
+				return;
+			}
+			strikes.add(-(pos + 1), strike);
+		}
+		modCount++;
 	}
 	
 	/**
@@ -58,20 +77,31 @@ public class Rhythm implements Iterable<Strike> {
 	 * @return the {@link Strike}
 	 */
 	public Strike get(int index) {
-		Iterator<Strike> i = strikes.iterator();
-		int count = 0;
-		while (i.hasNext()) {
-			Strike s = i.next();
-			if (count == index) {
-				return s;
-			}
-			count++;
-		}
-		throw new IndexOutOfBoundsException();
+		return strikes.get(index);
+	}
+	
+	/**
+	 * Get the {@link Strike} with the latest start time.
+	 * 
+	 * @return the last {@link Strike}, or null if the rhythm is empty
+	 */
+	Strike getLast() {
+		return strikes.isEmpty() ? null : strikes.get(strikes.size() - 1);
+	}
+	
+	/**
+	 * Get the number of times the rhythm has been modified
+	 * (for detecting changes to cached information about it.)
+	 * 
+	 * @return the modification count
+	 */
+	int getModCount() {
+		return modCount;
 	}
 	
 	@Override
 	public Iterator<Strike> iterator() {
-		return strikes.iterator();
+		List<Strike> view = Collections.unmodifiableList(strikes);
+		return view.iterator();
 	}
 }
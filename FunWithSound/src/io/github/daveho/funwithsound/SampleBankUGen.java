@@ -19,6 +19,9 @@ import io.github.daveho.gervill4beads.Midi;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.sound.midi.MidiMessage;
 import javax.sound.midi.ShortMessage;
@@ -28,10 +31,7 @@ import net.beadsproject.beads.core.Bead;
 import net.beadsproject.beads.core.UGen;
 import net.beadsproject.beads.core.UGenChain;
 import net.beadsproject.beads.data.Sample;
-import net.beadsproject.beads.ugens.Envelope;
 import net.beadsproject.beads.ugens.Gain;
-import net.beadsproject.beads.ugens.SamplePlayer;
-import net.beadsproject.beads.ugens.SamplePlayer.LoopType;
 
 /**
  * A UGen that plays samples in response to MIDI NOTE_ON events.
@@ -40,20 +40,44 @@ import net.beadsproject.beads.ugens.SamplePlayer.LoopType;
  * ReceivedMidiMessageSource.  Also note that this UGen does
  * no sequencing of its own, so the Bead providing the messages
  * should deliver them at the correct playback times.
+ * The range of each Sample to be played is extracted (once) into a
+ * {@link SampleSlice} with its fade in and fade out already applied,
+ * so playing a note is just a matter of copying the slice to the output.
  */
 public class SampleBankUGen extends UGenChain {
-	private static final float RAMP_TIME_MS = 5.0f;
+	/** Duration of the fade in and fade out ramps applied to sample slices. */
+	static final float RAMP_TIME_MS = 5.0f;
 	
 	private static class PlayerInfo {
-		SamplePlayer player;
-		Envelope env;
+		SampleSliceVoice player;
+		SampleSlice slice;
+		MappedSampleVoice voice;
 		Gain out;
 		SampleRange range;
+		Future<SampleSlice> pending;
+	}
+	
+	// A pending sample added during playback
+	private static class LateSample {
+		final int note;
+		final Future<SampleSlice> slice;
+		final double gain;
+		final SampleRange range;
+		
+		LateSample(int note, Future<SampleSlice> slice, double gain, SampleRange range) {
+			this.note = note;
+			this.slice = slice;
+			this.gain = gain;
+			this.range = range;
+		}
 	}
 	
 	private AudioContext ac;
 	private Map<Integer, PlayerInfo> samplePlayers;
 	private Gain mixer;
+	private boolean waitForSamples;
+	private long notLoadedNotes;
+	private final ConcurrentLinkedQueue<LateSample> lateSamples = new ConcurrentLinkedQueue<LateSample>();
 
 	/**
 	 * Constructor.
@@ -80,7 +104,7 @@ public class SampleBankUGen extends UGenChain {
 	 * @param gain the gain
 	 */
 	public void addSample(int note, Sample sample, double gain) {
-		addSample(note, sample, gain, new SampleRange(0, sample.getLength()));
+		addSample(note, sample, null, gain, null);
 	}
 	
 	/**
@@ -93,27 +117,111 @@ public class SampleBankUGen extends UGenChain {
 	 * @param range    the SampleRange (start and end time)
 	 */
 	public void addSample(int note, Sample sample, double gain, SampleRange range) {
+		addSample(note, sample, null, gain, range);
+	}
+	
+	/**
+	 * Add a {@link SampleSlice}, which is being loaded asynchronously
+	 * (see {@link SamplePrefetcher}), to be played for given MIDI note.
+	 * The slice is installed when the note is first played: if it hasn't
+	 * finished loading by then, the note is skipped (and counted, see
+	 * {@link #getNotLoadedNotes()}), unless {@link #setWaitForSamples(boolean)}
+	 * has been used to wait for samples to load.
+	 * 
+	 * @param note     the MIDI note
+	 * @param slice    Future which will provide the SampleSlice
+	 * @param gain     the gain
+	 * @param range    the SampleRange (start and end time) of the slice,
+	 *                 or null if it is the entire sample
+	 */
+	void addPendingSample(int note, Future<SampleSlice> slice, double gain, SampleRange range) {
+		addSample(note, null, slice, gain, range);
+	}
+	
+	/**
+	 * Like {@link #addPendingSample(int, Future, double, SampleRange)},
+	 * but may be called (from any thread) during playback: the sample
+	 * is added by the audio thread before it handles the next MIDI
+	 * message, unless the note already has a sample.
+	 * 
+	 * @param note     the MIDI note
+	 * @param slice    Future which will provide the SampleSlice
+	 * @param gain     the gain
+	 * @param range    the SampleRange (start and end time) of the slice,
+	 *                 or null if it is the entire sample
+	 */
+	void addLatePendingSample(int note, Future<SampleSlice> slice, double gain, SampleRange range) {
+		lateSamples.add(new LateSample(note, slice, gain, range));
+	}
+	
+	private void addSample(int note, Sample sample, Future<SampleSlice> pending, double gain, SampleRange range) {
 		PlayerInfo sp = new PlayerInfo();
-
-		SamplePlayer player = new SamplePlayer(ac, 2);
-		player.setSample(sample);
-		player.setLoopType(LoopType.NO_LOOP_FORWARDS);
-		player.setKillOnEnd(false);
-		player.pause(true);
+		sp.pending = pending;
+		if (sample != null) {
+			sp.slice = SampleSlice.get(sample, range, ac.getSampleRate(), RAMP_TIME_MS);
+		}
 		
-		sp.player = player;
-		sp.env = new Envelope(ac, 0.0f); // Controls the sample gain envelope
+		// Sample envelope gain: the envelope is baked into the slice,
+		// so this only exists so subclasses can attach effects
+		Gain senvGain = new Gain(ac, 2);
+		UGen senvOut = createSampleOutput(ac, note, senvGain);
+		if (senvOut == senvGain) {
+			// No effects: the slice can be copied straight into the mixer,
+			// with the static gain applied as it is copied
+			System.out.printf("Setting static gain for sample %d to %f\n", note, gain);
+			sp.player = new SampleSliceVoice(ac, (float)gain);
+			sp.range = range;
+			samplePlayers.put(note, sp);
+			mixer.addInput(sp.player);
+		} else {
+			sp.player = new SampleSliceVoice(ac, 1.0f);
+			senvGain.addInput(sp.player);
+			connect(note, sp, senvOut, gain, range);
+		}
+	}
+	
+	/**
+	 * Add a {@link MappedSample} to be played for given MIDI note.
+	 * The entire sample will be played.
+	 * 
+	 * @param note the MIDI note
+	 * @param sample the {@link MappedSample}
+	 * @param gain the gain
+	 */
+	public void addSample(int note, MappedSample sample, double gain) {
+		addSample(note, sample, gain, new SampleRange(0, sample.getLengthMs()));
+	}
+	
+	/**
+	 * Add a {@link MappedSample} to be played for given MIDI note.
+	 * Only the specified range of the sample will be played.
+	 * The sample data is decoded as it is played, rather than
+	 * being loaded into memory.
+	 * 
+	 * @param note     the MIDI note
+	 * @param sample   the {@link MappedSample}
+	 * @param gain     the gain
+	 * @param range    the SampleRange (start and end time)
+	 */
+	public void addSample(int note, MappedSample sample, double gain, SampleRange range) {
+		PlayerInfo sp = new PlayerInfo();
 		
-		// Sample envelope gain
+		// The voice applies its own gain envelope, but it is still fed
+		// through a Gain so subclasses see the same kind of UGen
+		// from createSampleOutput
+		sp.voice = new MappedSampleVoice(ac, sample, RAMP_TIME_MS);
 		Gain senvGain = new Gain(ac, 2);
-		senvGain.setGain(sp.env);
-		senvGain.addInput(sp.player);
+		senvGain.addInput(sp.voice);
 		
 		// Give subclasses an opportunity to capture the sample player
 		// output and do something with it before it enters the
 		// per-sample static gain
 		UGen senvOut = createSampleOutput(ac, note, senvGain);
 		
+		connect(note, sp, senvOut, gain, range);
+	}
+	
+	private void connect(int note, PlayerInfo sp, UGen senvOut, double gain, SampleRange range) {
 		// Create a single static Gain to control the volume of
 		// the sample
 		sp.out = new Gain(ac, 2);
@@ -131,6 +239,54 @@ public class SampleBankUGen extends UGenChain {
 		mixer.addInput(sp.out);
 	}
 
+	/**
+	 * Set whether playing a note whose sample is still being loaded
+	 * should wait for the sample to load (rather than skipping the note.)
+	 * Waiting is appropriate for offline rendering, where it makes
+	 * the output independent of how long samples take to load.
+	 * 
+	 * @param waitForSamples true if notes should wait for samples to load
+	 */
+	public void setWaitForSamples(boolean waitForSamples) {
+		this.waitForSamples = waitForSamples;
+	}
+	
+	/**
+	 * Get the number of notes which were skipped because their
+	 * sample hadn't finished loading.
+	 * 
+	 * @return number of skipped notes
+	 */
+	public long getNotLoadedNotes() {
+		return notLoadedNotes;
+	}
+	
+	// Install a slice which was being loaded asynchronously.
+	// Returns false if the slice isn't available.
+	private boolean installPendingSample(int note, PlayerInfo sp) {
+		if (!waitForSamples && !sp.pending.isDone()) {
+			notLoadedNotes++;
+			return false;
+		}
+		SampleSlice slice;
+		try {
+			slice = sp.pending.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			slice = null;
+		}
+		sp.pending = null;
+		if (slice == null) {
+			// The prefetcher reports samples that can't be loaded
+			samplePlayers.remove(note);
+			return false;
+		}
+		sp.slice = slice;
+		return true;
+	}
+
 	/**
 	 * Returns the UGen that should be the output of the
 	 * sample player before it enters the per-sample gain UGen.
@@ -148,6 +304,12 @@ public class SampleBankUGen extends UGenChain {
 
 	@Override
 	protected void messageReceived(Bead message) {
+		LateSample late;
+		while ((late = lateSamples.poll()) != null) {
+			if (!samplePlayers.containsKey(late.note)) {
+				addPendingSample(late.note, late.slice, late.gain, late.range);
+			}
+		}
 		if (Midi.hasMidiMessage(message)) {
 			MidiMessage msg = Midi.getMidiMessage(message);
 			if (msg instanceof ShortMessage) {
@@ -158,22 +320,15 @@ public class SampleBankUGen extends UGenChain {
 					// Find the appropriate SamplePlayer
 					int note = ((ShortMessage)msg).getData1();
 					final PlayerInfo sp = samplePlayers.get(note);
-					if (sp != null) {
+					if (sp != null && sp.pending != null && !installPendingSample(note, sp)) {
+						return;
+					}
+					if (sp != null && sp.voice != null) {
+						sp.voice.trigger(sp.range);
+					} else if (sp != null) {
 //						double time = ac.getTime();
 //						System.out.printf("Play sample %d at %f from %f..%f ms\n", note, time, sp.range.startMs, sp.range.endMs);
-						sp.player.reset();
-						sp.player.setPosition(sp.range.startMs);
-						float durationMs = (float)(sp.range.endMs - sp.range.startMs);
-						
-						sp.env.clear();
-						float middleTimeMs = durationMs - 2*RAMP_TIME_MS;
-						sp.env.addSegment(1.0f, RAMP_TIME_MS);
-						if (middleTimeMs > 0) {
-							sp.env.addSegment(1.0f, middleTimeMs);
-						}
-						sp.env.addSegment(0.0f, RAMP_TIME_MS);
-						
-						sp.player.start();
+						sp.player.trigger(sp.slice);
 					}
 				}
 			}
@@ -0,0 +1,241 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import net.beadsproject.beads.data.Sample;
+import net.beadsproject.beads.data.SampleManager;
+
+/**
+ * Loads samples in a background thread, in order of the time
+ * at which they are first needed.  Used by {@link Player}
+ * to load only the samples that are actually played, without
+ * waiting for all of them to be loaded before playback starts.
+ * Samples are converted to the AudioContext's sample rate
+ * (see {@link ResampleCache}) as they are loaded, and the requested
+ * ranges are extracted into {@link SampleSlice}s, so that the audio
+ * thread only has to install a ready slice when a note is first played.
+ * Slices requested after prefetching has started (for figures added
+ * during playback) are loaded as soon as possible, in a separate
+ * background thread.
+ */
+class SamplePrefetcher {
+	private static class Request {
+		final FutureTask<Sample> task;
+		final Map<String, FutureTask<SampleSlice>> slices;
+		long firstUseUs;
+		
+		Request(FutureTask<Sample> task, long firstUseUs) {
+			this.task = task;
+			this.slices = new LinkedHashMap<String, FutureTask<SampleSlice>>();
+			this.firstUseUs = firstUseUs;
+		}
+		
+		void run() {
+			task.run();
+			for (FutureTask<SampleSlice> slice : slices.values()) {
+				slice.run();
+			}
+		}
+	}
+	
+	private final float sampleRate;
+	private final File resampleCacheDir;
+	private final Map<String, Request> requests;
+	private List<Request> schedule;
+	private final Map<String, FutureTask<SampleSlice>> lateSlices;
+	private ExecutorService lateLoader;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param sampleRate        the AudioContext's sample rate
+	 * @param resampleCacheDir  directory in which to cache resampled samples
+	 *                          (null if they should only be cached in memory)
+	 */
+	public SamplePrefetcher(float sampleRate, File resampleCacheDir) {
+		this.sampleRate = sampleRate;
+		this.resampleCacheDir = resampleCacheDir;
+		this.requests = new HashMap<String, Request>();
+		this.lateSlices = new HashMap<String, FutureTask<SampleSlice>>();
+	}
+	
+	/**
+	 * Request that a range of a sample be loaded (using SampleManager)
+	 * and extracted into a {@link SampleSlice}.
+	 * If prefetching has already started, the slice is loaded as soon
+	 * as possible.
+	 * 
+	 * @param fileName    the sample file
+	 * @param range       the {@link SampleRange}, or null for the entire sample
+	 * @param rampTimeMs  duration of the slice's fade in and fade out ramps
+	 * @param firstUseUs  the time at which the sample is first needed
+	 * @return Future which will provide the SampleSlice (or null if the
+	 *         sample can't be loaded)
+	 */
+	public synchronized Future<SampleSlice> requestSlice(final String fileName, final SampleRange range,
+			final float rampTimeMs, long firstUseUs) {
+		Request req = requests.get(fileName);
+		String key = (range != null ? range.startMs + ":" + range.endMs : "all") + "/" + rampTimeMs;
+		if (schedule != null) {
+			return requestLateSlice(req, fileName, key, range, rampTimeMs);
+		}
+		if (req == null) {
+			req = new Request(createSampleTask(fileName), firstUseUs);
+			requests.put(fileName, req);
+		} else {
+			req.firstUseUs = Math.min(req.firstUseUs, firstUseUs);
+		}
+		FutureTask<SampleSlice> slice = req.slices.get(key);
+		if (slice == null) {
+			slice = createSliceTask(req.task, fileName, range, rampTimeMs);
+			req.slices.put(key, slice);
+		}
+		return slice;
+	}
+	
+	// Request a slice once prefetching has started: the scheduled requests
+	// (which the prefetching thread is using) aren't modified
+	private Future<SampleSlice> requestLateSlice(Request req, String fileName, String key,
+			SampleRange range, float rampTimeMs) {
+		FutureTask<SampleSlice> slice = req != null ? req.slices.get(key) : null;
+		if (slice != null) {
+			return slice;
+		}
+		slice = lateSlices.get(fileName + "/" + key);
+		if (slice != null) {
+			return slice;
+		}
+		if (req == null) {
+			// Not scheduled, so only loaded by the late loader
+			req = new Request(createSampleTask(fileName), Long.MAX_VALUE);
+			requests.put(fileName, req);
+		}
+		final FutureTask<Sample> sampleTask = req.task;
+		final FutureTask<SampleSlice> lateSlice = createSliceTask(sampleTask, fileName, range, rampTimeMs);
+		lateSlices.put(fileName + "/" + key, lateSlice);
+		if (lateLoader == null) {
+			lateLoader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "SamplePrefetcher-late");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		lateLoader.execute(new Runnable() {
+			@Override
+			public void run() {
+				// If the prefetching thread is loading the sample,
+				// this waits for it (in the slice task)
+				sampleTask.run();
+				lateSlice.run();
+			}
+		});
+		return lateSlice;
+	}
+	
+	private FutureTask<Sample> createSampleTask(final String fileName) {
+		return new FutureTask<Sample>(new Callable<Sample>() {
+			@Override
+			public Sample call() throws Exception {
+				return ResampleCache.get(fileName, SampleManager.sample(fileName), sampleRate, resampleCacheDir);
+			}
+		});
+	}
+	
+	private FutureTask<SampleSlice> createSliceTask(final FutureTask<Sample> sampleTask, final String fileName,
+			final SampleRange range, final float rampTimeMs) {
+		// The sample is always loaded before its slices
+		return new FutureTask<SampleSlice>(new Callable<SampleSlice>() {
+			@Override
+			public SampleSlice call() throws Exception {
+				Sample sample = sampleTask.get();
+				if (sample == null) {
+					System.out.println("Could not load sample " + fileName);
+					return null;
+				}
+				return SampleSlice.get(sample, range, sampleRate, rampTimeMs);
+			}
+		});
+	}
+	
+	/**
+	 * Start loading the requested samples in a background thread.
+	 */
+	public synchronized void start() {
+		schedule = new ArrayList<Request>(requests.values());
+		Collections.sort(schedule, new Comparator<Request>() {
+			@Override
+			public int compare(Request o1, Request o2) {
+				return Long.compare(o1.firstUseUs, o2.firstUseUs);
+			}
+		});
+		if (schedule.isEmpty()) {
+			return;
+		}
+		final List<Request> toLoad = schedule;
+		Thread t = new Thread("SamplePrefetcher") {
+			@Override
+			public void run() {
+				for (Request req : toLoad) {
+					req.run();
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/**
+	 * Wait until all samples first needed before the given time are loaded
+	 * (and sliced.)
+	 * 
+	 * @param timeUs the time
+	 */
+	public void awaitUntil(long timeUs) {
+		for (Request req : schedule) {
+			if (req.firstUseUs >= timeUs) {
+				break;
+			}
+			try {
+				for (FutureTask<SampleSlice> slice : req.slices.values()) {
+					slice.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				// Reported when the sample is used
+			}
+		}
+	}
+}
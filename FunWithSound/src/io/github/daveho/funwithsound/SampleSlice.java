@@ -0,0 +1,117 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.beadsproject.beads.data.Sample;
+
+/**
+ * A range of a Sample extracted into a compact stereo buffer at a
+ * given sample rate, with the fade in and fade out ramps applied,
+ * so that it can be played by simply copying it.
+ * Slices are cached (for as long as the Sample is in use), so
+ * each range of a sample is only extracted once.
+ */
+class SampleSlice {
+	private static final Map<Sample, ConcurrentHashMap<String, SampleSlice>> cache =
+			Collections.synchronizedMap(new WeakHashMap<Sample, ConcurrentHashMap<String, SampleSlice>>());
+	
+	/** The audio data, indexed by channel (0 or 1) and frame. */
+	final float[][] data;
+	
+	/** The number of frames. */
+	final int numFrames;
+	
+	/**
+	 * Get the slice of a Sample for a given range, extracting it if it
+	 * is not already cached.
+	 * 
+	 * @param sample      the Sample
+	 * @param range       the {@link SampleRange}, or null for the entire sample
+	 * @param sampleRate  the sample rate of the slice
+	 * @param rampTimeMs  duration of the fade in and fade out ramps
+	 * @return the slice
+	 */
+	public static SampleSlice get(Sample sample, SampleRange range, float sampleRate, float rampTimeMs) {
+		if (range == null) {
+			range = new SampleRange(0, sample.getLength());
+		}
+		ConcurrentHashMap<String, SampleSlice> slices;
+		synchronized (cache) {
+			slices = cache.get(sample);
+			if (slices == null) {
+				slices = new ConcurrentHashMap<String, SampleSlice>();
+				cache.put(sample, slices);
+			}
+		}
+		String key = range.startMs + ":" + range.endMs + "@" + sampleRate + "/" + rampTimeMs;
+		SampleSlice slice = slices.get(key);
+		if (slice == null) {
+			slice = new SampleSlice(sample, range, sampleRate, rampTimeMs);
+			SampleSlice prev = slices.putIfAbsent(key, slice);
+			if (prev != null) {
+				slice = prev;
+			}
+		}
+		return slice;
+	}
+	
+	private SampleSlice(Sample sample, SampleRange range, float sampleRate, float rampTimeMs) {
+		double srcRate = sample.getSampleRate();
+		long srcFrames = sample.getNumFrames();
+		double startMs = Math.max(0.0, range.startMs);
+		double endMs = Math.min(range.endMs, srcFrames * 1000.0 / srcRate);
+		this.numFrames = (int) Math.max(0L, Math.round((endMs - startMs) * sampleRate / 1000.0));
+		
+		// Read the source frames covering the range
+		double step = srcRate / sampleRate;
+		double srcStart = startMs * srcRate / 1000.0;
+		int first = (int) srcStart;
+		int count = (int) Math.min(srcFrames - first, (long) Math.ceil(numFrames * step) + 2L);
+		int srcChannels = sample.getNumChannels();
+		float[][] src = new float[srcChannels][Math.max(0, count)];
+		if (count > 0) {
+			sample.getFrames(first, src);
+		}
+		
+		// Resample (with linear interpolation, like SamplePlayer), and
+		// apply the ramps
+		double rampFrames = Math.max(1.0, rampTimeMs * sampleRate / 1000.0);
+		this.data = new float[2][];
+		for (int c = 0; c < 2; c++) {
+			if (c >= srcChannels) {
+				// Mono: both channels are the same
+				data[c] = data[0];
+				continue;
+			}
+			float[] in = src[c];
+			float[] out = new float[numFrames];
+			for (int i = 0; i < numFrames; i++) {
+				double p = srcStart - first + i * step;
+				int i0 = (int) p;
+				float frac = (float) (p - i0);
+				float a = i0 < count ? in[i0] : 0.0f;
+				float b = i0 + 1 < count ? in[i0 + 1] : 0.0f;
+				double g = Math.min(1.0, Math.min(i, numFrames - i) / rampFrames);
+				out[i] = (float) ((a + frac * (b - a)) * g);
+			}
+			data[c] = out;
+		}
+	}
+}
@@ -0,0 +1,77 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import java.util.Arrays;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.UGen;
+
+/**
+ * UGen which plays a {@link SampleSlice} by copying it (with a
+ * static gain) to its output.
+ */
+class SampleSliceVoice extends UGen {
+	private final float gain;
+	private SampleSlice slice;
+	private int pos;
+	private boolean playing;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param ac    the AudioContext
+	 * @param gain  the gain
+	 */
+	public SampleSliceVoice(AudioContext ac, float gain) {
+		super(ac, 0, 2);
+		this.gain = gain;
+	}
+	
+	/**
+	 * Start playing a slice (from the beginning, even if the voice
+	 * is already playing.)
+	 * 
+	 * @param slice the {@link SampleSlice} to play
+	 */
+	public void trigger(SampleSlice slice) {
+		this.slice = slice;
+		this.pos = 0;
+		this.playing = slice.numFrames > 0;
+	}
+	
+	@Override
+	public void calculateBuffer() {
+		int n = playing ? Math.min(bufferSize, slice.numFrames - pos) : 0;
+		for (int c = 0; c < 2; c++) {
+			float[] out = bufOut[c];
+			if (n > 0) {
+				float[] src = slice.data[c];
+				if (gain == 1.0f) {
+					System.arraycopy(src, pos, out, 0, n);
+				} else {
+					for (int i = 0; i < n; i++) {
+						out[i] = src[pos + i] * gain;
+					}
+				}
+			}
+			Arrays.fill(out, n, bufferSize, 0.0f);
+		}
+		pos += n;
+		if (playing && pos >= slice.numFrames) {
+			playing = false;
+		}
+	}
+}
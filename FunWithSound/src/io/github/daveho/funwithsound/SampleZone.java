@@ -0,0 +1,110 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import java.util.List;
+
+/**
+ * Information about a zone of a multisample instrument:
+ * a sample which is played (pitch shifted from its root note)
+ * for a range of keys and velocities.
+ */
+public class SampleZone {
+	/** Lowest MIDI note (inclusive). */
+	final int lowNote;
+	/** Highest MIDI note (inclusive). */
+	final int highNote;
+	/** Lowest velocity (inclusive). */
+	final int lowVelocity;
+	/** Highest velocity (inclusive). */
+	final int highVelocity;
+	/** MIDI note at which the sample plays at its recorded pitch. */
+	final int rootNote;
+	/** Sample filename. */
+	final String fileName;
+	/** Start time: if negative, then the entire sample will be played. */
+	final double startMs;
+	/** End time (ignored if start time is negative). */
+	final double endMs;
+	/** Static gain to be used for sample playback. */
+	final double gain;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param lowNote       lowest MIDI note (inclusive)
+	 * @param highNote      highest MIDI note (inclusive)
+	 * @param lowVelocity   lowest velocity (inclusive)
+	 * @param highVelocity  highest velocity (inclusive)
+	 * @param rootNote      MIDI note at which the sample plays at its recorded pitch
+	 * @param fileName      the sample filename
+	 * @param startMs       start time (if negative, then the entire sample will be played)
+	 * @param endMs         end time (ignored if start time is negative)
+	 * @param gain          the gain
+	 */
+	SampleZone(int lowNote, int highNote, int lowVelocity, int highVelocity, int rootNote,
+			String fileName, double startMs, double endMs, double gain) {
+		this.lowNote = lowNote;
+		this.highNote = highNote;
+		this.lowVelocity = lowVelocity;
+		this.highVelocity = highVelocity;
+		this.rootNote = rootNote;
+		this.fileName = fileName;
+		this.startMs = startMs;
+		this.endMs = endMs;
+		this.gain = gain;
+	}
+	
+	/**
+	 * Get the range of the sample to be played.
+	 * 
+	 * @return the {@link SampleRange}, or null if the entire sample should be played
+	 */
+	SampleRange getRange() {
+		return startMs >= 0.0 ? new SampleRange(startMs, endMs) : null;
+	}
+	
+	/**
+	 * Find the zone which should play a given note.
+	 * The first zone whose key and velocity ranges contain the note and
+	 * velocity is used.  If there is no such zone, the zone (among
+	 * those whose velocity range contains the velocity, if any) whose
+	 * root note is nearest to the note is used.
+	 * 
+	 * @param zones     the zones
+	 * @param note      the MIDI note
+	 * @param velocity  the velocity
+	 * @return index of the zone, or -1 if there are no zones
+	 */
+	static int find(List<SampleZone> zones, int note, int velocity) {
+		int nearest = -1, nearestDist = Integer.MAX_VALUE;
+		boolean nearestVelocityMatches = false;
+		for (int i = 0; i < zones.size(); i++) {
+			SampleZone z = zones.get(i);
+			boolean velocityMatches = velocity >= z.lowVelocity && velocity <= z.highVelocity;
+			if (velocityMatches && note >= z.lowNote && note <= z.highNote) {
+				return i;
+			}
+			int dist = Math.abs(note - z.rootNote);
+			if ((velocityMatches && !nearestVelocityMatches)
+					|| (velocityMatches == nearestVelocityMatches && dist < nearestDist)) {
+				nearest = i;
+				nearestDist = dist;
+				nearestVelocityMatches = velocityMatches;
+			}
+		}
+		return nearest;
+	}
+}
@@ -15,13 +15,17 @@
 
 package io.github.daveho.funwithsound;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * A scale is an ascending sequence of midi pitches.
  * A typical heptatonic scale will have 7 pitches.
+ * Conversions between scale-relative note numbers and MIDI note
+ * numbers in the MIDI range (0..127) are done using lookup tables,
+ * which are built the first time they are needed (and rebuilt if
+ * pitches are added to the scale.)
  */
 public class Scale implements Iterable<Integer> {
 	// See:  http://www.guitarland.com/Music10/FGA/LectureMIDIscales.html
@@ -34,10 +38,31 @@ public class Scale implements Iterable<Integer> {
 	private static int[] HARMONIC_MINOR_INTERVALS = {2, 1, 2, 2, 1, 3/*, 1*/};
 	private static int[] MELODIC_MINOR_INTERVALS = {2, 1, 2, 2, 2, 2/*, 1*/};
 	
-	private List<Integer> pitches;
+	private static final int NUM_MIDI_NOTES = 128;
+	
+	// Lookup tables for MIDI notes 0..127, and for the
+	// scale-relative notes which map to them
+	private static class Tables {
+		// Scale-relative note for each MIDI note (MIN_VALUE if not in scale)
+		final int[] midiToNote = new int[NUM_MIDI_NOTES];
+		// Highest scale-relative note at or below each MIDI note
+		final int[] floorNote = new int[NUM_MIDI_NOTES];
+		// MIDI note for each scale-relative note from minNote
+		final int minNote;
+		final int[] noteToMidi;
+		
+		Tables(int minNote, int maxNote) {
+			this.minNote = minNote;
+			this.noteToMidi = new int[maxNote - minNote + 1];
+		}
+	}
+	
+	private int[] pitches;
+	private int size;
+	private volatile Tables tables;
 	
 	Scale() {
-		pitches = new ArrayList<Integer>();
+		pitches = new int[8];
 	}
 	
 	/**
@@ -46,7 +71,11 @@ public class Scale implements Iterable<Integer> {
 	 * @param pitch the pitch to add
 	 */
 	public void add(int pitch) {
-		pitches.add(pitch);
+		if (size == pitches.length) {
+			pitches = Arrays.copyOf(pitches, size*2);
+		}
+		pitches[size++] = pitch;
+		tables = null;
 	}
 	
 	/**
@@ -55,7 +84,7 @@ public class Scale implements Iterable<Integer> {
 	 * @return the number of pitches
 	 */
 	public int size() {
-		return pitches.size();
+		return size;
 	}
 	
 	/**
@@ -71,13 +100,23 @@ public class Scale implements Iterable<Integer> {
 	 * @return the midi note number
 	 */
 	public int get(int index) {
-		int octaveOffset = index / pitches.size();
-		int noteOffset = index % pitches.size();
+		Tables t = getTables();
+		int i = index - t.minNote;
+		if (i >= 0 && i < t.noteToMidi.length) {
+			return t.noteToMidi[i];
+		}
+		return compute(index);
+	}
+	
+	// Compute the midi note number of a scale-relative note
+	private int compute(int index) {
+		int octaveOffset = index / size;
+		int noteOffset = index % size;
 		if (noteOffset < 0) {
 			octaveOffset--;
-			noteOffset = pitches.size() + noteOffset;
+			noteOffset = size + noteOffset;
 		}
-		return pitches.get(noteOffset) + octaveOffset*12;
+		return pitches[noteOffset] + octaveOffset*12;
 	}
 	
 	/**
@@ -101,10 +140,19 @@ public class Scale implements Iterable<Integer> {
 	 *         if this MIDI note number is not part of the scale
 	 */
 	public int findMidiNote(int note) {
+		if (note >= 0 && note < NUM_MIDI_NOTES) {
+			return getTables().midiToNote[note];
+		}
+		return search(note);
+	}
+	
+	// Find a MIDI note number in the scale (for notes outside
+	// the lookup tables, and to build them.)
+	private int search(int note) {
 		// I'm sure there is a more principled way to do this,
 		// but I'm going to do it the brute force way.
 		
-		int cur = pitches.get(0);
+		int cur = pitches[0];
 		int updown = (note < cur) ? -1 : 1;
 		
 		// Find the octave containing this note
@@ -114,25 +162,147 @@ public class Scale implements Iterable<Integer> {
 		
 		// Figure out the offset between the octave's start note
 		// and the scale's root note.
-		int offset = cur - pitches.get(0);
+		int offset = cur - pitches[0];
 		
 		// Check the pitches in this octave to see if one matches.
-		for (int i = 0; i < pitches.size(); i++) {
-			if (note == pitches.get(i) + offset) {
+		for (int i = 0; i < size; i++) {
+			if (note == pitches[i] + offset) {
 				// Found a match!
 				// Translate it to scale relative form.
 				int octave = offset/12;
-				return i + (octave*pitches.size());
+				return i + (octave*size);
 			}
 		}
 		
 		// There was no match
 		return Integer.MIN_VALUE;
 	}
+	
+	// Find the highest scale-relative note whose MIDI note number
+	// is at or below the given MIDI note number.
+	private int searchFloor(int note) {
+		// Start with an octave guaranteed to be at or below the note,
+		// and step up while the next scale note is still at or below it
+		int octave = (note - pitches[0]) / 12 - 1;
+		if (note < pitches[0]) {
+			octave -= (pitches[0] - note) / 12 + 1;
+		}
+		int index = octave*size;
+		while (compute(index + 1) <= note) {
+			index++;
+		}
+		return index;
+	}
+	
+	private Tables getTables() {
+		Tables t = tables;
+		if (t == null) {
+			t = buildTables();
+			tables = t;
+		}
+		return t;
+	}
+	
+	private synchronized Tables buildTables() {
+		if (size == 0) {
+			throw new IllegalStateException("Scale has no pitches");
+		}
+		Tables t = new Tables(searchFloor(0), searchFloor(NUM_MIDI_NOTES - 1));
+		for (int note = 0; note < NUM_MIDI_NOTES; note++) {
+			t.midiToNote[note] = search(note);
+			t.floorNote[note] = searchFloor(note);
+		}
+		for (int i = 0; i < t.noteToMidi.length; i++) {
+			t.noteToMidi[i] = compute(t.minNote + i);
+		}
+		return t;
+	}
+	
+	/**
+	 * Transpose a MIDI note number by a number of steps in the scale.
+	 * A note which isn't in the scale is moved by the same
+	 * number of semitones as the closest scale note below it.
+	 * 
+	 * @param note   the MIDI note number
+	 * @param steps  the number of scale steps (negative to transpose down)
+	 * @return the transposed MIDI note number
+	 */
+	public int transpose(int note, int steps) {
+		int floor = (note >= 0 && note < NUM_MIDI_NOTES) ? getTables().floorNote[note] : searchFloor(note);
+		return get(floor + steps) + (note - get(floor));
+	}
+	
+	/**
+	 * Transpose all of the pitches in a {@link Chord} by a number
+	 * of steps in the scale.
+	 * 
+	 * @param chord  the {@link Chord}
+	 * @param steps  the number of scale steps (negative to transpose down)
+	 * @return the transposed {@link Chord}
+	 */
+	public Chord transpose(Chord chord, int steps) {
+		int[] result = new int[chord.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = transpose(chord.get(i), steps);
+		}
+		return Chord.of(result);
+	}
+	
+	/**
+	 * Transpose all of the pitches in a {@link Melody} by a number
+	 * of steps in the scale.
+	 * 
+	 * @param melody  the {@link Melody}
+	 * @param steps   the number of scale steps (negative to transpose down)
+	 * @return the transposed {@link Melody}
+	 */
+	public Melody transpose(Melody melody, int steps) {
+		Melody result = new Melody();
+		for (int i = 0; i < melody.size(); i++) {
+			result.add(transpose(melody.get(i), steps));
+		}
+		return result;
+	}
+	
+	/**
+	 * Create a mode of this scale: the scale starting at
+	 * the given note of this scale.  E.g., mode 1 of
+	 * a major scale is the dorian mode.
+	 * 
+	 * @param note the scale-relative note at which the mode starts
+	 * @return the mode
+	 */
+	public Scale mode(int note) {
+		Scale s = new Scale();
+		for (int i = 0; i < size; i++) {
+			s.add(get(note + i));
+		}
+		return s;
+	}
 
 	@Override
 	public Iterator<Integer> iterator() {
-		return pitches.iterator();
+		return new Iterator<Integer>() {
+			private int index;
+			
+			@Override
+			public boolean hasNext() {
+				return index < size;
+			}
+			
+			@Override
+			public Integer next() {
+				if (index >= size) {
+					throw new NoSuchElementException();
+				}
+				return pitches[index++];
+			}
+			
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
 	}
 	
 	/**
@@ -174,6 +344,30 @@ public class Scale implements Iterable<Integer> {
 	public static Scale melodicMinor(int start) {
 		return makeScale(start, MELODIC_MINOR_INTERVALS);
 	}
+	
+	/**
+	 * Create a scale rooted at the given MIDI note number, with
+	 * the given intervals between successive notes.  The intervals
+	 * should add up to less than 12 (the interval from the last note
+	 * back to the root an octave higher is implied.)
+	 * 
+	 * @param start      the root MIDI note number
+	 * @param intervals  the intervals (in semitones)
+	 * @return the {@link Scale}
+	 */
+	public static Scale fromIntervals(int start, int... intervals) {
+		int sum = 0;
+		for (int add : intervals) {
+			if (add <= 0) {
+				throw new IllegalArgumentException("Invalid scale interval: " + add);
+			}
+			sum += add;
+		}
+		if (sum >= 12) {
+			throw new IllegalArgumentException("Scale intervals span an octave or more");
+		}
+		return makeScale(start, intervals);
+	}
 
 	private static Scale makeScale(int start, int[] intervals) {
 		Scale s = new Scale();
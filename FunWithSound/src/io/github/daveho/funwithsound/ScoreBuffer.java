@@ -0,0 +1,212 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import java.util.Arrays;
+
+/**
+ * A buffer of notes (start time, duration, velocity, and pitch) stored
+ * in primitive arrays, for building long generated figures without
+ * creating a {@link Strike} and {@link Chord} per note as it is generated.
+ * A {@link Generator} writes notes into a buffer, starting at the
+ * buffer's current beat and advancing it, and the buffer is then
+ * converted into a {@link Rhythm} and {@link Melody} in a single pass.
+ * Notes with identical strikes (start time, duration, and velocity)
+ * are combined into a single chord.
+ */
+public class ScoreBuffer {
+	private static final int INITIAL_CAPACITY = 64;
+	
+	private final Tempo tempo;
+	private long[] startUs;
+	private long[] durationUs;
+	private int[] velocity;
+	private int[] pitch;
+	private int size;
+	private double beat;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param tempo the {@link Tempo} used to convert beats to microseconds
+	 */
+	public ScoreBuffer(Tempo tempo) {
+		this.tempo = tempo;
+		this.startUs = new long[INITIAL_CAPACITY];
+		this.durationUs = new long[INITIAL_CAPACITY];
+		this.velocity = new int[INITIAL_CAPACITY];
+		this.pitch = new int[INITIAL_CAPACITY];
+	}
+	
+	/**
+	 * Add a note.
+	 * 
+	 * @param startBeat      the start, in beats from the beginning of the buffer
+	 * @param durationBeats  the duration in beats
+	 * @param velocity       the velocity, in the range 0..127
+	 * @param pitch          the pitch (MIDI note number)
+	 */
+	public void add(double startBeat, double durationBeats, int velocity, int pitch) {
+		if (size == this.pitch.length) {
+			int capacity = size*2;
+			startUs = Arrays.copyOf(startUs, capacity);
+			durationUs = Arrays.copyOf(durationUs, capacity);
+			this.velocity = Arrays.copyOf(this.velocity, capacity);
+			this.pitch = Arrays.copyOf(this.pitch, capacity);
+		}
+		startUs[size] = tempo.beatToUs(startBeat);
+		durationUs[size] = tempo.beatToUs(durationBeats);
+		this.velocity[size] = velocity;
+		this.pitch[size] = pitch;
+		size++;
+	}
+	
+	/**
+	 * Add a note for each pitch in a {@link Chord}.
+	 * 
+	 * @param startBeat      the start, in beats from the beginning of the buffer
+	 * @param durationBeats  the duration in beats
+	 * @param velocity       the velocity, in the range 0..127
+	 * @param chord          the {@link Chord}
+	 */
+	public void add(double startBeat, double durationBeats, int velocity, Chord chord) {
+		for (int i = 0; i < chord.size(); i++) {
+			add(startBeat, durationBeats, velocity, chord.get(i));
+		}
+	}
+	
+	/**
+	 * Get the number of notes in the buffer.
+	 * 
+	 * @return the number of notes
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Get the current beat: generators add notes starting at
+	 * the current beat.
+	 * 
+	 * @return the current beat
+	 */
+	public double getBeat() {
+		return beat;
+	}
+	
+	/**
+	 * Set the current beat.
+	 * 
+	 * @param beat the current beat
+	 */
+	public void setBeat(double beat) {
+		this.beat = beat;
+	}
+	
+	/**
+	 * Remove all notes, and reset the current beat to 0.
+	 */
+	public void clear() {
+		size = 0;
+		beat = 0.0;
+	}
+	
+	/**
+	 * Convert the notes in the buffer to a {@link SimpleFigure}.
+	 * 
+	 * @param instrument the {@link Instrument} to play the figure
+	 * @return the figure
+	 */
+	public SimpleFigure toFigure(Instrument instrument) {
+		int[] order = sortedOrder();
+		Rhythm rhythm = new Rhythm();
+		Melody melody = new Melody();
+		int i = 0;
+		while (i < size) {
+			// Notes with identical strikes form a chord
+			int first = order[i];
+			int end = i + 1;
+			while (end < size && compare(first, order[end]) == 0) {
+				end++;
+			}
+			rhythm.add(new Strike(startUs[first], durationUs[first], velocity[first]));
+			if (end == i + 1) {
+				melody.add(Chord.of(pitch[first]));
+			} else {
+				int[] pitches = new int[end - i];
+				for (int j = i; j < end; j++) {
+					pitches[j - i] = pitch[order[j]];
+				}
+				melody.add(Chord.of(pitches));
+			}
+			i = end;
+		}
+		SimpleFigure result = new SimpleFigure();
+		result.setRhythm(rhythm);
+		result.setMelody(melody);
+		result.setInstrument(instrument);
+		return result;
+	}
+	
+	// Order of the notes, sorted by strike (generated notes are
+	// usually in order already, in which case there's nothing to do)
+	private int[] sortedOrder() {
+		int[] order = new int[size];
+		boolean sorted = true;
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+			if (i > 0 && compare(i - 1, i) > 0) {
+				sorted = false;
+			}
+		}
+		if (!sorted) {
+			// Merge sort (which is stable, so chords keep their pitch order)
+			int[] tmp = new int[size];
+			for (int width = 1; width < size; width *= 2) {
+				for (int lo = 0; lo < size; lo += 2*width) {
+					int mid = Math.min(lo + width, size);
+					int hi = Math.min(lo + 2*width, size);
+					int a = lo, b = mid, k = lo;
+					while (a < mid && b < hi) {
+						tmp[k++] = compare(order[b], order[a]) < 0 ? order[b++] : order[a++];
+					}
+					while (a < mid) {
+						tmp[k++] = order[a++];
+					}
+					while (b < hi) {
+						tmp[k++] = order[b++];
+					}
+				}
+				int[] swap = order;
+				order = tmp;
+				tmp = swap;
+			}
+		}
+		return order;
+	}
+	
+	// Compare the strikes of two notes in the same way as Strike.COMPARE_BY_START
+	private int compare(int i, int j) {
+		int cmp = Long.compare(startUs[i], startUs[j]);
+		if (cmp != 0) {
+			return cmp;
+		}
+		cmp = Long.compare(durationUs[i], durationUs[j]);
+		if (cmp != 0) {
+			return cmp;
+		}
+		return Integer.compare(velocity[i], velocity[j]);
+	}
+}
@@ -0,0 +1,778 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Render a (long) {@link Composition} to a wave file by splitting it into
+ * time segments which are rendered in parallel, each by its own
+ * {@link Player}, and then stitched together.
+ * Each segment is rendered with a pre-roll, so that effect tails and
+ * synthesizer state are (approximately) what they would be if the
+ * composition were rendered from the beginning.  Adjacent segments
+ * overlap by a short crossfade.
+ * Segment boundaries are chosen so that each segment has approximately
+ * the same rendering cost, based on the density of notes in the
+ * composition.  Optionally, rendered audio can be cached (see
+ * {@link #setCacheDir(File)}), so that re-rendering a composition after
+ * a small change only renders the parts that changed.
+ * Note that notes which start before a segment's pre-roll aren't
+ * heard in that segment, so the pre-roll should be at least as long
+ * as the longest sustained note (plus its release.)
+ */
+public class SegmentRenderer {
+	/** Default pre-roll in microseconds. */
+	public static final long DEFAULT_PRE_ROLL_US = 4000000L;
+	
+	/** Default crossfade in microseconds. */
+	public static final long DEFAULT_CROSSFADE_US = 50000L;
+	
+	/**
+	 * Default rendering cost of a note, expressed as the equivalent
+	 * number of microseconds of rendering.
+	 */
+	public static final long DEFAULT_NOTE_COST_US = 20000L;
+	
+	// Identifies the format of cached chunks: change this if
+	// rendering changes in a way that invalidates cached audio
+	private static final String CACHE_FORMAT = "FunWithSound chunk 3";
+	
+	private final Composition composition;
+	private int numThreads;
+	private int numSegments;
+	private long preRollUs;
+	private long crossfadeUs;
+	private long noteCostUs;
+	private File cacheDir;
+	private int measuresPerChunk;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param composition the {@link Composition} to render
+	 */
+	public SegmentRenderer(Composition composition) {
+		this.composition = composition;
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+		this.numSegments = -1;
+		this.preRollUs = DEFAULT_PRE_ROLL_US;
+		this.crossfadeUs = DEFAULT_CROSSFADE_US;
+		this.noteCostUs = DEFAULT_NOTE_COST_US;
+		this.measuresPerChunk = 1;
+	}
+	
+	/**
+	 * Set the number of segments to render concurrently.
+	 * The default is the number of available processors.
+	 * 
+	 * @param numThreads the number of threads
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	
+	/**
+	 * Set the number of segments.
+	 * The default is the number of threads.
+	 * 
+	 * @param numSegments the number of segments
+	 */
+	public void setNumSegments(int numSegments) {
+		this.numSegments = numSegments;
+	}
+	
+	/**
+	 * Set the pre-roll rendered (and discarded) before each segment.
+	 * 
+	 * @param preRollUs the pre-roll in microseconds
+	 */
+	public void setPreRollUs(long preRollUs) {
+		this.preRollUs = preRollUs;
+	}
+	
+	/**
+	 * Set the duration of the crossfade between adjacent segments.
+	 * 
+	 * @param crossfadeUs the crossfade duration in microseconds
+	 */
+	public void setCrossfadeUs(long crossfadeUs) {
+		this.crossfadeUs = crossfadeUs;
+	}
+	
+	/**
+	 * Set the rendering cost of a note, expressed as the equivalent
+	 * number of microseconds of rendering, used to balance the
+	 * segments.
+	 * 
+	 * @param noteCostUs the note cost
+	 */
+	public void setNoteCostUs(long noteCostUs) {
+		this.noteCostUs = noteCostUs;
+	}
+	
+	/**
+	 * Set a directory in which to cache rendered audio.
+	 * When a cache directory is set, the composition is rendered in
+	 * chunks of whole measures (rather than in segments chosen by
+	 * {@link #planSegments()}), and each rendered chunk is saved in the
+	 * cache directory.  Each chunk is identified by a hash of everything
+	 * that affects it: the notes in the chunk and its pre-roll, and the
+	 * instruments, effect parameters, gain, and sends of the
+	 * instruments playing them.  Chunks whose hash is found in the cache
+	 * aren't re-rendered, so after a small change to a long composition,
+	 * only the changed measures (and the measures whose pre-roll includes
+	 * them) are rendered.  So that a chunk's audio only depends on what
+	 * its hash covers, each chunk is rendered on its own, with exactly
+	 * the pre-roll, even when adjacent chunks also need rendering.
+	 * Custom instrument factories and effects are hashed reflectively;
+	 * ones that refer to the fields of an enclosing object (or hold
+	 * UGens) must implement {@link CacheKeySource}, otherwise the
+	 * chunks are rendered without being cached.
+	 * 
+	 * @param cacheDir the cache directory, or null to disable caching
+	 */
+	public void setCacheDir(File cacheDir) {
+		this.cacheDir = cacheDir;
+	}
+	
+	/**
+	 * Set the number of measures in each chunk when caching.
+	 * The default is 1.
+	 * 
+	 * @param measuresPerChunk the number of measures per chunk
+	 */
+	public void setMeasuresPerChunk(int measuresPerChunk) {
+		if (measuresPerChunk < 1) {
+			throw new IllegalArgumentException("invalid measures per chunk: " + measuresPerChunk);
+		}
+		this.measuresPerChunk = measuresPerChunk;
+	}
+	
+	/**
+	 * Create a {@link Player} to render one segment.
+	 * Subclasses may override to configure the player (for example,
+	 * to set a {@link CustomInstrumentFactory}.)  Note that each
+	 * segment is rendered by a different player, and players
+	 * may be used concurrently.  When a cache directory is set
+	 * (see {@link #setCacheDir(File)}), segments are always rendered
+	 * deterministically (see {@link Player#setDeterministic(boolean)}),
+	 * so that cached audio doesn't depend on timing.
+	 * 
+	 * @return the {@link Player}
+	 */
+	protected Player createPlayer() {
+		Player player = new Player();
+		player.setDeterministic(cacheDir != null);
+		return player;
+	}
+	
+	/**
+	 * Choose the segment boundaries.
+	 * Each segment's rendering cost is estimated as its duration plus
+	 * the note cost times the number of notes starting in the segment.
+	 * 
+	 * @return the start times of the segments (in microseconds):
+	 *         the first is always 0
+	 */
+	public long[] planSegments() {
+		// Find all note start times and the end of the last note
+		long[] noteTimes = new long[16];
+		int numNotes = 0;
+		long endUs = 0L;
+		for (PlayFigureEvent e : composition) {
+			SimpleFigure f = e.getFigure();
+			Rhythm rhythm = f.getRhythm();
+			Melody melody = f.getMelody();
+			int n = Math.min(rhythm.size(), melody.size());
+			for (int i = 0; i < n; i++) {
+				Strike s = rhythm.get(i);
+				long ts = composition.getStrikeStartUs(e, s);
+				for (int j = melody.get(i).size(); j > 0; j--) {
+					if (numNotes == noteTimes.length) {
+						noteTimes = Arrays.copyOf(noteTimes, numNotes * 2);
+					}
+					noteTimes[numNotes++] = ts;
+				}
+				endUs = Math.max(endUs, ts + s.getDurationUs());
+			}
+		}
+		Arrays.sort(noteTimes, 0, numNotes);
+		
+		int count = numSegments > 0 ? numSegments : numThreads;
+		double totalCost = (double)endUs + (double)numNotes * noteCostUs;
+		
+		// Walk the cumulative cost function, placing a boundary
+		// each time it passes a multiple of the per-segment cost
+		List<Long> starts = new ArrayList<Long>();
+		starts.add(0L);
+		double cost = 0.0;
+		long t = 0L;
+		int next = 0;
+		for (int k = 1; k < count; k++) {
+			double target = totalCost * k / count;
+			long boundary = -1L;
+			while (boundary < 0L) {
+				long nextT = next < numNotes ? noteTimes[next] : endUs;
+				if (cost + (nextT - t) >= target) {
+					boundary = t + (long)Math.ceil(target - cost);
+				} else {
+					cost += nextT - t;
+					t = nextT;
+					if (next >= numNotes) {
+						boundary = endUs;
+					} else {
+						cost += noteCostUs;
+						next++;
+						if (cost >= target) {
+							// The boundary is just after this note
+							boundary = t + 1L;
+						}
+					}
+				}
+			}
+			// Segments shorter than the pre-roll aren't worth rendering
+			if (boundary - starts.get(starts.size() - 1) >= Math.max(preRollUs, crossfadeUs)
+					&& endUs - boundary >= crossfadeUs) {
+				starts.add(boundary);
+			}
+		}
+		
+		long[] result = new long[starts.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = starts.get(i);
+		}
+		return result;
+	}
+	
+	/**
+	 * Render the composition to a wave file.
+	 * If a cache directory is set, the composition is rendered in chunks
+	 * of whole measures, and only chunks whose content has changed since
+	 * a previous render are re-rendered.
+	 * 
+	 * @param outputFile the name of the wave file to write
+	 * @throws MidiUnavailableException if a MIDI synthesizer can't be found
+	 * @throws IOException if a soundfont can't be loaded, or if an error occurs
+	 *                     reading or writing audio data
+	 */
+	public void saveWaveFile(String outputFile) throws MidiUnavailableException, IOException {
+		final long[] starts;
+		final File[] chunkFiles;
+		boolean[] dirty;
+		boolean[] temp;
+		int numDirty = 0;
+		if (cacheDir == null) {
+			starts = planSegments();
+			chunkFiles = new File[starts.length];
+			dirty = new boolean[starts.length];
+			temp = new boolean[starts.length];
+		} else {
+			starts = planChunks();
+			chunkFiles = new File[starts.length];
+			dirty = new boolean[starts.length];
+			temp = new boolean[starts.length];
+			if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+				throw new IOException("Could not create cache directory " + cacheDir.getPath());
+			}
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+		try {
+			Player keyPlayer = createPlayer();
+			boolean warned = false;
+			for (int i = 0; i < starts.length; i++) {
+				ContentHasher key = null;
+				if (cacheDir != null) {
+					key = hashChunk(starts, i, keyPlayer);
+					if (!key.isComplete()) {
+						// Something affecting the chunk's audio can't be hashed,
+						// so a cached copy could be stale
+						if (!warned) {
+							System.out.println("Not caching segments: " + key.getIncompleteReason());
+							warned = true;
+						}
+						key = null;
+					}
+				}
+				if (key == null) {
+					chunkFiles[i] = File.createTempFile("chunk", ".wav");
+					temp[i] = true;
+					dirty[i] = true;
+				} else {
+					chunkFiles[i] = new File(cacheDir, key.digest() + ".wav");
+					dirty[i] = !chunkFiles[i].exists();
+				}
+				if (dirty[i]) {
+					numDirty++;
+				}
+			}
+			System.out.println("Rendering " + numDirty + " of " + starts.length + " segments");
+			
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (final int[] run : planRuns(dirty, numDirty)) {
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						renderRun(starts, run[0], run[1], chunkFiles);
+						return null;
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				waitFor(future);
+			}
+			
+			stitch(chunkFiles, new File(outputFile));
+		} finally {
+			executor.shutdownNow();
+			for (int i = 0; i < chunkFiles.length; i++) {
+				if (temp[i]) {
+					chunkFiles[i].delete();
+				}
+			}
+		}
+	}
+	
+	// Chunk boundaries when caching: every measuresPerChunk measures
+	private long[] planChunks() {
+		TempoMap tempoMap = composition.getTempoMap();
+		long endUs = getEndUs();
+		List<Long> starts = new ArrayList<Long>();
+		starts.add(0L);
+		for (int m = measuresPerChunk; ; m += measuresPerChunk) {
+			long t = tempoMap.measureToUs(m);
+			if (endUs - t < crossfadeUs) {
+				break;
+			}
+			starts.add(t);
+		}
+		long[] result = new long[starts.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = starts.get(i);
+		}
+		return result;
+	}
+	
+	// Group consecutive dirty chunks into runs which are rendered together
+	// (so they share a single pre-roll), limiting the length of runs so
+	// that all of the threads are used.  Cached chunks are always rendered
+	// on their own: a chunk later in a run would be rendered with a longer
+	// pre-roll (including notes its key doesn't cover), so its audio
+	// would depend on which other chunks happened to need rendering.
+	private List<int[]> planRuns(boolean[] dirty, int numDirty) {
+		int maxRun = cacheDir != null ? 1 : Math.max(1, (numDirty + numThreads - 1) / Math.max(1, numThreads));
+		List<int[]> runs = new ArrayList<int[]>();
+		int i = 0;
+		while (i < dirty.length) {
+			if (!dirty[i]) {
+				i++;
+				continue;
+			}
+			int start = i;
+			while (i < dirty.length && dirty[i] && i - start < maxRun) {
+				i++;
+			}
+			runs.add(new int[]{start, i});
+		}
+		return runs;
+	}
+	
+	// Render chunks first..last-1, and write each to its chunk file.
+	// Each chunk file contains the chunk plus the crossfade into the
+	// next chunk.  (The first chunk also includes the start delay.)
+	private void renderRun(long[] starts, int first, int last, File[] chunkFiles)
+			throws MidiUnavailableException, IOException {
+		int n = starts.length;
+		Player player = createPlayer();
+		if (cacheDir != null) {
+			player.setDeterministic(true);
+		}
+		player.setComposition(composition);
+		long endUs = last < n ? starts[last] + crossfadeUs : -1L;
+		player.setRenderRange(starts[first], endUs, preRollUs);
+		File raw = File.createTempFile("segment", ".wav");
+		try {
+			player.saveWaveFile(raw.getPath());
+			
+			AudioInputStream in = openSegment(raw);
+			try {
+				AudioFormat format = in.getFormat();
+				float rate = format.getSampleRate();
+				int numChannels = format.getChannels();
+				int xfade = (int) toFrames(crossfadeUs, rate);
+				long startDelayUs = player.getStartDelayUs();
+				SegmentReader reader = new SegmentReader(in, numChannels);
+				
+				// Discard the start delay and pre-roll (the first chunk keeps
+				// the start delay, just like a non-segmented render.)
+				if (first > 0) {
+					long windowStartUs = Math.max(0L, starts[first] - preRollUs);
+					reader.skip(toFrames(startDelayUs + starts[first] - windowStartUs, rate));
+				}
+				
+				float[] frame = new float[numChannels];
+				float[][] overlap = null;
+				for (int k = first; k < last; k++) {
+					// Chunk lengths are computed from absolute frame positions,
+					// so that rounding errors don't accumulate
+					long len = Long.MAX_VALUE;
+					if (k + 1 < n) {
+						long startFrame = k == 0 ? 0L : toFrames(startDelayUs + starts[k], rate);
+						len = toFrames(startDelayUs + starts[k+1], rate) - startFrame;
+					}
+					
+					File chunkFile = chunkFiles[k].getAbsoluteFile();
+					File tmp = File.createTempFile("chunk", ".tmp", chunkFile.getParentFile());
+					WaveFileWriter writer = new WaveFileWriter(tmp, rate, numChannels);
+					try {
+						long pos = 0L;
+						if (overlap != null) {
+							// Crossfade from the previous chunk
+							for (float[] f : overlap) {
+								writer.writeFrame(f);
+							}
+							pos = overlap.length;
+							overlap = null;
+						}
+						while (pos < len && reader.read(frame)) {
+							writer.writeFrame(frame);
+							pos++;
+						}
+						if (k + 1 < n) {
+							// Crossfade into the next chunk
+							overlap = new float[xfade][numChannels];
+							for (float[] f : overlap) {
+								reader.read(f);
+								writer.writeFrame(f);
+							}
+						}
+					} finally {
+						writer.close();
+					}
+					
+					// The chunk file only appears once it is complete,
+					// so an interrupted render never leaves a partial chunk
+					if (!tmp.renameTo(chunkFile)) {
+						chunkFile.delete();
+						if (!tmp.renameTo(chunkFile)) {
+							tmp.delete();
+							throw new IOException("Could not write chunk " + chunkFile.getPath());
+						}
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} finally {
+			raw.delete();
+		}
+	}
+	
+	// Hash everything that affects the audio of a chunk: the notes played
+	// in the chunk and its pre-roll, and the instruments playing them,
+	// including their effects, gain, and sends.  The hash can only be used
+	// as the chunk's key if it is complete.
+	private ContentHasher hashChunk(long[] starts, int i, Player player) {
+		ContentHasher h = new ContentHasher();
+		h.putString(CACHE_FORMAT);
+		boolean last = i + 1 == starts.length;
+		long windowStartUs = Math.max(0L, starts[i] - preRollUs);
+		long endUs = last ? Long.MAX_VALUE : starts[i+1] + crossfadeUs;
+		h.putLong(starts[i]);
+		h.putLong(last ? -1L : starts[i+1]);
+		h.putLong(preRollUs);
+		h.putLong(crossfadeUs);
+		h.putLong(player.getStartDelayUs());
+		if (last) {
+			// The length of the last chunk depends on when the last note ends
+			h.putLong(player.getIdleWaitUs());
+			h.putLong(getEndUs());
+		}
+		h.putObject(player.getCustomInstrumentFactory());
+		
+		// Notes (instruments are identified by their order of first
+		// appearance in the chunk, so unrelated changes to other parts
+		// of the composition don't affect the key)
+		List<Instrument> instrs = new ArrayList<Instrument>();
+		for (PlayFigureEvent e : composition) {
+			SimpleFigure f = e.getFigure();
+			Rhythm rhythm = f.getRhythm();
+			Melody melody = f.getMelody();
+			int n = Math.min(rhythm.size(), melody.size());
+			for (int j = 0; j < n; j++) {
+				Strike s = rhythm.get(j);
+				long ts = composition.getStrikeStartUs(e, s);
+				if (ts < windowStartUs || ts >= endUs) {
+					continue;
+				}
+				Instrument instr = f.getInstrument();
+				int index = instrs.indexOf(instr);
+				if (index < 0) {
+					index = instrs.size();
+					instrs.add(instr);
+				}
+				h.putInt(index);
+				h.putLong(ts - windowStartUs);
+				h.putLong(composition.getStrikeEndUs(e, s) - ts);
+				h.putInt(s.getVelocity());
+				Chord c = melody.get(j);
+				h.putInt(c.size());
+				for (int k = 0; k < c.size(); k++) {
+					h.putInt(c.get(k));
+				}
+			}
+		}
+		
+		// Instruments, effects, gain, and sends
+		for (Instrument instr : instrs) {
+			h.putObject(instr);
+			h.putFile(instr.getSoundFont());
+			for (SampleInfo info : new TreeMap<Integer, SampleInfo>(instr.getSampleMap()).values()) {
+				h.putFile(info.fileName);
+			}
+			for (SampleZone zone : instr.getZones()) {
+				h.putFile(zone.fileName);
+			}
+			h.putObject(composition.getEffectsMap().get(instr));
+			putGainEvents(h, instr, windowStartUs, endUs);
+			for (Send send : composition.getSends()) {
+				if (send.instr == instr) {
+					h.putString(send.bus);
+					h.putDouble(send.level);
+					h.putObject(composition.getBusEffectsMap().get(send.bus));
+				}
+			}
+		}
+		
+		return h;
+	}
+	
+	// Hash the gain in effect at the start of the chunk's pre-roll,
+	// and the gain changes during the chunk.
+	private void putGainEvents(ContentHasher h, Instrument instr, long windowStartUs, long endUs) {
+		List<GainEvent> events = new ArrayList<GainEvent>();
+		for (GainEvent e : composition.getGainEvents()) {
+			if (e.instr == instr) {
+				events.add(e);
+			}
+		}
+		Collections.sort(events, new Comparator<GainEvent>() {
+			@Override
+			public int compare(GainEvent o1, GainEvent o2) {
+				return Long.compare(o1.ts, o2.ts);
+			}
+		});
+		double initialGain = -1.0;
+		for (GainEvent e : events) {
+			if (e.ts <= windowStartUs) {
+				initialGain = e.gain;
+			} else if (e.ts < endUs) {
+				h.putLong(e.ts - windowStartUs);
+				h.putDouble(e.gain);
+			}
+		}
+		h.putDouble(initialGain);
+	}
+	
+	// Time at which the last note ends
+	private long getEndUs() {
+		long endUs = 0L;
+		for (PlayFigureEvent e : composition) {
+			SimpleFigure f = e.getFigure();
+			Rhythm rhythm = f.getRhythm();
+			int n = Math.min(rhythm.size(), f.getMelody().size());
+			for (int i = 0; i < n; i++) {
+				Strike s = rhythm.get(i);
+				endUs = Math.max(endUs, composition.getStrikeEndUs(e, s));
+			}
+		}
+		return endUs;
+	}
+	
+	private static void waitFor(Future<?> future) throws MidiUnavailableException, IOException {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for segment to render", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof MidiUnavailableException) {
+				throw (MidiUnavailableException) cause;
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new RuntimeException("Error rendering segment", cause);
+		}
+	}
+	
+	// Concatenate the chunk files, crossfading between adjacent chunks
+	private void stitch(File[] chunkFiles, File outputFile) throws IOException {
+		WaveFileWriter writer = null;
+		float[] frame = null;
+		float[][] tail = null; // faded-out overlap from the previous chunk
+		try {
+			for (int i = 0; i < chunkFiles.length; i++) {
+				boolean last = i + 1 == chunkFiles.length;
+				AudioInputStream in = openSegment(chunkFiles[i]);
+				try {
+					AudioFormat format = in.getFormat();
+					float rate = format.getSampleRate();
+					int numChannels = format.getChannels();
+					if (writer == null) {
+						writer = new WaveFileWriter(outputFile, rate, numChannels);
+						frame = new float[numChannels];
+					}
+					int xfade = (int) toFrames(crossfadeUs, rate);
+					long numFrames = in.getFrameLength();
+					if (numFrames < 0L) {
+						throw new IOException("Unknown length for chunk " + chunkFiles[i].getPath());
+					}
+					SegmentReader reader = new SegmentReader(in, numChannels);
+					
+					// Mix the crossfade with the end of the previous chunk
+					long pos = 0L;
+					if (tail != null) {
+						for (int j = 0; j < tail.length; j++) {
+							reader.read(frame);
+							float w = (j + 0.5f) / tail.length;
+							for (int c = 0; c < numChannels; c++) {
+								frame[c] = frame[c]*w + tail[j][c];
+							}
+							writer.writeFrame(frame);
+						}
+						pos = tail.length;
+						tail = null;
+					}
+					
+					// Write the body of the chunk
+					long bodyEnd = last ? Long.MAX_VALUE : numFrames - xfade;
+					while (pos < bodyEnd && reader.read(frame)) {
+						writer.writeFrame(frame);
+						pos++;
+					}
+					
+					// Save the faded-out overlap with the next chunk
+					if (!last) {
+						tail = new float[xfade][numChannels];
+						for (int j = 0; j < xfade; j++) {
+							reader.read(tail[j]);
+							float w = 1.0f - (j + 0.5f) / xfade;
+							for (int c = 0; c < numChannels; c++) {
+								tail[j][c] *= w;
+							}
+						}
+					}
+				} finally {
+					in.close();
+				}
+			}
+		} finally {
+			if (writer != null) {
+				writer.close();
+			}
+		}
+	}
+	
+	private static long toFrames(long us, float rate) {
+		return Math.round(us * (double)rate / 1000000.0);
+	}
+	
+	private static AudioInputStream openSegment(File file) throws IOException {
+		try {
+			AudioInputStream in = AudioSystem.getAudioInputStream(file);
+			AudioFormat src = in.getFormat();
+			AudioFormat pcm = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, src.getSampleRate(), 16,
+					src.getChannels(), src.getChannels() * 2, src.getSampleRate(), false);
+			return src.matches(pcm) ? in : AudioSystem.getAudioInputStream(pcm, in);
+		} catch (UnsupportedAudioFileException e) {
+			throw new IOException("Could not read rendered segment " + file.getPath(), e);
+		}
+	}
+	
+	// Read frames of 16 bit little-endian PCM as floats, returning
+	// silence past the end of the data.
+	private static class SegmentReader {
+		private final AudioInputStream in;
+		private final int numChannels;
+		private final byte[] buf;
+		private int pos, len;
+		private boolean eof;
+		
+		SegmentReader(AudioInputStream in, int numChannels) {
+			this.in = in;
+			this.numChannels = numChannels;
+			this.buf = new byte[8192 * numChannels * 2];
+		}
+		
+		boolean read(float[] frame) throws IOException {
+			int frameSize = numChannels * 2;
+			if (len - pos < frameSize && !fill()) {
+				Arrays.fill(frame, 0, numChannels, 0.0f);
+				return false;
+			}
+			for (int c = 0; c < numChannels; c++) {
+				int v = (buf[pos] & 0xff) | (buf[pos+1] << 8);
+				frame[c] = v / 32768.0f;
+				pos += 2;
+			}
+			return true;
+		}
+		
+		void skip(long numFrames) throws IOException {
+			float[] frame = new float[numChannels];
+			for (long i = 0; i < numFrames; i++) {
+				if (!read(frame)) {
+					return;
+				}
+			}
+		}
+		
+		private boolean fill() throws IOException {
+			int frameSize = numChannels * 2;
+			System.arraycopy(buf, pos, buf, 0, len - pos);
+			len -= pos;
+			pos = 0;
+			while (!eof && len < frameSize) {
+				int n = in.read(buf, len, buf.length - len);
+				if (n < 0) {
+					eof = true;
+				} else {
+					len += n;
+				}
+			}
+			return len >= frameSize;
+		}
+	}
+}
@@ -0,0 +1,44 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+/**
+ * Feed the output of an {@link Instrument} into a named send bus
+ * of a {@link Composition} at a specified level.
+ * The bus's effects chain is computed once on the sum of all of the
+ * sends feeding it, so (for example) several instruments can share
+ * a single reverb.
+ */
+public class Send {
+	public final Instrument instr;
+	public final String bus;
+	public final double level;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param instr the {@link Instrument} whose output is sent to the bus
+	 * @param bus   the name of the bus
+	 * @param level the send level, between 0 (silent) and 1 (full)
+	 */
+	public Send(Instrument instr, String bus, double level) {
+		if (level < 0.0 || level > 1.0) {
+			throw new IllegalArgumentException("invalid send level: " + level + " (must be between 0 and 1)");
+		}
+		this.instr = instr;
+		this.bus = bus;
+		this.level = level;
+	}
+}
@@ -15,7 +15,7 @@
 
 package io.github.daveho.funwithsound;
 
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 
 /**
@@ -27,6 +27,8 @@ public class SimpleFigure implements Figure {
 	private Rhythm rhythm;
 	private Melody melody;
 	private Instrument instrument;
+	private FigureInfo info;
+	private int rhythmModCount;
 	
 	/**
 	 * Constructor.
@@ -42,6 +44,7 @@ public class SimpleFigure implements Figure {
 	 */
 	public void setRhythm(Rhythm rhythm) {
 		this.rhythm = rhythm;
+		this.info = null;
 	}
 	
 	/**
@@ -89,8 +92,23 @@ public class SimpleFigure implements Figure {
 		return instrument;
 	}
 
+	/**
+	 * Get the {@link FigureInfo}, which is computed when it is first
+	 * needed, and recomputed only if the rhythm changes.
+	 * 
+	 * @return the {@link FigureInfo}
+	 */
+	FigureInfo getInfo() {
+		int rmc = rhythm != null ? rhythm.getModCount() : 0;
+		if (info == null || rmc != rhythmModCount) {
+			info = FigureInfo.compute(rhythm);
+			rhythmModCount = rmc;
+		}
+		return info;
+	}
+
 	@Override
 	public Iterator<SimpleFigure> iterator() {
-		return Arrays.asList(this).iterator();
+		return Collections.singleton(this).iterator();
 	}
 }
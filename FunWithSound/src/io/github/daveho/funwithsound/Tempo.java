@@ -20,6 +20,7 @@ package io.github.daveho.funwithsound;
  * based on the number of beats per measure, helps determine microsecond
  * offsets and durations of events (e.g., {@link Strike}s) occuring
  * within a measure.
+ * A Tempo is fixed: see {@link TempoMap} for tempo and meter changes.
  */
 public class Tempo {
 	private int beatsPerMinute;
@@ -57,7 +58,9 @@ public class Tempo {
 	}
 	
 	/**
-	 * Get number of microseconds per beat.
+	 * Get number of microseconds per beat (rounded down to an integer:
+	 * use {@link #beatToUs(double)} to convert beats to microseconds
+	 * without accumulating rounding error.)
 	 * 
 	 * @return number of microseconds per beat
 	 */
@@ -73,7 +76,7 @@ public class Tempo {
 	 * @return offset or duration in microseconds
 	 */
 	public long beatToUs(double beat) {
-		return (long) (beat * usPerBeat);
+		return Math.round(beat * 60000000.0 / beatsPerMinute);
 	}
 
 	/**
@@ -84,7 +87,7 @@ public class Tempo {
 	 * @return equivalent number of beats
 	 */
 	public double usToBeat(long us) {
-		return (double)us / (double)getUsPerBeat();
+		return (double)us * beatsPerMinute / 60000000.0;
 	}
 	
 	/**
@@ -95,6 +98,6 @@ public class Tempo {
 	 * @return the microsecond timestamp of the start of the measure
 	 */
 	public long measureToUs(int measure) {
-		return measure * beatsPerMeasure * usPerBeat;
+		return beatToUs((double)measure * beatsPerMeasure);
 	}
 }
@@ -0,0 +1,363 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A tempo map: a base {@link Tempo}, plus tempo changes, gradual
+ * tempo changes (accelerando and ritardando), and meter changes,
+ * each taking effect at the beginning of a measure.
+ * Before it is used for conversions, the map is compiled into
+ * tables of segments (in which the tempo is constant or changes
+ * linearly with each beat), so converting between beats and
+ * microseconds is a binary search plus a closed-form computation
+ * within one segment.  Each segment's start time is computed
+ * from the beginning, so there is no accumulated error
+ * no matter how long the composition is.
+ */
+public class TempoMap {
+	private static final double US_PER_MINUTE = 60000000.0;
+	
+	private static class TempoChange {
+		final double beatsPerMinute;
+		final boolean ramp;
+		
+		TempoChange(double beatsPerMinute, boolean ramp) {
+			this.beatsPerMinute = beatsPerMinute;
+			this.ramp = ramp;
+		}
+	}
+	
+	// The compiled map
+	private static class Table {
+		// Meter segments: first measure, first beat, beats per measure
+		final int[] meterMeasure;
+		final double[] meterBeat;
+		final int[] meterBeatsPerMeasure;
+		
+		// Tempo segments: first beat, start time, tempo at the first
+		// beat, and change in tempo per beat
+		final double[] segBeat;
+		final double[] segUs;
+		final double[] segBpm;
+		final double[] segSlope;
+		
+		// True if there are no tempo or meter changes
+		final boolean constant;
+		
+		Table(int numMeters, int numSegs) {
+			meterMeasure = new int[numMeters];
+			meterBeat = new double[numMeters];
+			meterBeatsPerMeasure = new int[numMeters];
+			segBeat = new double[numSegs];
+			segUs = new double[numSegs];
+			segBpm = new double[numSegs];
+			segSlope = new double[numSegs];
+			constant = numMeters == 1 && numSegs == 1;
+		}
+	}
+	
+	private final Tempo baseTempo;
+	private final TreeMap<Integer, TempoChange> tempoChanges;
+	private final TreeMap<Integer, Integer> meterChanges;
+	private volatile Table table;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param baseTempo the {@link Tempo} in effect at the beginning
+	 */
+	public TempoMap(Tempo baseTempo) {
+		this.baseTempo = baseTempo;
+		this.tempoChanges = new TreeMap<Integer, TempoChange>();
+		this.meterChanges = new TreeMap<Integer, Integer>();
+	}
+	
+	/**
+	 * Get the base {@link Tempo}, which is in effect at the beginning.
+	 * 
+	 * @return the base {@link Tempo}
+	 */
+	public Tempo getBaseTempo() {
+		return baseTempo;
+	}
+	
+	/**
+	 * Change the tempo abruptly at the beginning of a measure.
+	 * 
+	 * @param measure         the measure
+	 * @param beatsPerMinute  the new tempo
+	 */
+	public void addTempoChange(int measure, double beatsPerMinute) {
+		addTempo(measure, new TempoChange(beatsPerMinute, false));
+	}
+	
+	/**
+	 * Change the tempo gradually, starting at the previous tempo change
+	 * (or the beginning), and reaching the specified tempo at the
+	 * beginning of a measure.  The tempo changes linearly with
+	 * each beat.
+	 * 
+	 * @param measure         the measure at which the new tempo is reached
+	 * @param beatsPerMinute  the new tempo
+	 */
+	public void addTempoRamp(int measure, double beatsPerMinute) {
+		addTempo(measure, new TempoChange(beatsPerMinute, true));
+	}
+	
+	private synchronized void addTempo(int measure, TempoChange change) {
+		if (measure <= 0 || change.beatsPerMinute <= 0.0) {
+			throw new IllegalArgumentException("Invalid tempo change: " + change.beatsPerMinute + " at measure " + measure);
+		}
+		tempoChanges.put(measure, change);
+		table = null;
+	}
+	
+	/**
+	 * Change the number of beats per measure at the beginning of a measure.
+	 * 
+	 * @param measure          the measure
+	 * @param beatsPerMeasure  the new number of beats per measure
+	 */
+	public synchronized void addMeterChange(int measure, int beatsPerMeasure) {
+		if (measure <= 0 || beatsPerMeasure <= 0) {
+			throw new IllegalArgumentException("Invalid meter change: " + beatsPerMeasure + " at measure " + measure);
+		}
+		meterChanges.put(measure, beatsPerMeasure);
+		table = null;
+	}
+	
+	/**
+	 * Determine whether there are any meter changes in a range of measures.
+	 * 
+	 * @param fromMeasure  the first measure of the range
+	 * @param toMeasure    the last measure of the range (inclusive)
+	 * @return true if the meter changes at the beginning of any measure in the range
+	 */
+	public synchronized boolean hasMeterChange(int fromMeasure, int toMeasure) {
+		return fromMeasure <= toMeasure && !meterChanges.subMap(fromMeasure, true, toMeasure, true).isEmpty();
+	}
+	
+	/**
+	 * Determine whether the tempo and meter are constant
+	 * (i.e., there are no changes to the base {@link Tempo}.)
+	 * This is answered from the compiled map, so (once the map
+	 * has been compiled) it doesn't need to lock.
+	 * 
+	 * @return true if the tempo and meter are constant
+	 */
+	public boolean isConstant() {
+		return getTable().constant;
+	}
+	
+	/**
+	 * Append code for the tempo changes and meter changes, in the
+	 * form of calls to the {@link Composer} class's
+	 * {@link Composer#tempoChange(int, double)},
+	 * {@link Composer#tempoRamp(int, double)}, and
+	 * {@link Composer#meterChange(int, int)} methods
+	 * (one per line.)
+	 * 
+	 * @param out the Appendable to append the code to
+	 * @throws IOException if the code can't be appended
+	 */
+	synchronized void appendChanges(Appendable out) throws IOException {
+		for (Map.Entry<Integer, Integer> entry : meterChanges.entrySet()) {
+			out.append("meterChange(").append(entry.getKey().toString()).append(",")
+				.append(entry.getValue().toString()).append(");\n");
+		}
+		for (Map.Entry<Integer, TempoChange> entry : tempoChanges.entrySet()) {
+			TempoChange change = entry.getValue();
+			out.append(change.ramp ? "tempoRamp(" : "tempoChange(").append(entry.getKey().toString()).append(",");
+			ConvertToCode.appendDecimal(out, change.beatsPerMinute);
+			out.append(");\n");
+		}
+	}
+	
+	/**
+	 * Get the beat at which a measure begins.
+	 * 
+	 * @param measure the measure
+	 * @return the beat at which the measure begins
+	 */
+	public double measureToBeat(int measure) {
+		return measureToBeat(getTable(), measure);
+	}
+	
+	private static double measureToBeat(Table t, int measure) {
+		int i = Math.max(0, floorIndex(t.meterMeasure, measure));
+		return t.meterBeat[i] + (double)(measure - t.meterMeasure[i]) * t.meterBeatsPerMeasure[i];
+	}
+	
+	/**
+	 * Get the measure containing a beat.
+	 * 
+	 * @param beat the beat
+	 * @return the measure containing the beat
+	 */
+	public int beatToMeasure(double beat) {
+		Table t = getTable();
+		int i = Math.max(0, floorIndex(t.meterBeat, beat));
+		return t.meterMeasure[i] + (int) Math.floor((beat - t.meterBeat[i]) / t.meterBeatsPerMeasure[i]);
+	}
+	
+	/**
+	 * Get the number of beats in a measure.
+	 * 
+	 * @param measure the measure
+	 * @return the number of beats in the measure
+	 */
+	public int getBeatsPerMeasure(int measure) {
+		Table t = getTable();
+		return t.meterBeatsPerMeasure[Math.max(0, floorIndex(t.meterMeasure, measure))];
+	}
+	
+	/**
+	 * Get the tempo at a beat.
+	 * 
+	 * @param beat the beat
+	 * @return the tempo (beats per minute) at the beat
+	 */
+	public double getBeatsPerMinute(double beat) {
+		Table t = getTable();
+		int i = Math.max(0, floorIndex(t.segBeat, beat));
+		return t.segBpm[i] + t.segSlope[i] * Math.max(0.0, beat - t.segBeat[i]);
+	}
+	
+	/**
+	 * Convert a beat to a timestamp in microseconds.
+	 * 
+	 * @param beat the beat
+	 * @return the timestamp in microseconds
+	 */
+	public long beatToUs(double beat) {
+		Table t = getTable();
+		int i = Math.max(0, floorIndex(t.segBeat, beat));
+		return Math.round(t.segUs[i] + elapsedUs(t.segBpm[i], t.segSlope[i], beat - t.segBeat[i]));
+	}
+	
+	/**
+	 * Convert a timestamp in microseconds to a beat.
+	 * 
+	 * @param us the timestamp in microseconds
+	 * @return the beat
+	 */
+	public double usToBeat(long us) {
+		Table t = getTable();
+		int i = Math.max(0, floorIndex(t.segUs, us));
+		return t.segBeat[i] + elapsedBeats(t.segBpm[i], t.segSlope[i], us - t.segUs[i]);
+	}
+	
+	/**
+	 * Get the timestamp in microseconds at which a measure begins.
+	 * 
+	 * @param measure the measure
+	 * @return the timestamp in microseconds
+	 */
+	public long measureToUs(int measure) {
+		return beatToUs(measureToBeat(measure));
+	}
+	
+	// Time taken by the given number of beats, starting at the given
+	// tempo, with the tempo changing by slope per beat
+	private static double elapsedUs(double bpm, double slope, double beats) {
+		if (slope == 0.0 || beats < 0.0) {
+			return beats * US_PER_MINUTE / bpm;
+		}
+		return US_PER_MINUTE / slope * Math.log1p(slope * beats / bpm);
+	}
+	
+	// Inverse of elapsedUs
+	private static double elapsedBeats(double bpm, double slope, double us) {
+		if (slope == 0.0 || us < 0.0) {
+			return us * bpm / US_PER_MINUTE;
+		}
+		return bpm / slope * Math.expm1(us * slope / US_PER_MINUTE);
+	}
+	
+	// Index of the last element less than or equal to key
+	// (-1 if there is none)
+	private static int floorIndex(double[] a, double key) {
+		int i = Arrays.binarySearch(a, key);
+		if (i < 0) {
+			return -i - 2;
+		}
+		// Skip over any equal elements (empty segments)
+		while (i + 1 < a.length && a[i + 1] == key) {
+			i++;
+		}
+		return i;
+	}
+	
+	private static int floorIndex(int[] a, int key) {
+		int i = Arrays.binarySearch(a, key);
+		return i < 0 ? -i - 2 : i;
+	}
+	
+	private Table getTable() {
+		Table t = table;
+		if (t == null) {
+			t = compile();
+		}
+		return t;
+	}
+	
+	private synchronized Table compile() {
+		if (table != null) {
+			return table;
+		}
+		
+		// Meter segments
+		Table t = new Table(meterChanges.size() + 1, tempoChanges.size() + 1);
+		t.meterMeasure[0] = 0;
+		t.meterBeat[0] = 0.0;
+		t.meterBeatsPerMeasure[0] = baseTempo.getBeatsPerMeasure();
+		int n = 1;
+		for (Map.Entry<Integer, Integer> entry : meterChanges.entrySet()) {
+			int measure = entry.getKey();
+			t.meterMeasure[n] = measure;
+			t.meterBeat[n] = t.meterBeat[n-1] + (double)(measure - t.meterMeasure[n-1]) * t.meterBeatsPerMeasure[n-1];
+			t.meterBeatsPerMeasure[n] = entry.getValue();
+			n++;
+		}
+		
+		// Tempo segments: each segment ends at a tempo change,
+		// and ramps towards it if it is a gradual change
+		t.segBeat[0] = 0.0;
+		t.segUs[0] = 0.0;
+		t.segBpm[0] = baseTempo.getBeatsPerMinute();
+		t.segSlope[0] = 0.0;
+		n = 1;
+		for (Map.Entry<Integer, TempoChange> entry : tempoChanges.entrySet()) {
+			double beat = measureToBeat(t, entry.getKey());
+			TempoChange change = entry.getValue();
+			double len = beat - t.segBeat[n-1];
+			if (change.ramp && len > 0.0) {
+				t.segSlope[n-1] = (change.beatsPerMinute - t.segBpm[n-1]) / len;
+			}
+			t.segBeat[n] = beat;
+			t.segUs[n] = t.segUs[n-1] + elapsedUs(t.segBpm[n-1], t.segSlope[n-1], len);
+			t.segBpm[n] = change.beatsPerMinute;
+			t.segSlope[n] = 0.0;
+			n++;
+		}
+		this.table = t;
+		return t;
+	}
+}
@@ -18,10 +18,13 @@ package io.github.daveho.funwithsound;
 import java.util.Arrays;
 
 import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.AudioIO;
 import net.beadsproject.beads.core.UGen;
+import net.beadsproject.beads.core.io.NonrealtimeIO;
 import net.beadsproject.beads.data.Buffer;
 import net.beadsproject.beads.data.DataBead;
 import net.beadsproject.beads.ugens.Function;
+import net.beadsproject.beads.ugens.Gain;
 import net.beadsproject.beads.ugens.WavePlayer;
 
 /**
@@ -229,6 +232,53 @@ public class Util {
 		};
 	}
 	
+	/**
+	 * Feed the original (dry) signal of an effect into the effect's
+	 * output mixer at a specified gain.  Nothing is added if the
+	 * gain is 0, and the signal is fed directly if the gain is 1.
+	 * 
+	 * @param ac    the AudioContext
+	 * @param mixer the effect's output mixer
+	 * @param dry   the original signal
+	 * @param gain  the gain for the original signal
+	 */
+	public static void addDryInput(AudioContext ac, Gain mixer, UGen dry, float gain) {
+		if (gain == 1.0f) {
+			mixer.addInput(dry);
+		} else if (gain > 0.0f) {
+			Gain dryGain = new Gain(ac, 2, gain);
+			dryGain.addInput(dry);
+			mixer.addInput(dryGain);
+		}
+	}
+	
+	/**
+	 * Convert a floating point sample to a 16 bit PCM sample value,
+	 * clipping it to the range -1..1.
+	 * 
+	 * @param v the sample
+	 * @return the 16 bit sample value
+	 */
+	public static int toPcm16(float v) {
+		return Math.round(Math.max(-1.0f, Math.min(1.0f, v)) * 32767.0f);
+	}
+	
+	/**
+	 * Check whether an AudioContext is playing in real time,
+	 * as opposed to rendering offline (with a {@link NonrealtimeIO},
+	 * or in a {@link ParallelMixer.Lane} of such an AudioContext.)
+	 * 
+	 * @param ac the AudioContext
+	 * @return true if the AudioContext is playing in real time
+	 */
+	public static boolean isRealTime(AudioContext ac) {
+		AudioIO io = ac.getAudioIO();
+		if (io instanceof ParallelMixer.Lane) {
+			return ((ParallelMixer.Lane) io).isRealTime();
+		}
+		return !(io instanceof NonrealtimeIO);
+	}
+	
 	/**
 	 * Build a string by joining elements of specified collection
 	 * using specified separator.
@@ -0,0 +1,57 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * {@link AudioSink} which writes a 16 bit PCM wave file.
+ */
+public class WaveAudioSink implements AudioSink {
+	private final File file;
+	private WaveFileWriter writer;
+	private float[] frame;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param file the wave file to write
+	 */
+	public WaveAudioSink(File file) {
+		this.file = file;
+	}
+	
+	@Override
+	public void open(float sampleRate, int numChannels) throws IOException {
+		writer = new WaveFileWriter(file, sampleRate, numChannels);
+		frame = new float[numChannels];
+	}
+	
+	@Override
+	public void write(float[][] buf, int numFrames) throws IOException {
+		for (int i = 0; i < numFrames; i++) {
+			for (int c = 0; c < frame.length; c++) {
+				frame[c] = buf[c][i];
+			}
+			writer.writeFrame(frame);
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		writer.close();
+	}
+}
@@ -0,0 +1,137 @@
+// Copyright 2015-2016, David Hovemeyer <david.hovemeyer@gmail.com>
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.github.daveho.funwithsound;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Write 16 bit PCM wave files incrementally, without knowing
+ * the number of frames in advance.  The header is written
+ * with placeholder sizes, which are filled in by {@link #close()}.
+ */
+class WaveFileWriter {
+	static final int HEADER_SIZE = 44;
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final int numChannels;
+	private final ByteBuffer buf;
+	private long numFrames;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param file         the file to write
+	 * @param sampleRate   the sample rate
+	 * @param numChannels  the number of channels
+	 * @throws IOException if the file can't be opened
+	 */
+	public WaveFileWriter(File file, float sampleRate, int numChannels) throws IOException {
+		this.raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0L);
+		this.channel = raf.getChannel();
+		this.numChannels = numChannels;
+		this.buf = ByteBuffer.allocate(8192 * numChannels * 2).order(ByteOrder.LITTLE_ENDIAN);
+
+		putHeader(buf, sampleRate, numChannels, 0L); // sizes filled in by close()
+		flush();
+	}
+	
+	/**
+	 * Put a 16 bit PCM wave file header in a (little-endian) buffer.
+	 * 
+	 * @param buf          the buffer
+	 * @param sampleRate   the sample rate
+	 * @param numChannels  the number of channels
+	 * @param dataSize     the size of the audio data in bytes: if negative,
+	 *                     the maximum size is used, which is the usual
+	 *                     convention for streamed wave data of unknown length
+	 */
+	static void putHeader(ByteBuffer buf, float sampleRate, int numChannels, long dataSize) {
+		int rate = (int) sampleRate;
+		int size = dataSize < 0L ? 0xffffffff - HEADER_SIZE + 8 : (int) dataSize;
+		buf.put(new byte[]{'R', 'I', 'F', 'F'});
+		buf.putInt(size + HEADER_SIZE - 8);
+		buf.put(new byte[]{'W', 'A', 'V', 'E', 'f', 'm', 't', ' '});
+		buf.putInt(16);
+		buf.putShort((short) 1); // PCM
+		buf.putShort((short) numChannels);
+		buf.putInt(rate);
+		buf.putInt(rate * numChannels * 2);
+		buf.putShort((short) (numChannels * 2));
+		buf.putShort((short) 16);
+		buf.put(new byte[]{'d', 'a', 't', 'a'});
+		buf.putInt(size);
+	}
+
+	/**
+	 * Write one frame.
+	 * 
+	 * @param frame one sample per channel (clipped to -1..1)
+	 * @throws IOException if an error occurs writing the file
+	 */
+	public void writeFrame(float[] frame) throws IOException {
+		if (buf.remaining() < numChannels * 2) {
+			flush();
+		}
+		for (int c = 0; c < numChannels; c++) {
+			buf.putShort((short) Util.toPcm16(frame[c]));
+		}
+		numFrames++;
+	}
+
+	/**
+	 * Get the number of frames written so far.
+	 * 
+	 * @return the number of frames written
+	 */
+	public long getNumFrames() {
+		return numFrames;
+	}
+
+	private void flush() throws IOException {
+		buf.flip();
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+		buf.clear();
+	}
+
+	/**
+	 * Write any buffered frames, fill in the header sizes,
+	 * and close the file.
+	 * 
+	 * @throws IOException if an error occurs writing the file
+	 */
+	public void close() throws IOException {
+		try {
+			flush();
+			long dataSize = numFrames * numChannels * 2;
+			ByteBuffer size = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			size.putInt(0, (int) (dataSize + HEADER_SIZE - 8));
+			channel.write(size, 4L);
+			size.clear();
+			size.putInt(0, (int) dataSize);
+			channel.write(size, HEADER_SIZE - 4);
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -20,7 +20,6 @@ import java.lang.reflect.Method;
 import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.sound.midi.MidiUnavailableException;
 import javax.sound.midi.Receiver;
@@ -74,6 +73,13 @@ public class FunWithSound {
 	 */
 	public static final long DEFAULT_IDLE_WAIT_US = 2000000L; // 2 s
 	
+	// Capacity of the ring buffers used to deliver NoteEvents and
+	// BeatEvents from the audio thread to the drawing thread
+	private static final int NOTE_EVENT_RING_CAPACITY = 4096;
+	
+	// Number of events taken from a ring at a time
+	private static final int NOTE_EVENT_BATCH_SIZE = 256;
+	
 	/**
 	 * Abstract base class for visualizations.
 	 */
@@ -285,7 +291,12 @@ public class FunWithSound {
 	Receiver receiver;
 	Visualization[] visualizations;
 	Method onNoteEvent;
-	ConcurrentLinkedQueue<NoteEvent> noteEventQueue;
+	EventRing<NoteEvent> noteEventRing;
+	NoteEvent[] noteEventBatch;
+	Method onBeat;
+	EventRing<BeatEvent> beatEventRing;
+	BeatEvent[] beatEventBatch;
+	Object[] eventArgs;
 	
 	/**
 	 * Constructor.
@@ -305,8 +316,15 @@ public class FunWithSound {
 		
 		this.onNoteEvent = findMethod("onNoteEvent", new Class<?>[]{NoteEvent.class});
 		if (onNoteEvent != null) {
-			noteEventQueue = new ConcurrentLinkedQueue<NoteEvent>();
+			noteEventRing = new EventRing<NoteEvent>(NOTE_EVENT_RING_CAPACITY);
+			noteEventBatch = new NoteEvent[NOTE_EVENT_BATCH_SIZE];
+		}
+		this.onBeat = findMethod("onBeat", new Class<?>[]{BeatEvent.class});
+		if (onBeat != null) {
+			beatEventRing = new EventRing<BeatEvent>(NOTE_EVENT_RING_CAPACITY);
+			beatEventBatch = new BeatEvent[NOTE_EVENT_BATCH_SIZE];
 		}
+		this.eventArgs = new Object[1];
 		
 		System.out.println("Starting ##library.name## version ##library.prettyVersion##");
 	}
@@ -338,16 +356,13 @@ public class FunWithSound {
 	}
 	
 	public void draw() {
-		if (noteEventQueue != null) {
-			// If there are any NoteEvents, dispatch them to onNoteEvent
-			while (!noteEventQueue.isEmpty()) {
-				NoteEvent noteEvent = noteEventQueue.remove();
-				try {
-					onNoteEvent.invoke(parent, new Object[]{noteEvent});
-				} catch (Exception e) {
-					System.err.println("Error invoking onNoteEvent: " + e.getMessage());
-				}
-			}
+		// If there are any NoteEvents or BeatEvents, dispatch them
+		// to onNoteEvent and onBeat
+		if (noteEventRing != null) {
+			dispatchEvents(noteEventRing, noteEventBatch, onNoteEvent);
+		}
+		if (beatEventRing != null) {
+			dispatchEvents(beatEventRing, beatEventBatch, onBeat);
 		}
 		
 		int Y = 10;
@@ -359,6 +374,22 @@ public class FunWithSound {
 		}
 	}
 	
+	private <E> void dispatchEvents(EventRing<E> ring, E[] batch, Method method) {
+		int n;
+		while ((n = ring.poll(batch)) > 0) {
+			for (int i = 0; i < n; i++) {
+				eventArgs[0] = batch[i];
+				batch[i] = null;
+				try {
+					method.invoke(parent, eventArgs);
+				} catch (Exception e) {
+					System.err.println("Error invoking " + method.getName() + ": " + e.getMessage());
+				}
+			}
+		}
+		eventArgs[0] = null;
+	}
+	
 	// Post-draw hook: see if playing has finished
 	public void post() {
 		if (player != null) {
@@ -427,6 +458,18 @@ public class FunWithSound {
 			System.err.println("Couldn't save wave file: " + e.toString());
 		}
 	}
+	
+	public void saveFlacFile(Composer c, String fileName) {
+		Player player = createPlayer();
+		player.setComposition(c.getComposition());
+		try {
+			player.setStartDelayUs(DEFAULT_START_DELAY_US);
+			player.setIdleWaitUs(DEFAULT_IDLE_WAIT_US);
+			player.saveFlacFile(fileName);
+		} catch (Exception e) {
+			System.err.println("Couldn't save FLAC file: " + e.toString());
+		}
+	}
 
 	protected Player createPlayer() {
 		Player player = new Player() {
@@ -442,12 +485,10 @@ public class FunWithSound {
 		};
 		
 		if (onNoteEvent != null) {
-			player.setNoteEventCallback(new NoteEventCallback() {
-				@Override
-				public void onNoteEvent(NoteEvent noteEvent) {
-					noteEventQueue.add(noteEvent);
-				}
-			});
+			player.setNoteEventRing(noteEventRing);
+		}
+		if (onBeat != null) {
+			player.setBeatEventRing(beatEventRing);
 		}
 		
 		return player;